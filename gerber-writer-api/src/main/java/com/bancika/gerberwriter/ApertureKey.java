@@ -0,0 +1,93 @@
+package com.bancika.gerberwriter;
+
+/**
+ * Identity of an aperture: the kind of master, the raw bits of its parameters and angle,
+ * the aperture function and the polarity.
+ * <p>
+ * Keys are mutable so that one instance can be reused as a lookup probe without
+ * allocating; keys stored in a map are copies made with {@link #copy()} and never change.
+ */
+final class ApertureKey {
+
+    static final byte CIRCLE = 1;
+    static final byte RECTANGLE = 2;
+    static final byte ROUNDED_RECTANGLE = 3;
+    static final byte CHAMFERED_RECTANGLE = 4;
+    static final byte THERMAL = 5;
+    static final byte ROUNDED_THERMAL = 6;
+    static final byte REGULAR_POLYGON = 7;
+    static final byte USER_POLYGON = 8;
+    static final byte BLOCK = 9;
+
+    private byte kind;
+    private long parameter1;
+    private long parameter2;
+    private long parameter3;
+    private long angle;
+    private int function;
+    private boolean negative;
+    private int hash;
+
+    /**
+     * @param function id of the aperture function
+     * @return this key
+     */
+    ApertureKey set(byte kind, double parameter1, double parameter2, double parameter3, double angle,
+                    int function, boolean negative) {
+        this.kind = kind;
+        this.parameter1 = bits(parameter1);
+        this.parameter2 = bits(parameter2);
+        this.parameter3 = bits(parameter3);
+        this.angle = bits(angle);
+        this.function = function;
+        this.negative = negative;
+
+        int result = kind;
+        result = 31 * result + Long.hashCode(this.parameter1);
+        result = 31 * result + Long.hashCode(this.parameter2);
+        result = 31 * result + Long.hashCode(this.parameter3);
+        result = 31 * result + Long.hashCode(this.angle);
+        result = 31 * result + function;
+        result = 31 * result + Boolean.hashCode(negative);
+        this.hash = result;
+        return this;
+    }
+
+    ApertureKey copy() {
+        ApertureKey key = new ApertureKey();
+        key.kind = kind;
+        key.parameter1 = parameter1;
+        key.parameter2 = parameter2;
+        key.parameter3 = parameter3;
+        key.angle = angle;
+        key.function = function;
+        key.negative = negative;
+        key.hash = hash;
+        return key;
+    }
+
+    private static long bits(double value) {
+        // Adding zero folds -0.0 into 0.0
+        return Double.doubleToLongBits(value + 0.0);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        ApertureKey that = (ApertureKey) o;
+        return kind == that.kind &&
+                parameter1 == that.parameter1 &&
+                parameter2 == that.parameter2 &&
+                parameter3 == that.parameter3 &&
+                angle == that.angle &&
+                function == that.function &&
+                negative == that.negative;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
@@ -0,0 +1,56 @@
+package com.bancika.gerberwriter;
+
+import com.bancika.gerberwriter.padmasters.AbstractPad;
+import com.bancika.gerberwriter.padmasters.BlockAperture;
+import com.bancika.gerberwriter.padmasters.UserPolygon;
+
+/**
+ * Aperture of a pad master under a given angle, with its key parameters and its
+ * shape, AD and macro text computed once.
+ * <p>
+ * For a {@link UserPolygon} the macro name depends on the file, so {@link #adBody} holds
+ * only the AD parameters following the name and {@link #macro} only the macro primitives.
+ * For a {@link BlockAperture} there is no AD at all: {@link #block} holds its contents
+ * rotated by the angle, which are encoded with the D-codes of the file.
+ */
+final class ApertureTemplate {
+    final byte kind;
+    final double parameter1;
+    final double parameter2;
+    final double parameter3;
+    final double angle;
+    final String function;
+    final boolean negative;
+    final UserPolygon polygon;
+    final String shape;
+    final String adBody;
+    final String macro;
+    final BlockAperture blockMaster;
+    final GraphicsStore block;
+
+    ApertureTemplate(byte kind, double parameter1, double parameter2, double parameter3, double angle,
+                     AbstractPad master, String shape, String adBody, String macro) {
+        this(kind, parameter1, parameter2, parameter3, angle, master, shape, adBody, macro, null);
+    }
+
+    ApertureTemplate(double angle, BlockAperture master, String shape, GraphicsStore block) {
+        this(ApertureKey.BLOCK, 0, 0, 0, angle, master, shape, null, null, block);
+    }
+
+    private ApertureTemplate(byte kind, double parameter1, double parameter2, double parameter3, double angle,
+                             AbstractPad master, String shape, String adBody, String macro, GraphicsStore block) {
+        this.kind = kind;
+        this.parameter1 = parameter1;
+        this.parameter2 = parameter2;
+        this.parameter3 = parameter3;
+        this.angle = angle;
+        this.function = master.getFunction();
+        this.negative = master.isNegative();
+        this.polygon = master instanceof UserPolygon ? (UserPolygon) master : null;
+        this.shape = shape;
+        this.adBody = adBody;
+        this.macro = macro;
+        this.blockMaster = block != null ? (BlockAperture) master : null;
+        this.block = block;
+    }
+}
@@ -0,0 +1,351 @@
+package com.bancika.gerberwriter;
+
+import com.bancika.gerberwriter.GraphicsStore.PadStyle;
+import com.bancika.gerberwriter.GraphicsStore.RegionStyle;
+import com.bancika.gerberwriter.GraphicsStore.TraceStyle;
+import com.bancika.gerberwriter.padmasters.*;
+import com.bancika.gerberwriter.path.*;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Bounded cache of compiled aperture templates, keyed by pad master and angle.
+ * <p>
+ * Compiling a template does all the geometry of the aperture (rotated corner circles,
+ * the rounded thermal solver, the rotated contents of a block) and formats its shape and AD parameters, so every
+ * distinct master and angle pays for that once, also across repeated dumps of the layer.
+ * Least recently used templates are dropped once the cache is full.
+ * <p>
+ * Angles are rounded to the angle resolution and folded by the symmetry of the shape, so
+ * pads that look the same share a template key and thus an aperture: rectangles (also
+ * rounded and chamfered ones) repeat every 180 degrees and turn into rectangles with swapped
+ * sizes every 90 degrees, thermals repeat every 90 degrees, regular polygons with n vertices
+ * every 360/n degrees and circles under any angle.
+ */
+final class ApertureTemplateCache {
+
+    static final int DEFAULT_CAPACITY = 4096;
+    static final double DEFAULT_ANGLE_RESOLUTION = 1e-6; // degrees, the precision of angles in AD commands
+
+    private static final int DECIMALS = 6;  // Max number of decimals in calculated Gerber AD parameters
+
+    private final int capacity;
+    private final Map<PadStyle, ApertureTemplate> templates;
+    // Shared by the rounded thermals of all angles, and kept when the angle resolution changes
+    final RoundedThermalSolver roundedThermals = new RoundedThermalSolver(DEFAULT_CAPACITY);
+    private double angleResolution = DEFAULT_ANGLE_RESOLUTION;
+    // Inverse of the resolution, exact for powers of ten, so that rounded angles are too
+    private double stepsPerDegree = 1 / DEFAULT_ANGLE_RESOLUTION;
+    private long hits;
+    private long misses;
+
+    ApertureTemplateCache(int capacity) {
+        this.capacity = capacity;
+        this.templates = new LinkedHashMap<PadStyle, ApertureTemplate>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<PadStyle, ApertureTemplate> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    synchronized ApertureTemplate get(PadStyle pad) {
+        ApertureTemplate template = templates.get(pad);
+        if (template != null) {
+            hits++;
+            return template;
+        }
+        misses++;
+        template = compile(pad);
+        templates.put(pad, template);
+        return template;
+    }
+
+    /**
+     * @return cache with the same resolution and templates, which are immutable and shared
+     */
+    synchronized ApertureTemplateCache copy() {
+        ApertureTemplateCache copy = new ApertureTemplateCache(capacity);
+        copy.setAngleResolution(angleResolution);
+        copy.templates.putAll(templates);
+        return copy;
+    }
+
+    /**
+     * Sets the resolution angles are rounded to, dropping the templates compiled with the
+     * previous one
+     */
+    synchronized void setAngleResolution(double angleResolution) {
+        if (angleResolution != this.angleResolution) {
+            this.angleResolution = angleResolution;
+            this.stepsPerDegree = 1 / angleResolution;
+            templates.clear();
+        }
+    }
+
+    synchronized double getAngleResolution() {
+        return angleResolution;
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized int size() {
+        return templates.size();
+    }
+
+    /**
+     * @return the angle rounded to the resolution, in [0, period)
+     */
+    private double fold(double angle, double period) {
+        double folded = angle % period;
+        if (folded < 0) {
+            folded += period;
+        }
+        long steps = Math.round(folded * stepsPerDegree);
+        if (steps >= Math.round(period * stepsPerDegree)) {
+            steps = 0; // rounded up to a full period
+        }
+        return steps / stepsPerDegree;
+    }
+
+    private ApertureTemplate compile(PadStyle pad) {
+        if (pad.master instanceof Circle) {
+            Circle circle = (Circle) pad.master;
+            String shape = String.format(Locale.ROOT, "Circle,%f", circle.getDiameter());
+            String adBody = String.format(Locale.ROOT, "C,%f", circle.getDiameter());
+            return new ApertureTemplate(ApertureKey.CIRCLE, circle.getDiameter(), 0, 0, 0,
+                    circle, shape, adBody, null);
+
+        } else if (pad.master instanceof Rectangle) {
+            Rectangle rect = (Rectangle) pad.master;
+            double angle = fold(pad.angle, 180);
+            boolean swapped = angle >= 90;
+            double xSize = swapped ? rect.getYSize() : rect.getXSize();
+            double ySize = swapped ? rect.getXSize() : rect.getYSize();
+            if (swapped) {
+                angle = fold(angle - 90, 90);
+            }
+            String shape = String.format(Locale.ROOT, "Rectangle,%f,%f,%f", xSize, ySize, angle);
+
+            String adBody;
+            String macro = null;
+            if (angle == 0) {
+                adBody = String.format(Locale.ROOT, "R,%fX%f", xSize, ySize);
+            } else {
+                macro = GerberMacros.MACRO_RECTANGLE;
+                adBody = String.format(Locale.ROOT, "Rectangle,%fX%fX%f",
+                        xSize/2, ySize/2, angle);
+            }
+            return new ApertureTemplate(ApertureKey.RECTANGLE, xSize, ySize, 0, angle,
+                    rect, shape, adBody, macro);
+
+        } else if (pad.master instanceof RoundedRectangle) {
+            RoundedRectangle rounded = (RoundedRectangle) pad.master;
+            double angle = fold(pad.angle, 180);
+            boolean swapped = angle >= 90;
+            double xSize = swapped ? rounded.getYSize() : rounded.getXSize();
+            double ySize = swapped ? rounded.getXSize() : rounded.getYSize();
+            if (swapped) {
+                angle = fold(angle - 90, 90);
+            }
+            double radius = rounded.getRadius();
+
+            String shape = String.format(Locale.ROOT, "RoundedRectangle,%f,%f,%f,%f",
+                    xSize, ySize, radius, angle);
+
+            String adBody;
+            String macro = null;
+            if ((Math.min(xSize, ySize) - 2*radius < DataLayer.TOLERANCE) && (angle == 0)) {
+                // Becomes obround
+                adBody = String.format(Locale.ROOT, "O,%fX%f", xSize, ySize);
+            } else {
+                macro = GerberMacros.MACRO_ROUNDED_RECTANGLE;
+                double xc = xSize/2 - radius;
+                double yc = ySize/2 - radius;
+                Point centerQ1 = Point.rotate(new Point(+xc, yc), angle);
+                Point centerQ2 = Point.rotate(new Point(-xc, yc), angle);
+
+                adBody = String.format(Locale.ROOT, "RoundedRectangle,%fX%fX%fX%fX%fX%fX%fX%fX%fX%f",
+                        round(xSize/2), round(ySize/2),
+                        round(xc), round(yc),
+                        round(angle), round(2*radius),
+                        round(centerQ1.x), round(centerQ1.y),
+                        round(centerQ2.x), round(centerQ2.y));
+            }
+            return new ApertureTemplate(ApertureKey.ROUNDED_RECTANGLE, xSize, ySize, radius, angle,
+                    rounded, shape, adBody, macro);
+
+        } else if (pad.master instanceof ChamferedRectangle) {
+            ChamferedRectangle chamfered = (ChamferedRectangle) pad.master;
+            double angle = fold(pad.angle, 180);
+            boolean swapped = angle >= 90;
+            double xSize = swapped ? chamfered.getYSize() : chamfered.getXSize();
+            double ySize = swapped ? chamfered.getXSize() : chamfered.getYSize();
+            if (swapped) {
+                angle = fold(angle - 90, 90);
+            }
+            String shape = String.format(Locale.ROOT, "ChamferedRectangle,%f,%f,%f,%f",
+                    xSize, ySize, chamfered.getCutoff(), angle);
+
+            String adBody = String.format(Locale.ROOT, "ChamferedRectangle,%fX%fX%fX%fX%f",
+                    xSize/2,
+                    ySize/2,
+                    xSize/2 - chamfered.getCutoff(),
+                    ySize/2 - chamfered.getCutoff(),
+                    angle);
+
+            return new ApertureTemplate(ApertureKey.CHAMFERED_RECTANGLE,
+                    xSize, ySize, chamfered.getCutoff(), angle,
+                    chamfered, shape, adBody, GerberMacros.MACRO_CHAMFERED_RECTANGLE);
+
+        } else if (pad.master instanceof Thermal) {
+            Thermal thermal = (Thermal) pad.master;
+            double angle = fold(pad.angle, 90);
+            String shape = String.format(Locale.ROOT, "Thermal,%f,%f,%f,%f",
+                    thermal.getOuterDiameter(), thermal.getInnerDiameter(),
+                    thermal.getGap(), angle);
+
+            String adBody = String.format(Locale.ROOT, "Thermal,%fX%fX%fX%f",
+                    thermal.getOuterDiameter(),
+                    thermal.getInnerDiameter(),
+                    thermal.getGap(),
+                    angle);
+
+            return new ApertureTemplate(ApertureKey.THERMAL,
+                    thermal.getOuterDiameter(), thermal.getInnerDiameter(), thermal.getGap(), angle,
+                    thermal, shape, adBody, GerberMacros.MACRO_THERMAL);
+
+        } else if (pad.master instanceof RoundedThermal) {
+            RoundedThermal rounded = (RoundedThermal) pad.master;
+            double angle = fold(pad.angle, 90);
+            String shape = String.format(Locale.ROOT, "RoundedThermal,%f,%f,%f,%f",
+                    rounded.getOuterDiameter(), rounded.getInnerDiameter(),
+                    rounded.getGap(), angle);
+
+            // Calculate parameters for the rounded thermal
+            double outerDiameter = rounded.getOuterDiameter();
+            double innerDiameter = rounded.getInnerDiameter();
+            double gapGiven = rounded.getGap();
+            RoundedThermalSolver.Solution params = roundedThermals.solve(outerDiameter, innerDiameter, gapGiven);
+
+            String adBody = String.format(Locale.ROOT, "RoundedThermal,%fX%fX%fX%fX%fX%fX%fX%fX%fX%f",
+                    round(outerDiameter),
+                    round(innerDiameter),
+                    round(params.gapPrimitive),
+                    round(angle),
+                    round(params.roundingDiameter),
+                    round(params.centerH.x),
+                    round(params.centerH.y),
+                    round(params.centerV.x),
+                    round(params.centerV.y),
+                    round(innerDiameter));
+
+            return new ApertureTemplate(ApertureKey.ROUNDED_THERMAL, outerDiameter, innerDiameter, gapGiven, angle,
+                    rounded, shape, adBody, GerberMacros.MACRO_ROUNDED_THERMAL);
+
+        } else if (pad.master instanceof RegularPolygon) {
+            RegularPolygon polygon = (RegularPolygon) pad.master;
+            double angle = fold(pad.angle, 360.0 / polygon.getVertices());
+            String shape = String.format(Locale.ROOT, "RegularPolygon,%f,%d,%f",
+                    polygon.getOuterDiameter(), polygon.getVertices(), angle);
+
+            String adBody = String.format(Locale.ROOT, "P,%fX%dX%f",
+                    polygon.getOuterDiameter(),
+                    polygon.getVertices(),
+                    angle);
+
+            return new ApertureTemplate(ApertureKey.REGULAR_POLYGON,
+                    polygon.getOuterDiameter(), polygon.getVertices(), 0, angle,
+                    polygon, shape, adBody, null);
+
+        } else if (pad.master instanceof UserPolygon) {
+            UserPolygon userPoly = (UserPolygon) pad.master;
+
+            // Macro primitives; the macro name is assigned per file
+            StringBuilder macroDef = new StringBuilder();
+            macroDef.append(String.format(Locale.ROOT, "4,1,%d,", userPoly.getPolygon().length - 1));
+
+            for (Point point : userPoly.getPolygon()) {
+                macroDef.append(String.format(Locale.ROOT, "%f,%f,", point.getX(), point.getY()));
+            }
+
+            macroDef.append("$1*\n%");
+
+            double angle = fold(pad.angle, 360);
+            String shape = String.format(Locale.ROOT, "UserPolygon,%f", angle);
+            String adParameters = String.format(Locale.ROOT, ",%f", angle);
+
+            return new ApertureTemplate(ApertureKey.USER_POLYGON, 0, 0, 0, angle,
+                    userPoly, shape, adParameters, macroDef.toString());
+
+        } else if (pad.master instanceof BlockAperture) {
+            BlockAperture block = (BlockAperture) pad.master;
+            double angle = fold(pad.angle, 360);
+            String shape = String.format(Locale.ROOT, "Block,%f", angle);
+            return new ApertureTemplate(angle, block, shape, compileBlock(block, angle));
+        }
+        throw new IllegalArgumentException("Unknown pad master type: " + pad.master.getClass().getName());
+    }
+
+    /**
+     * Every folded angle gets a copy of all contents, so the file grows with the number of
+     * distinct angles a block is flashed at, as described at {@link BlockAperture}.
+     *
+     * @return the contents of the block rotated around its origin
+     */
+    private static GraphicsStore compileBlock(BlockAperture block, double angle) {
+        GraphicsStore store = new GraphicsStore();
+        for (BlockAperture.Element element : block.getElements()) {
+            if (element.getMaster() != null) {
+                Point position = rotate(element.getPosition(), angle);
+                store.addPad(element.getMaster(), element.getAngle() + angle,
+                        GraphicsStore.toNanometres(position.x), GraphicsStore.toNanometres(position.y));
+            } else if (element.isRegion()) {
+                store.addPath(GraphicsStore.REGION,
+                        store.getStyleIndex(new RegionStyle(element.getFunction(), element.isNegative())),
+                        rotate(element.getPath(), angle));
+            } else {
+                store.addPath(GraphicsStore.TRACES,
+                        store.getStyleIndex(new TraceStyle(element.getWidth(), element.getFunction(),
+                                element.isNegative())),
+                        rotate(element.getPath(), angle));
+            }
+        }
+        return store;
+    }
+
+    private static Path rotate(Path path, double angle) {
+        if (angle == 0) {
+            return path;
+        }
+        Path rotated = new Path();
+        for (PathOperator operator : path.getOperators()) {
+            if (operator instanceof MoveTo) {
+                rotated.moveTo(Point.rotate(((MoveTo) operator).getTo(), angle));
+            } else if (operator instanceof LineTo) {
+                rotated.lineTo(Point.rotate(((LineTo) operator).getTo(), angle));
+            } else if (operator instanceof ArcTo) {
+                ArcTo arcTo = (ArcTo) operator;
+                rotated.arcTo(Point.rotate(arcTo.getTo(), angle), Point.rotate(arcTo.getCenter(), angle),
+                        arcTo.getOrientation());
+            }
+        }
+        return rotated;
+    }
+
+    private static Point rotate(Point point, double angle) {
+        return angle == 0 ? point : Point.rotate(point, angle);
+    }
+
+    private static double round(double value) {
+        return Math.round(value * Math.pow(10, DECIMALS)) / Math.pow(10, DECIMALS);
+    }
+}
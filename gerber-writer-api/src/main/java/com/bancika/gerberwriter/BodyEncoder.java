@@ -0,0 +1,468 @@
+package com.bancika.gerberwriter;
+
+import com.bancika.gerberwriter.GraphicsStore.PadStyle;
+import com.bancika.gerberwriter.GraphicsStore.RegionStyle;
+import com.bancika.gerberwriter.GraphicsStore.TraceStyle;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Encodes the body of a Gerber file (D01/02/03, G01/02/03, G36/G37 and %LP commands)
+ * from the graphics objects of a layer.
+ * <p>
+ * The encoder keeps the modal graphics state (current point, aperture, interpolation
+ * mode, polarity) and only writes the commands that change it. With modal coordinates it
+ * also leaves out X or Y coordinates that are the same as those of the current point. In parallel mode the
+ * objects are split into chunks that are encoded on a {@link ForkJoinPool}. The state a
+ * chunk starts with is exactly the state the serial encoder would have at that object,
+ * so the chunks, written in order, are byte-identical to the serial output.
+ */
+final class BodyEncoder {
+
+    static final int CHUNK_SIZE = 4096; // objects per parallel task
+
+    private final GraphicsStore store;
+    private final int[] dcodes;
+    private final int[] order;
+    private final boolean modalCoordinates;
+    private final boolean[] skippedVertices;
+    private long dcodeSwitches;
+    private long polaritySwitches;
+    private long redundantD02;
+    private long omittedBytes;
+
+    /**
+     * @param dcodes D-codes of the apertures, indexed by style
+     * @param order objects in the order they are written, {@code ~object} for a trace written in
+     *              reverse, or {@code null} for the order of the store
+     * @param skippedVertices line vertices of regions that are left out, see {@link RegionSimplification},
+     *                        or {@code null}
+     */
+    BodyEncoder(GraphicsStore store, int[] dcodes, int[] order, boolean modalCoordinates,
+                boolean[] skippedVertices) {
+        this.store = store;
+        this.dcodes = dcodes;
+        this.order = order;
+        this.modalCoordinates = modalCoordinates;
+        this.skippedVertices = skippedVertices;
+    }
+
+    void encode(GerberOutput out) throws IOException {
+        GraphicsState state = new GraphicsState();
+        encode(out, 0, store.size(), state);
+        addCounts(state);
+    }
+
+    /**
+     * Encodes the body with the pool. Small bodies are encoded on the calling thread.
+     */
+    void encode(GerberOutput out, ForkJoinPool pool) throws IOException {
+        int chunkCount = (store.size() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        if (chunkCount < 2) {
+            encode(out);
+            return;
+        }
+
+        // The state at the start of a chunk is given by the last objects before it that set
+        // each part of the state. Chunks are summarized in parallel, then chained in order.
+        List<ForkJoinTask<GraphicsState>> summaries = new ArrayList<>(chunkCount);
+        for (int chunk = 0; chunk < chunkCount; chunk++) {
+            int from = chunk * CHUNK_SIZE;
+            int to = Math.min(from + CHUNK_SIZE, store.size());
+            summaries.add(pool.submit(() -> summarize(from, to)));
+        }
+        GraphicsState[] entryStates = new GraphicsState[chunkCount];
+        entryStates[0] = new GraphicsState();
+        for (int chunk = 1; chunk < chunkCount; chunk++) {
+            entryStates[chunk] = entryStates[chunk - 1].then(summaries.get(chunk - 1).join());
+        }
+
+        // Chunks are encoded in waves so that only a few of them are held in memory
+        int waveSize = 2 * pool.getParallelism();
+        for (int first = 0; first < chunkCount; first += waveSize) {
+            int last = Math.min(first + waveSize, chunkCount);
+            List<ForkJoinTask<GerberOutput>> wave = new ArrayList<>(last - first);
+            for (int chunk = first; chunk < last; chunk++) {
+                int from = chunk * CHUNK_SIZE;
+                int to = Math.min(from + CHUNK_SIZE, store.size());
+                GraphicsState state = entryStates[chunk];
+                wave.add(pool.submit(() -> {
+                    GerberOutput chunkOut = new GerberOutput();
+                    try {
+                        encode(chunkOut, from, to, state);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return chunkOut;
+                }));
+            }
+            for (int i = 0; i < wave.size(); i++) {
+                wave.get(i).join().writeTo(out);
+                addCounts(entryStates[first + i]);
+            }
+        }
+    }
+
+    /**
+     * Adds the numbers of modal commands written and left out to the statistics
+     */
+    void addCountsTo(GerberWriteStats stats) {
+        stats.dcodeSwitches += dcodeSwitches;
+        stats.polaritySwitches += polaritySwitches;
+        stats.redundantD02 += redundantD02;
+        stats.omittedCoordinateBytes += omittedBytes;
+    }
+
+    private void addCounts(GraphicsState state) {
+        dcodeSwitches += state.dcodeSwitches;
+        polaritySwitches += state.polaritySwitches;
+        redundantD02 += state.redundantD02;
+        omittedBytes += state.omittedBytes;
+    }
+
+    private void encode(GerberOutput out, int from, int to, GraphicsState state) throws IOException {
+        for (int position = from; position < to; position++) {
+            int i = getObject(position);
+            if (isReversed(position)) {
+                TraceStyle trace = (TraceStyle) store.getStyle(store.getStyleIndexOf(i));
+                handleLp(trace.negative, out, state);
+                handleDnn(dcodes[store.getStyleIndexOf(i)], out, state);
+                handleReversedPathOperators(i, out, state);
+                continue;
+            }
+            int styleIndex = store.getStyleIndexOf(i);
+            Object style = store.getStyle(styleIndex);
+            if (style instanceof PadStyle) {
+                int vertex = store.getFirstVertex(i);
+                handleFlash(dcodes[styleIndex], ((PadStyle) style).master.isNegative(),
+                        store.getX(vertex), store.getY(vertex), out, state);
+            } else if (style instanceof RegionStyle) {
+                processRegion((RegionStyle) style, i, out, state);
+            } else if (style instanceof TraceStyle) {
+                processTracesPath((TraceStyle) style, dcodes[styleIndex], i, out, state);
+            }
+        }
+    }
+
+    /**
+     * @return the parts of the state set by the objects in the range, the others are unset
+     */
+    private GraphicsState summarize(int from, int to) {
+        GraphicsState summary = new GraphicsState();
+        int lastObject = getObject(to - 1);
+
+        // Every object sets the polarity and ends at its last point
+        summary.negative = store.isNegative(lastObject);
+        int lastVertex = isReversed(to - 1) ? store.getFirstVertex(lastObject)
+                : store.getLastPointVertex(lastObject);
+        summary.setPoint(store.getX(lastVertex), store.getY(lastVertex));
+        if (store.getKind(lastObject) != GraphicsStore.REGION) {
+            // A D02 is only left out when it would be written at the known point
+            summary.setGerberPoint(summary.x, summary.y);
+        }
+
+        // Regions do not select an aperture
+        for (int i = to - 1; i >= from; i--) {
+            int object = getObject(i);
+            if (store.getKind(object) != GraphicsStore.REGION) {
+                summary.dcode = dcodes[store.getStyleIndexOf(object)];
+                break;
+            }
+        }
+
+        for (int i = to - 1; i >= from && summary.g0n == null; i--) {
+            int object = getObject(i);
+            if (isReversed(i)) {
+                // The last segment written is the first one, in the opposite direction
+                byte operation = store.getOperation(store.getFirstVertex(object) + 1);
+                summary.g0n = operation == GraphicsStore.LINE ? "G01*"
+                        : operation == GraphicsStore.ARC_CW ? "G03*" : "G02*";
+                break;
+            }
+            for (int vertex = store.getVertexEnd(object) - 1; vertex >= store.getFirstVertex(object); vertex--) {
+                byte operation = store.getOperation(vertex);
+                if (operation == GraphicsStore.LINE) {
+                    summary.g0n = "G01*";
+                    break;
+                } else if (operation == GraphicsStore.ARC_CW) {
+                    summary.g0n = "G02*";
+                    break;
+                } else if (operation == GraphicsStore.ARC_CCW) {
+                    summary.g0n = "G03*";
+                    break;
+                }
+            }
+        }
+        return summary;
+    }
+
+    private int getObject(int position) {
+        if (order == null) {
+            return position;
+        }
+        int object = order[position];
+        return object >= 0 ? object : ~object;
+    }
+
+    private boolean isReversed(int position) {
+        return order != null && order[position] < 0;
+    }
+
+    private void handleFlash(int dcode, boolean negative, long x, long y,
+                             GerberOutput out, GraphicsState state) throws IOException {
+        handleLp(negative, out, state);
+        handleDnn(dcode, out, state);
+
+        appendOperation(out, state, x, y, 3);
+        state.setPoint(x, y);
+    }
+
+    private static void handleDnn(int dcode, GerberOutput out, GraphicsState state) throws IOException {
+        if (state.dcode != dcode) {
+            out.appendDcode(dcode);
+            state.dcode = dcode;
+            state.dcodeSwitches++;
+        }
+    }
+
+    private void processRegion(RegionStyle region, int object,
+                               GerberOutput out, GraphicsState state) throws IOException {
+        handleLp(region.negative, out, state);
+        if (!region.function.isEmpty()) {
+            out.append("G04 #@! TA.AperFunction,").append(region.function).append("*\n");
+        }
+        // The current point is not relied on across region statements
+        state.hasGerberPoint = false;
+        out.append("G36*\n");
+        handlePathOperators(object, out, state, true);
+        out.append("G37*\n");
+        state.hasGerberPoint = false;
+        if (!region.function.isEmpty()) {
+            out.append("G04 #@! TD*\n");
+        }
+    }
+
+    private void processTracesPath(TraceStyle tracesPath, int dcode, int object,
+                                   GerberOutput out, GraphicsState state) throws IOException {
+        handleLp(tracesPath.negative, out, state);
+        handleDnn(dcode, out, state);
+        handlePathOperators(object, out, state, false);
+    }
+
+    private static void handleLp(boolean negative, GerberOutput out, GraphicsState state) throws IOException {
+        if (state.negative == null || state.negative != negative) {
+            out.append(negative ? "%LPC*%\n" : "%LPD*%\n");
+            state.negative = negative;
+            state.polaritySwitches++;
+        }
+    }
+
+    private void handlePathOperators(int object, GerberOutput out, GraphicsState state,
+                                     boolean alwaysD02) throws IOException {
+        int end = store.getVertexEnd(object);
+        for (int vertex = store.getFirstVertex(object); vertex < end; vertex++) {
+            byte operation = store.getOperation(vertex);
+            long x = store.getX(vertex);
+            long y = store.getY(vertex);
+
+            if (operation == GraphicsStore.MOVE) {
+                // For regions (alwaysD02=true) or when current point is null, use D02
+                if (alwaysD02) {
+                    appendOperation(out, state, x, y, 2);
+                } else {
+                    handleD02(out, state, x, y);
+                }
+
+                state.setPoint(x, y);
+
+            } else if (operation == GraphicsStore.LINE) {
+                if (skippedVertices != null && skippedVertices[vertex]) {
+                    continue;
+                }
+                if (!state.hasPoint) {
+                    throw new IllegalStateException("LineTo without current point");
+                }
+
+                handleG0n(out, state, "G01*");
+                appendOperation(out, state, x, y, 1);
+
+                state.setPoint(x, y);
+
+            } else if (operation == GraphicsStore.ARC_CW || operation == GraphicsStore.ARC_CCW) {
+                if (!state.hasPoint) {
+                    throw new IllegalStateException("ArcTo without current point");
+                }
+
+                // Set quadrant mode if needed
+                handleG0n(out, state, operation == GraphicsStore.ARC_CW ? "G02*" : "G03*");
+
+                // Calculate offsets from current point to center, stored in the next vertex
+                vertex++;
+                long i = store.getX(vertex) - state.x;
+                long j = store.getY(vertex) - state.y;
+
+                // Output arc command
+                appendArc(out, state, x, y, i, j);
+
+                state.setPoint(x, y);
+            }
+        }
+    }
+
+    /**
+     * Writes a trace made of one sequence of segments from its end to its start
+     */
+    private void handleReversedPathOperators(int object, GerberOutput out, GraphicsState state)
+            throws IOException {
+        int first = store.getFirstVertex(object);
+        int vertex = store.getLastPointVertex(object);
+        handleD02(out, state, store.getX(vertex), store.getY(vertex));
+        state.setPoint(store.getX(vertex), store.getY(vertex));
+
+        while (vertex > first) {
+            // The segment ending at this vertex starts at the previous point
+            byte operation = store.getOperation(vertex);
+            int previous = vertex - 1;
+            if (store.getOperation(previous) == GraphicsStore.CENTER) {
+                previous--;
+            }
+            long x = store.getX(previous);
+            long y = store.getY(previous);
+
+            if (operation == GraphicsStore.LINE) {
+                handleG0n(out, state, "G01*");
+                appendOperation(out, state, x, y, 1);
+            } else {
+                // Same circle, opposite orientation
+                handleG0n(out, state, operation == GraphicsStore.ARC_CW ? "G03*" : "G02*");
+                long i = store.getX(vertex + 1) - state.x;
+                long j = store.getY(vertex + 1) - state.y;
+                appendArc(out, state, x, y, i, j);
+            }
+            state.setPoint(x, y);
+            vertex = previous;
+        }
+    }
+
+    private void handleD02(GerberOutput out, GraphicsState state, long x, long y) throws IOException {
+        // With modal coordinates, a move after a region is written because it sets the point
+        if (!state.hasPoint || x != state.x || y != state.y || (modalCoordinates && !state.hasGerberPoint)) {
+            appendOperation(out, state, x, y, 2);
+            state.setPoint(x, y);
+        } else {
+            state.redundantD02++;
+        }
+    }
+
+    /**
+     * Appends a D01, D02 or D03 operation. With modal coordinates, a coordinate equal to the
+     * one of the current point is left out, but at least one is always written.
+     */
+    private void appendOperation(GerberOutput out, GraphicsState state, long gerberX, long gerberY, int operation)
+            throws IOException {
+        if (modalCoordinates && state.hasGerberPoint) {
+            boolean writeX = gerberX != state.gerberX;
+            boolean writeY = gerberY != state.gerberY || !writeX;
+            out.appendOperation(gerberX, gerberY, writeX, writeY, operation);
+            countOmitted(state, gerberX, gerberY, writeX, writeY);
+        } else {
+            out.appendOperation(gerberX, gerberY, operation);
+        }
+        state.setGerberPoint(gerberX, gerberY);
+    }
+
+    /**
+     * Appends a circular D01 operation, the center offsets are always written
+     */
+    private void appendArc(GerberOutput out, GraphicsState state, long gerberX, long gerberY, long i, long j)
+            throws IOException {
+        if (modalCoordinates && state.hasGerberPoint) {
+            boolean writeX = gerberX != state.gerberX;
+            boolean writeY = gerberY != state.gerberY || !writeX;
+            out.appendArc(gerberX, gerberY, writeX, writeY, i, j);
+            countOmitted(state, gerberX, gerberY, writeX, writeY);
+        } else {
+            out.appendArc(gerberX, gerberY, i, j);
+        }
+        state.setGerberPoint(gerberX, gerberY);
+    }
+
+    private static void countOmitted(GraphicsState state, long x, long y, boolean writeX, boolean writeY) {
+        if (!writeX) {
+            state.omittedBytes += getCoordinateLength(x);
+        }
+        if (!writeY) {
+            state.omittedBytes += getCoordinateLength(y);
+        }
+    }
+
+    /**
+     * @return length of a coordinate with its letter, e.g. 4 for {@code X-12}
+     */
+    private static int getCoordinateLength(long value) {
+        int length = value < 0 ? 3 : 2;
+        for (long rest = Math.abs(value) / 10; rest > 0; rest /= 10) {
+            length++;
+        }
+        return length;
+    }
+
+    private static void handleG0n(GerberOutput out, GraphicsState state, String g0n) throws IOException {
+        if (!g0n.equals(state.g0n)) {
+            out.append(g0n).append('\n');
+            state.g0n = g0n;
+        }
+    }
+
+    private static class GraphicsState {
+        boolean hasPoint = false;
+        long x;  // nm
+        long y;
+        int dcode = -1; // no aperture selected yet
+        String g0n = null;
+        Boolean negative = null;
+        // Modal commands written and left out, for the statistics
+        long dcodeSwitches;
+        long polaritySwitches;
+        long redundantD02;
+        long omittedBytes;
+        // Point of the last operation written, in Gerber units; not known after a region
+        boolean hasGerberPoint = false;
+        long gerberX;
+        long gerberY;
+
+        void setPoint(long x, long y) {
+            this.hasPoint = true;
+            this.x = x;
+            this.y = y;
+        }
+
+        void setGerberPoint(long x, long y) {
+            this.hasGerberPoint = true;
+            this.gerberX = x;
+            this.gerberY = y;
+        }
+
+        /**
+         * @return this state followed by the parts of the state set in the summary
+         */
+        GraphicsState then(GraphicsState summary) {
+            GraphicsState state = new GraphicsState();
+            state.hasPoint = summary.hasPoint || hasPoint;
+            state.x = summary.hasPoint ? summary.x : x;
+            state.y = summary.hasPoint ? summary.y : y;
+            state.dcode = summary.dcode >= 0 ? summary.dcode : dcode;
+            state.g0n = summary.g0n != null ? summary.g0n : g0n;
+            state.negative = summary.negative != null ? summary.negative : negative;
+            state.hasGerberPoint = summary.hasPoint ? summary.hasGerberPoint : hasGerberPoint;
+            state.gerberX = summary.hasPoint ? summary.gerberX : gerberX;
+            state.gerberY = summary.hasPoint ? summary.gerberY : gerberY;
+            return state;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.bancika.gerberwriter;
+
+/**
+ * Axis-aligned rectangle in mm, including its edges
+ */
+public final class BoundingBox {
+    public final double minX;
+    public final double minY;
+    public final double maxX;
+    public final double maxY;
+
+    public BoundingBox(double minX, double minY, double maxX, double maxY) {
+        if (!(minX <= maxX) || !(minY <= maxY)) {
+            throw new IllegalArgumentException("Bounding box minimum must not be greater than its maximum");
+        }
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+    }
+
+    public double getMinX() {
+        return minX;
+    }
+
+    public double getMinY() {
+        return minY;
+    }
+
+    public double getMaxX() {
+        return maxX;
+    }
+
+    public double getMaxY() {
+        return maxY;
+    }
+
+    public double getWidth() {
+        return maxX - minX;
+    }
+
+    public double getHeight() {
+        return maxY - minY;
+    }
+
+    /**
+     * @return whether the boxes share at least one point, touching edges included
+     */
+    public boolean intersects(BoundingBox other) {
+        return minX <= other.maxX && other.minX <= maxX && minY <= other.maxY && other.minY <= maxY;
+    }
+
+    public boolean contains(Point point) {
+        return minX <= point.x && point.x <= maxX && minY <= point.y && point.y <= maxY;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        BoundingBox that = (BoundingBox) o;
+        return Double.compare(that.minX, minX) == 0 && Double.compare(that.minY, minY) == 0 &&
+                Double.compare(that.maxX, maxX) == 0 && Double.compare(that.maxY, maxY) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = Double.hashCode(minX);
+        result = 31 * result + Double.hashCode(minY);
+        result = 31 * result + Double.hashCode(maxX);
+        result = 31 * result + Double.hashCode(maxY);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BoundingBox(%.6f, %.6f, %.6f, %.6f)", minX, minY, maxX, maxY);
+    }
+}
@@ -0,0 +1,343 @@
+package com.bancika.gerberwriter;
+
+import com.bancika.gerberwriter.padmasters.AbstractPad;
+import com.bancika.gerberwriter.path.Path;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Collects the objects of a layer from many threads at once, then builds the
+ * {@link DataLayer} to write.
+ * <p>
+ * Every producer thread adds to a layer of its own, created on its first add, so adding
+ * shares no state between threads and validates objects exactly like {@link DataLayer}. A
+ * producer calls {@link #closeProducer()} once it is done, which hands its layer over to the
+ * builder. {@link #build()} merges the layers of all producers into one, ordered by the key
+ * set with {@link #setOrderKey(long)}, then by producer and then by the order each producer
+ * added its objects in. Producers that give every unit of work, such as a net, its own key
+ * get the same file however their threads are scheduled.
+ * <p>
+ * When the objects of one producer come first in that order, still in the order it added
+ * them, its layer becomes the built one and only the others are copied into it. The layer of every other producer is released
+ * as soon as its last object is copied.
+ * <p>
+ * Objects are added as to a layer with the default settings. Settings for writing, such as
+ * the object order or step and repeat, are made on the built layer.
+ */
+public class ConcurrentDataLayerBuilder {
+
+    private final String function;
+    private final boolean negative;
+    private final GenerationSoftware generationSoftware;
+    // Producers in the order of their first add
+    private final Queue<Producer> producers = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<Producer> threadProducer = new ThreadLocal<>();
+    private volatile boolean built;
+
+    public ConcurrentDataLayerBuilder(String function, boolean negative, GenerationSoftware generationSoftware) {
+        this.function = function;
+        this.negative = negative;
+        this.generationSoftware = generationSoftware;
+    }
+
+    /**
+     * Sets the key of the objects the calling thread adds from now on, 0 until it is set.
+     * Objects are written in ascending order of their keys.
+     */
+    public void setOrderKey(long key) {
+        producer().key = key;
+    }
+
+    public void addPad(AbstractPad master, Point position, double angle) {
+        Producer producer = producer();
+        int first = producer.layer.getObjectCount();
+        producer.layer.addPad(master, position, angle);
+        producer.added(first);
+    }
+
+    public void addPad(AbstractPad master, Point position) {
+        addPad(master, position, 0);
+    }
+
+    /**
+     * @see DataLayer#addPads(AbstractPad, double[], double[], double[])
+     */
+    public void addPads(AbstractPad master, double[] xs, double[] ys, double[] angles) {
+        Producer producer = producer();
+        int first = producer.layer.getObjectCount();
+        producer.layer.addPads(master, xs, ys, angles);
+        producer.added(first);
+    }
+
+    public void addPads(AbstractPad master, double[] xs, double[] ys) {
+        addPads(master, xs, ys, null);
+    }
+
+    /**
+     * @see DataLayer#addTracePolyline(double[], double, String, boolean)
+     */
+    public void addTracePolyline(double[] xy, double width, String function, boolean negative) {
+        Producer producer = producer();
+        int first = producer.layer.getObjectCount();
+        producer.layer.addTracePolyline(xy, width, function, negative);
+        producer.added(first);
+    }
+
+    /**
+     * @see DataLayer#addRegion(double[][], String, boolean)
+     */
+    public void addRegion(double[][] contours, String function, boolean negative) {
+        Producer producer = producer();
+        int first = producer.layer.getObjectCount();
+        producer.layer.addRegion(contours, function, negative);
+        producer.added(first);
+    }
+
+    public void addTraceLine(Point start, Point end, double width, String function, boolean negative) {
+        Producer producer = producer();
+        int first = producer.layer.getObjectCount();
+        producer.layer.addTraceLine(start, end, width, function, negative);
+        producer.added(first);
+    }
+
+    public void addTraceArc(Point start, Point end, Point center, String orientation,
+                            double width, String function, boolean negative) {
+        Producer producer = producer();
+        int first = producer.layer.getObjectCount();
+        producer.layer.addTraceArc(start, end, center, orientation, width, function, negative);
+        producer.added(first);
+    }
+
+    public void addTracesPath(Path path, double width, String function, boolean negative) {
+        Producer producer = producer();
+        int first = producer.layer.getObjectCount();
+        producer.layer.addTracesPath(path, width, function, negative);
+        producer.added(first);
+    }
+
+    public void addRegion(Path path, String function, boolean negative) {
+        Producer producer = producer();
+        int first = producer.layer.getObjectCount();
+        producer.layer.addRegion(path, function, negative);
+        producer.added(first);
+    }
+
+    /**
+     * Hands the objects the calling thread added over to the builder. Every thread that added
+     * objects or set a key must do so before {@link #build()}, after everything it added. A
+     * thread that adds again later becomes a new producer with the key 0, whose objects come
+     * after its earlier ones among equal keys. Does nothing if the thread added nothing since
+     * it was last closed.
+     */
+    public void closeProducer() {
+        Producer producer = threadProducer.get();
+        if (producer != null) {
+            // Publishes the layer of the producer to the thread that builds
+            producer.closed = true;
+            // Pooled threads outlive the builder and must not keep the layer
+            threadProducer.remove();
+        }
+    }
+
+    /**
+     * @return number of objects added by the closed producers, before the layer is built
+     */
+    public int getObjectCount() {
+        long count = 0;
+        for (Producer producer : producers) {
+            if (producer.closed) {
+                count += producer.layer.getObjectCount();
+            }
+        }
+        return Math.toIntExact(count);
+    }
+
+    /**
+     * Builds the layer with the objects of all producers, ordered by their keys, then by
+     * producer and then by the order they were added in. Can be called once, after every
+     * producer was closed, and no objects can be added after that.
+     *
+     * @throws IllegalStateException if a producer was not closed or the layer was already built
+     */
+    public synchronized DataLayer build() {
+        if (built) {
+            throw new IllegalStateException("The layer was already built");
+        }
+        // Producers that register from now on fail, so none are missed
+        built = true;
+        Producer[] closed = producers.toArray(new Producer[0]);
+        for (Producer producer : closed) {
+            if (!producer.closed) {
+                built = false;
+                throw new IllegalStateException("Every producer must be closed before the layer is built");
+            }
+        }
+        producers.clear();
+        long total = 0;
+        for (Producer producer : closed) {
+            total += producer.layer.getObjectCount();
+        }
+        if (total > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Too many objects for one layer: " + total);
+        }
+
+        // Runs of objects with the same key, in the order of the producers and of their adds,
+        // sorted by key, which keeps that order among equal keys
+        int runCount = 0;
+        for (Producer producer : closed) {
+            runCount += producer.runCount;
+        }
+        int[] runProducers = new int[runCount];
+        int[] runStarts = new int[runCount];
+        int[] runEnds = new int[runCount];
+        long[] runKeys = new long[runCount];
+        int[] firstRuns = new int[closed.length];
+        int run = 0;
+        for (int p = 0; p < closed.length; p++) {
+            Producer producer = closed[p];
+            firstRuns[p] = run;
+            for (int r = 0; r < producer.runCount; r++) {
+                runProducers[run] = p;
+                runStarts[run] = producer.runStarts[r];
+                runEnds[run] = r + 1 < producer.runCount ? producer.runStarts[r + 1] : producer.layer.getObjectCount();
+                runKeys[run] = producer.runKeys[r];
+                run++;
+            }
+        }
+        int[] order = new int[runCount];
+        for (int i = 0; i < runCount; i++) {
+            order[i] = i;
+        }
+        sortByKey(order, runKeys);
+        if (runCount == 0) {
+            return new DataLayer(function, negative, generationSoftware);
+        }
+
+        // The producer of the first run is taken over if all its runs come first, in the order
+        // it added them, which is the order of its objects in its layer
+        int adopted = runProducers[order[0]];
+        int adoptedRuns = closed[adopted].runCount;
+        for (int i = 0; i < adoptedRuns; i++) {
+            if (order[i] != firstRuns[adopted] + i) {
+                adopted = -1;
+                break;
+            }
+        }
+        DataLayer layer;
+        int next;
+        if (adopted >= 0) {
+            layer = closed[adopted].layer;
+            next = adoptedRuns;
+        } else {
+            layer = new DataLayer(function, negative, generationSoftware);
+            next = 0;
+        }
+        GraphicsStore store = layer.getGraphicsStore();
+        int[][] styleMaps = new int[closed.length][];
+        int[] copiedRuns = new int[closed.length];
+        for (int i = next; i < runCount; i++) {
+            run = order[i];
+            int p = runProducers[run];
+            GraphicsStore source = closed[p].layer.getGraphicsStore();
+            if (styleMaps[p] == null) {
+                styleMaps[p] = new int[source.getStyleCount()];
+                Arrays.fill(styleMaps[p], -1);
+            }
+            for (int object = runStarts[run]; object < runEnds[run]; object++) {
+                store.addObject(source, object, styleMaps[p]);
+            }
+            if (++copiedRuns[p] == closed[p].runCount) {
+                // All of its objects were copied
+                closed[p] = null;
+                styleMaps[p] = null;
+            }
+        }
+        return layer;
+    }
+
+    private Producer producer() {
+        Producer producer = threadProducer.get();
+        if (producer == null) {
+            checkNotBuilt();
+            producer = new Producer(new DataLayer(function, negative, generationSoftware));
+            producers.add(producer);
+            // The layer may have been built between the check and the registration
+            if (built) {
+                producers.remove(producer);
+                checkNotBuilt();
+            }
+            threadProducer.set(producer);
+        }
+        return producer;
+    }
+
+    private void checkNotBuilt() {
+        if (built) {
+            throw new IllegalStateException("Objects cannot be added after the layer was built");
+        }
+    }
+
+    /**
+     * Sorts the indices by their keys, keeping the order of equal keys, with a bottom-up merge sort
+     */
+    private static void sortByKey(int[] indices, long[] keys) {
+        int[] source = indices;
+        int[] target = new int[indices.length];
+        for (int width = 1; width < indices.length; width *= 2) {
+            for (int from = 0; from < indices.length; from += 2 * width) {
+                int middle = Math.min(from + width, indices.length);
+                int to = Math.min(from + 2 * width, indices.length);
+                int left = from;
+                int right = middle;
+                for (int i = from; i < to; i++) {
+                    if (right == to || (left < middle && keys[source[left]] <= keys[source[right]])) {
+                        target[i] = source[left++];
+                    } else {
+                        target[i] = source[right++];
+                    }
+                }
+            }
+            int[] swap = source;
+            source = target;
+            target = swap;
+        }
+        if (source != indices) {
+            System.arraycopy(source, 0, indices, 0, indices.length);
+        }
+    }
+
+    /**
+     * Objects added by one thread, with the key of every run of them added under the same key
+     */
+    private static final class Producer {
+        final DataLayer layer;
+        long key;
+        int[] runStarts = new int[4];
+        long[] runKeys = new long[4];
+        int runCount;
+        // Written by the producer after its last add
+        volatile boolean closed;
+
+        Producer(DataLayer layer) {
+            this.layer = layer;
+        }
+
+        /**
+         * Records the key of the objects added to the layer from the first one on
+         */
+        void added(int first) {
+            if (first == layer.getObjectCount() || (runCount > 0 && runKeys[runCount - 1] == key)) {
+                return;
+            }
+            if (runCount == runStarts.length) {
+                runStarts = Arrays.copyOf(runStarts, 2 * runCount);
+                runKeys = Arrays.copyOf(runKeys, 2 * runCount);
+            }
+            runStarts[runCount] = first;
+            runKeys[runCount] = key;
+            runCount++;
+        }
+    }
+}
@@ -1,88 +1,517 @@
 package com.bancika.gerberwriter;
 
 import com.bancika.gerberwriter.padmasters.*;
-import com.bancika.gerberwriter.path.*;
+import com.bancika.gerberwriter.GraphicsStore.PadStyle;
+import com.bancika.gerberwriter.GraphicsStore.RegionStyle;
+import com.bancika.gerberwriter.GraphicsStore.TraceStyle;
+import com.bancika.gerberwriter.path.Path;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 public class DataLayer {
 
-    private static final double TO_NM = 1_000_000; // convert user units (mm) to gerber coordinates (nm)
-    private static final int DECIMALS = 6;  // Max number of decimals in calculated Gerber AD parameters
-    private static final double TOLERANCE = 0.5e-3; // Smaller features can be simplified for more robust Gerber file
+    static final double TO_NM = 1_000_000; // convert user units (mm) to gerber coordinates (nm)
+    static final double TOLERANCE = 0.5e-3; // Smaller features can be simplified for more robust Gerber file
     
     private final String function;
     private final boolean negative;
-    private final List<GraphicsObject> graphicsObjectStream;
-    private Point pointMax;
-    private int[] integerDigits;
+    private final GraphicsStore graphicsObjectStream;
+    private final ApertureTemplateCache apertureTemplates;
+    private final boolean snapshot;
     private GenerationSoftware generationSoftware;
+    private ForkJoinPool encodingPool;
+    private GerberWriteListener writeListener;
+    private ObjectOrder objectOrder = ObjectOrder.INSERTION;
+    private boolean coalesceTraces;
+    private boolean modalCoordinates;
+    private boolean simplifyRegions;
+    private boolean fitArcs;
+    private boolean deduplicatePolygons;
+    private UserPolygonCatalog polygonCatalog; // created when polygons are first deduplicated
+    // Step and repeat, a single copy while both counts are 1
+    private int repeatXCount = 1;
+    private int repeatYCount = 1;
+    private double repeatXPitch;
+    private double repeatYPitch;
+    // Boxes of the objects, 4 values per object, and the index over them, both extended when queried
+    private long[] objectBounds = new long[0];
+    private int boundedObjects;
+    // Set while the boxes are shared with the layer this snapshot was taken of
+    private boolean sharedBounds;
+    private SpatialIndex spatialIndex;
 
     public DataLayer(String function, boolean negative, GenerationSoftware generationSoftware) {
         this.function = function;
         this.negative = negative;
-        this.graphicsObjectStream = new ArrayList<>();
-        this.pointMax = new Point(1, 1);
-        this.integerDigits = new int[]{0, 0};
+        this.graphicsObjectStream = new GraphicsStore();
+        this.apertureTemplates = new ApertureTemplateCache(ApertureTemplateCache.DEFAULT_CAPACITY);
         this.generationSoftware = generationSoftware;
+        this.snapshot = false;
+    }
+
+    private DataLayer(DataLayer source) {
+        this.function = source.function;
+        this.negative = source.negative;
+        this.graphicsObjectStream = source.graphicsObjectStream.snapshot();
+        this.apertureTemplates = source.apertureTemplates.copy();
+        this.snapshot = true;
+        this.generationSoftware = source.generationSoftware;
+        this.encodingPool = source.encodingPool;
+        this.writeListener = source.writeListener;
+        this.objectOrder = source.objectOrder;
+        this.coalesceTraces = source.coalesceTraces;
+        this.modalCoordinates = source.modalCoordinates;
+        this.simplifyRegions = source.simplifyRegions;
+        this.fitArcs = source.fitArcs;
+        this.deduplicatePolygons = source.deduplicatePolygons;
+        this.repeatXCount = source.repeatXCount;
+        this.repeatYCount = source.repeatYCount;
+        this.repeatXPitch = source.repeatXPitch;
+        this.repeatYPitch = source.repeatYPitch;
+        // The boxes of objects never change, so those computed so far are shared too
+        synchronized (source) {
+            this.objectBounds = source.objectBounds;
+            this.boundedObjects = source.boundedObjects;
+            this.sharedBounds = true;
+            this.spatialIndex = source.spatialIndex;
+        }
+    }
+
+    /**
+     * Takes a snapshot of the layer: a layer with the objects and settings of this one as they
+     * are now, which stays the same while objects are added to this one. The objects are not
+     * copied, the snapshot shares the storage of this layer, so taking one is cheap whatever
+     * the size of the layer. Snapshots can be written and queried from other threads, also
+     * several at once, while this layer is edited. Objects cannot be added to a snapshot,
+     * its settings can be changed without affecting this layer.
+     */
+    public DataLayer snapshot() {
+        return new DataLayer(this);
+    }
+
+    /**
+     * @return whether this layer is a {@link #snapshot()} of another one
+     */
+    public boolean isSnapshot() {
+        return snapshot;
     }
 
     public String getFunction() {
         return function;
     }
 
+    public boolean isNegative() {
+        return negative;
+    }
+
+    /**
+     * Sets the pool used to encode the body of large layers in parallel. The output is the
+     * same as when encoding on the calling thread, which is what happens when the pool is
+     * {@code null} (the default).
+     */
+    public void setEncodingPool(ForkJoinPool encodingPool) {
+        this.encodingPool = encodingPool;
+    }
+
+    /**
+     * Sets the listener that receives the statistics of every file written from this
+     * layer, or {@code null} (the default) to not collect them.
+     */
+    public void setWriteListener(GerberWriteListener writeListener) {
+        this.writeListener = writeListener;
+    }
+
+    /**
+     * Sets the order in which objects are written, {@link ObjectOrder#INSERTION} by default.
+     * Other orders group objects by aperture and shorten the moves between them, which makes
+     * the file smaller, without changing the image.
+     */
+    public void setObjectOrder(ObjectOrder objectOrder) {
+        if (objectOrder == null) {
+            throw new IllegalArgumentException("Object order cannot be null");
+        }
+        this.objectOrder = objectOrder;
+    }
+
+    /**
+     * Sets whether traces with the same width and attributes that share end points are
+     * written as one polyline, which leaves out the moves and aperture selections between
+     * them. Off by default. Traces are only joined with traces of the same polarity run, so
+     * the image does not change.
+     */
+    public void setCoalesceTraces(boolean coalesceTraces) {
+        this.coalesceTraces = coalesceTraces;
+    }
+
+    /**
+     * Sets whether X or Y coordinates that are the same as those of the current point are
+     * left out of D01, D02 and D03 operations, as Gerber allows. Off by default. Arc center
+     * offsets are always written, and the first operation after a region writes both
+     * coordinates.
+     */
+    public void setModalCoordinates(boolean modalCoordinates) {
+        this.modalCoordinates = modalCoordinates;
+    }
+
+    /**
+     * Sets whether vertices of region contours that are nearly collinear with their
+     * neighbours or nearly coincide with them are left out, as long as no contour moves by
+     * more than {@link #TOLERANCE}. Off by default. Arcs and the points where they start and
+     * end are always written. With an encoding pool, regions are simplified in parallel.
+     */
+    public void setSimplifyRegions(boolean simplifyRegions) {
+        this.simplifyRegions = simplifyRegions;
+    }
+
+    /**
+     * Sets whether runs of line segments of traces and regions added from now on whose
+     * vertices lie on a common circle within {@link #TOLERANCE} are stored as arcs, see
+     * {@link Path#fitArcs(double)}. Off by default.
+     */
+    public void setFitArcs(boolean fitArcs) {
+        this.fitArcs = fitArcs;
+    }
+
+    /**
+     * Sets whether pads added from now on whose {@link UserPolygon} masters are congruent to
+     * the master of an earlier pad, the same shape moved or rotated, are added as pads of
+     * that master instead, moved and rotated to cover the same area. They then share its
+     * macro and, under the same angle, its aperture. Off by default. Masters are compared
+     * within {@link UserPolygonCatalog#QUANTUM} and must have the same function and polarity.
+     */
+    public void setDeduplicatePolygons(boolean deduplicatePolygons) {
+        this.deduplicatePolygons = deduplicatePolygons;
+        if (deduplicatePolygons && polygonCatalog == null) {
+            polygonCatalog = new UserPolygonCatalog();
+        }
+    }
+
+    /**
+     * Sets the resolution in degrees that pad angles are rounded to when apertures are
+     * defined, {@code 1e-6} by default, the precision of the angles written. A coarser
+     * resolution lets pads whose angles differ by less, such as 45 and 44.9999 degrees,
+     * share an aperture. Powers of ten give exact rounded angles.
+     */
+    public void setAngleResolution(double angleResolution) {
+        if (!(angleResolution > 0) || Double.isInfinite(angleResolution)) {
+            throw new IllegalArgumentException("Angle resolution must be positive");
+        }
+        apertureTemplates.setAngleResolution(angleResolution);
+    }
+
+    /**
+     * Writes the layer as a panel of copies in a step and repeat block ({@code %SR}), so the
+     * objects are stored and written only once. The copy at the origin is the layer itself,
+     * the others are shifted by multiples of the pitches. Counts of 1 and 1 (the default)
+     * write a single copy without the block.
+     *
+     * @param xCount number of copies along X, at least 1
+     * @param yCount number of copies along Y, at least 1
+     * @param xPitch distance between copies along X in mm, not negative
+     * @param yPitch distance between copies along Y in mm, not negative
+     * @throws IllegalArgumentException if the panel does not fit in the 6 integer digits of
+     *                                  the coordinates; objects added later are checked when
+     *                                  the layer is written
+     */
+    public void setStepAndRepeat(int xCount, int yCount, double xPitch, double yPitch) {
+        if (xCount < 1 || yCount < 1) {
+            throw new IllegalArgumentException("Repeat counts must be at least 1");
+        }
+        if (!(xPitch >= 0) || !(yPitch >= 0)) {
+            throw new IllegalArgumentException("Repeat pitches must not be negative");
+        }
+        // The panel, with the objects added so far, must fit in the coordinate format
+        double panelX = graphicsObjectStream.getMaxAbsX() / TO_NM + (xCount - 1) * xPitch;
+        double panelY = graphicsObjectStream.getMaxAbsY() / TO_NM + (yCount - 1) * yPitch;
+        if (!(panelX < GraphicsStore.MAX_COORDINATE) || !(panelY < GraphicsStore.MAX_COORDINATE)) {
+            throw new IllegalArgumentException("Step and repeat panel out of range: " + panelX + " x " + panelY);
+        }
+        this.repeatXCount = xCount;
+        this.repeatYCount = yCount;
+        this.repeatXPitch = xPitch;
+        this.repeatYPitch = yPitch;
+    }
+
     // Add methods
     public void addPad(AbstractPad master, Point position, double angle) {
+        checkNotSnapshot();
         validatePadMaster(master);
-        graphicsObjectStream.add(new Pad(master, position, angle));
-        updatePointMax(position);
+        if (deduplicatePolygons && master instanceof UserPolygon) {
+            UserPolygonCatalog.Placement placement = polygonCatalog.place((UserPolygon) master);
+            Point offset = Point.rotate(new Point(placement.offsetX, placement.offsetY), angle);
+            master = placement.master;
+            position = new Point(position.x + offset.x, position.y + offset.y);
+            angle += placement.angle;
+        }
+        graphicsObjectStream.addPad(master, angle,
+                GraphicsStore.toNanometres(position.x), GraphicsStore.toNanometres(position.y));
     }
 
     public void addPad(AbstractPad master, Point position) {
         addPad(master, position, 0);
     }
 
-    public void addTraceLine(Point start, Point end, double width, String function, boolean negative) {
+    /**
+     * Adds one pad per position. The master is validated once and no {@link Point} is created,
+     * so this is much faster than adding the pads one by one. Nothing is added if any of the
+     * positions is out of range.
+     *
+     * @param xs     X coordinates of the pads
+     * @param ys     Y coordinates of the pads, as many as X coordinates
+     * @param angles angle of every pad, or {@code null} if the pads are not rotated
+     */
+    public void addPads(AbstractPad master, double[] xs, double[] ys, double[] angles) {
+        checkNotSnapshot();
+        validatePadMaster(master);
+        if (xs.length != ys.length || (angles != null && angles.length != xs.length)) {
+            throw new IllegalArgumentException("Coordinate and angle arrays must have the same length");
+        }
+        if (deduplicatePolygons && master instanceof UserPolygon) {
+            UserPolygonCatalog.Placement placement = polygonCatalog.place((UserPolygon) master);
+            if (placement.master != master) {
+                double[] placedXs = new double[xs.length];
+                double[] placedYs = new double[ys.length];
+                double[] placedAngles = new double[xs.length];
+                for (int i = 0; i < xs.length; i++) {
+                    double angle = angles == null ? 0 : angles[i];
+                    Point offset = Point.rotate(new Point(placement.offsetX, placement.offsetY), angle);
+                    placedXs[i] = xs[i] + offset.x;
+                    placedYs[i] = ys[i] + offset.y;
+                    placedAngles[i] = angle + placement.angle;
+                }
+                master = placement.master;
+                xs = placedXs;
+                ys = placedYs;
+                angles = placedAngles;
+            }
+        }
+        graphicsObjectStream.addPads(master, angles, xs, ys);
+    }
+
+    public void addPads(AbstractPad master, double[] xs, double[] ys) {
+        addPads(master, xs, ys, null);
+    }
+
+    /**
+     * Adds a trace through the points, the same as a {@link Path} with a moveTo to the first
+     * point and a lineTo to each of the others.
+     *
+     * @param xy interleaved coordinates {@code x0, y0, x1, y1, ...} of at least two points
+     */
+    public void addTracePolyline(double[] xy, double width, String function, boolean negative) {
+        checkNotSnapshot();
         validateTraceParameters(width, function);
+        validatePolyline(xy);
+        if (fitArcs) {
+            addTracesPath(toPath(new double[][]{xy}), width, function, negative);
+            return;
+        }
+        graphicsObjectStream.addPolylines(GraphicsStore.TRACES, getTraceStyle(width, function, negative),
+                new double[][]{xy});
+    }
 
-        Path line = new Path();
-        line.moveTo(start);
-        line.lineTo(end);
-        graphicsObjectStream.add(new TracesPath(line, width, function, negative));
+    /**
+     * Adds a region bounded by the contours, the same as a {@link Path} with one closed
+     * subpath per contour.
+     *
+     * @param contours interleaved coordinates {@code x0, y0, x1, y1, ...} of every contour,
+     *                 the last point of a contour must be equal to its first point
+     */
+    public void addRegion(double[][] contours, String function, boolean negative) {
+        checkNotSnapshot();
+        if (contours.length == 0) {
+            throw new IllegalArgumentException("Region must have at least one contour");
+        }
+        for (double[] xy : contours) {
+            validatePolyline(xy);
+            int last = xy.length - 2;
+            if (Double.compare(xy[0], xy[last]) != 0 || Double.compare(xy[1], xy[last + 1]) != 0) {
+                throw new IllegalArgumentException("Some subpaths are not closed");
+            }
+        }
+        if (function == null) {
+            throw new IllegalArgumentException("Function cannot be null");
+        }
+        if (fitArcs) {
+            addRegion(toPath(contours), function, negative);
+            return;
+        }
+        graphicsObjectStream.addPolylines(GraphicsStore.REGION,
+                graphicsObjectStream.getStyleIndex(new RegionStyle(function, negative)), contours);
+    }
 
-        updatePointMax(line.getPointMax());
+    public void addTraceLine(Point start, Point end, double width, String function, boolean negative) {
+        checkNotSnapshot();
+        validateTraceParameters(width, function);
+        long startX = GraphicsStore.toNanometres(start.x);
+        long startY = GraphicsStore.toNanometres(start.y);
+        long endX = GraphicsStore.toNanometres(end.x);
+        long endY = GraphicsStore.toNanometres(end.y);
+
+        graphicsObjectStream.beginObject(GraphicsStore.TRACES, getTraceStyle(width, function, negative));
+        graphicsObjectStream.addVertex(GraphicsStore.MOVE, startX, startY);
+        graphicsObjectStream.addVertex(GraphicsStore.LINE, endX, endY);
     }
 
     public void addTraceArc(Point start, Point end, Point center, String orientation,
                             double width, String function, boolean negative) {
+        checkNotSnapshot();
         validateTraceParameters(width, function);
-
-        Path arc = new Path();
-        arc.moveTo(start);
-        arc.arcTo(end, center, orientation);
-        graphicsObjectStream.add(new TracesPath(arc, width, function, negative));
-
-        updatePointMax(arc.getPointMax());
+        Path.validateArc(start, end, center, orientation);
+        long startX = GraphicsStore.toNanometres(start.x);
+        long startY = GraphicsStore.toNanometres(start.y);
+        long endX = GraphicsStore.toNanometres(end.x);
+        long endY = GraphicsStore.toNanometres(end.y);
+        long centerX = GraphicsStore.toNanometres(center.x);
+        long centerY = GraphicsStore.toNanometres(center.y);
+
+        graphicsObjectStream.beginObject(GraphicsStore.TRACES, getTraceStyle(width, function, negative));
+        graphicsObjectStream.addVertex(GraphicsStore.MOVE, startX, startY);
+        graphicsObjectStream.addVertex(orientation.equals("-") ? GraphicsStore.ARC_CW : GraphicsStore.ARC_CCW,
+                endX, endY);
+        graphicsObjectStream.addVertex(GraphicsStore.CENTER, centerX, centerY);
     }
 
     public void addTracesPath(Path path, double width, String function, boolean negative) {
+        checkNotSnapshot();
         validateTraceParameters(width, function);
-        graphicsObjectStream.add(new TracesPath(path, width, function, negative));
-        updatePointMax(path.getPointMax());
+        graphicsObjectStream.addPath(GraphicsStore.TRACES, getTraceStyle(width, function, negative),
+                fitArcs ? path.fitArcs(TOLERANCE) : path);
     }
 
     public void addRegion(Path path, String function, boolean negative) {
+        checkNotSnapshot();
         if (!path.isContour()) {
             throw new IllegalArgumentException("Some subpaths are not closed");
         }
-        graphicsObjectStream.add(new Region(path, function, negative));
-        updatePointMax(path.getPointMax());
+        if (function == null) {
+            throw new IllegalArgumentException("Function cannot be null");
+        }
+        graphicsObjectStream.addPath(GraphicsStore.REGION,
+                graphicsObjectStream.getStyleIndex(new RegionStyle(function, negative)),
+                fitArcs ? path.fitArcs(TOLERANCE) : path);
+    }
+
+    private static Path toPath(double[][] polylines) {
+        Path path = new Path();
+        for (double[] xy : polylines) {
+            path.moveTo(new Point(xy[0], xy[1]));
+            for (int i = 2; i < xy.length; i += 2) {
+                path.lineTo(new Point(xy[i], xy[i + 1]));
+            }
+        }
+        return path;
+    }
+
+    private int getTraceStyle(double width, String function, boolean negative) {
+        return graphicsObjectStream.getStyleIndex(new TraceStyle(width, function, negative));
+    }
+
+    /**
+     * @return store of the objects of the layer, to be read or appended to by other classes
+     * of the package
+     */
+    GraphicsStore getGraphicsStore() {
+        return graphicsObjectStream;
+    }
+
+    // Spatial queries
+
+    /**
+     * @return number of objects in the layer, which are numbered from 0 in the order they were added
+     */
+    public int getObjectCount() {
+        return graphicsObjectStream.size();
+    }
+
+    /**
+     * @return box of the object, including the size of its aperture and the bulges of its arcs
+     */
+    public BoundingBox getBounds(int object) {
+        if (object < 0 || object >= graphicsObjectStream.size()) {
+            throw new IllegalArgumentException("Object index out of range: " + object);
+        }
+        getSpatialIndex();
+        return toBoundingBox(objectBounds, 4 * object);
+    }
+
+    /**
+     * @return box of all objects of the layer, without step and repeat, or {@code null} if
+     * the layer is empty
+     */
+    public BoundingBox getBounds() {
+        long[] bounds = getSpatialIndex().getBounds();
+        return bounds != null ? toBoundingBox(bounds, 0) : null;
+    }
+
+    /**
+     * Finds the objects whose boxes ({@link #getBounds(int)}) share at least one point with
+     * the window. The first query after objects were added computes the boxes of the new
+     * objects. Up to about the square root of the indexed objects are then checked one by one
+     * by every query, more are packed into the index with all others, so adding objects
+     * between queries does not pack the index every time.
+     *
+     * @return indices of the objects in ascending order
+     */
+    public int[] findObjects(BoundingBox window) {
+        // Rounded to whole nanometres like the coordinates of the objects
+        return getSpatialIndex().query(Math.round(window.minX * TO_NM), Math.round(window.minY * TO_NM),
+                Math.round(window.maxX * TO_NM), Math.round(window.maxY * TO_NM));
+    }
+
+    /**
+     * Finds the object whose box ({@link #getBounds(int)}) is nearest to the point, see
+     * {@link #findObjects(BoundingBox)}. Objects whose boxes contain the point are at
+     * distance 0.
+     *
+     * @return index of the object, the lowest one when several are equally near, or -1 if
+     * the layer is empty
+     */
+    public int findNearestObject(Point point) {
+        return getSpatialIndex().nearest(Math.round(point.x * TO_NM), Math.round(point.y * TO_NM));
+    }
+
+    // Synchronized so that a snapshot can be queried from several threads
+    private synchronized SpatialIndex getSpatialIndex() {
+        int objects = graphicsObjectStream.size();
+        if (spatialIndex == null || spatialIndex.size() != objects) {
+            // Objects never change once added, so only the boxes of the new ones are computed
+            if (4 * objects > objectBounds.length || sharedBounds) {
+                // The layer a snapshot was taken of writes past the boxes the snapshot knows
+                objectBounds = Arrays.copyOf(objectBounds,
+                        Math.max(4 * objects, objectBounds.length + (objectBounds.length >> 1)));
+                sharedBounds = false;
+            }
+            ObjectBounds bounds = new ObjectBounds(graphicsObjectStream, apertureTemplates);
+            for (int object = boundedObjects; object < objects; object++) {
+                bounds.compute(object, objectBounds, 4 * object);
+            }
+            boundedObjects = objects;
+            spatialIndex = spatialIndex == null ? SpatialIndex.build(objectBounds, objects)
+                    : spatialIndex.extend(objectBounds, objects);
+        }
+        return spatialIndex;
+    }
+
+    private static BoundingBox toBoundingBox(long[] bounds, int offset) {
+        return new BoundingBox(bounds[offset] / TO_NM, bounds[offset + 1] / TO_NM,
+                bounds[offset + 2] / TO_NM, bounds[offset + 3] / TO_NM);
+    }
+
+    ApertureTemplateCache getApertureTemplates() {
+        return apertureTemplates;
     }
 
     /**
@@ -186,6 +615,15 @@ public class DataLayer {
             if (roundedThermal.getFunction() == null || roundedThermal.getFunction().isEmpty()) {
                 throw new IllegalArgumentException("RoundedThermal function must not be empty");
             }
+            // Fails here rather than when the layer is written if the gap cannot be rounded
+            apertureTemplates.roundedThermals.solve(roundedThermal.getOuterDiameter(),
+                    roundedThermal.getInnerDiameter(), roundedThermal.getGap());
+        }
+        else if (master instanceof RegularPolygon) {
+            RegularPolygon polygon = (RegularPolygon) master;
+            if (polygon.getFunction().isEmpty()) {
+                throw new IllegalArgumentException("RegularPolygon function must not be empty");
+            }
         }
         else if (master instanceof UserPolygon) {
             UserPolygon polygon = (UserPolygon) master;
@@ -202,6 +640,25 @@ public class DataLayer {
                 throw new IllegalArgumentException("UserPolygon must be closed (first point must equal last point)");
             }
         }
+        else if (master instanceof BlockAperture) {
+            BlockAperture block = (BlockAperture) master;
+            if (block.getElements().isEmpty()) {
+                throw new IllegalArgumentException("BlockAperture must not be empty");
+            }
+            if (block.getFunction().isEmpty()) {
+                throw new IllegalArgumentException("BlockAperture function must not be empty");
+            }
+            for (BlockAperture.Element element : block.getElements()) {
+                if (element.getMaster() != null) {
+                    validatePadMaster(element.getMaster());
+                    GraphicsStore.validatePoint(element.getPosition());
+                } else {
+                    GraphicsStore.validatePath(element.getPath());
+                }
+            }
+            // Its compiled contents are cached from now on
+            block.freeze();
+        }
         else {
             throw new IllegalArgumentException("Unknown pad master type: " + master.getClass().getName());
         }
@@ -216,22 +673,36 @@ public class DataLayer {
         }
     }
 
-    private void updatePointMax(Point newPoint) {
-        pointMax = new Point(
-                Math.max(Math.abs(newPoint.x), pointMax.x),
-                Math.max(Math.abs(newPoint.y), pointMax.y)
-        );
+    private static void validatePolyline(double[] xy) {
+        if (xy.length < 4 || xy.length % 2 != 0) {
+            throw new IllegalArgumentException("Polyline must have an even number of coordinates of at least two points");
+        }
+    }
+
+    private boolean isRepeated() {
+        return repeatXCount > 1 || repeatYCount > 1;
+    }
 
-        // Update integer digits
-        integerDigits = new int[]{
-                Math.max(1 + (int) Math.log10(pointMax.x), 3),
-                Math.max(1 + (int) Math.log10(pointMax.y), 3)
-        };
+    /**
+     * @param blockExtent largest absolute coordinate in the blocks of the file, in nanometres
+     * @return number of integer digits of the coordinates of the whole panel, at least 3
+     */
+    private int getIntegerDigits(GraphicsStore store, long blockExtent) {
+        double maxX = store.getMaxAbsX() / TO_NM + (repeatXCount - 1) * repeatXPitch;
+        double maxY = store.getMaxAbsY() / TO_NM + (repeatYCount - 1) * repeatYPitch;
+        // Objects may have been added after the step and repeat was set
+        if (!(maxX < GraphicsStore.MAX_COORDINATE) || !(maxY < GraphicsStore.MAX_COORDINATE)) {
+            throw new IllegalStateException("Step and repeat panel out of range: " + maxX + " x " + maxY);
+        }
+        double max = Math.max(Math.max(maxX, maxY), blockExtent / TO_NM);
+        return Math.max(1 + (int) Math.log10(Math.max(max, 1)), 3);
     }
 
     // Gerber generation
     public void dumpGerberToFile(String filePath) throws IOException {
-        Files.write(Paths.get(filePath), dumpGerberToString().getBytes());
+        try (OutputStream out = Files.newOutputStream(Paths.get(filePath))) {
+            dumpGerber(out);
+        }
     }
 
     public String dumpGerberToString() {
@@ -239,577 +710,476 @@ public class DataLayer {
     }
 
     public String dumpGerberToString(LocalDateTime now) {
-        StringBuilder commands = new StringBuilder();
-        Map<String, Integer> apertures = new HashMap<>();
-        Set<String> macros = new HashSet<>();
-        Map<UserPolygon, String> polygons = new HashMap<>();
-        AtomicInteger generateDcode = new AtomicInteger(10);
-        AtomicInteger generatePolygonNumber = new AtomicInteger(1);
-        
-        GraphicsState state = new GraphicsState();
-
-        // Header
-        commands.append(String.format("G04 #@! TF.CreationDate,%s*\n",
-                now.format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))));
-        
-        if (!function.isEmpty()) {
-            commands.append(String.format("G04 #@! TF.FileFunction,%s*\n", function));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            dumpGerber(out, now);
+        } catch (IOException e) {
+            // ByteArrayOutputStream never throws
+            throw new UncheckedIOException(e);
         }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
 
-        commands.append(String.format("G04 #@! TF.FilePolarity,%s*\n",
-                negative ? "Negative" : "Positive"));
+    /**
+     * Writes the Gerber file to the given stream. Commands are encoded and flushed as they
+     * are generated, so memory use does not grow with the size of the layer.
+     * The stream is flushed but not closed.
+     */
+    public void dumpGerber(OutputStream out) throws IOException {
+        dumpGerber(out, LocalDateTime.now());
+    }
 
-        // Generation software
-        if (generationSoftware.getVendor() != null && !generationSoftware.getVendor().isEmpty() &&
-                generationSoftware.getApplication() != null && !generationSoftware.getApplication().isEmpty() &&
-                generationSoftware.getVersion() != null && !generationSoftware.getVersion().isEmpty()) {
+    public void dumpGerber(OutputStream out, LocalDateTime now) throws IOException {
+        GerberOutput output = new GerberOutput(out);
+        writeGerber(output, now, graphicsObjectStream, encodingPool);
+        output.flush();
+    }
 
-            commands.append(String.format("G04 #@! TF.GenerationSoftware,%s,%s,%s*\n",
-                    generationSoftware.getVendor(),
-                    generationSoftware.getApplication(),
-                    generationSoftware.getVersion()));
-        }
+    /**
+     * Writes the Gerber file to the given channel, see {@link #dumpGerber(OutputStream)}.
+     * The channel is not closed.
+     */
+    public void dumpGerber(WritableByteChannel channel) throws IOException {
+        dumpGerber(channel, LocalDateTime.now());
+    }
 
-        commands.append("%MOMM*%\n");
+    public void dumpGerber(WritableByteChannel channel, LocalDateTime now) throws IOException {
+        GerberOutput output = new GerberOutput(channel);
+        writeGerber(output, now, graphicsObjectStream, encodingPool);
+        output.flush();
+    }
 
-        // Format specification
-        int maxIntegerDigits = Math.max(integerDigits[0], integerDigits[1]);
-        commands.append(String.format("%%FSLAX%d6Y%d6*%%\n", maxIntegerDigits, maxIntegerDigits));
-        commands.append("G75*\n");
-        
-        List<String> bodyCommands = new ArrayList<>();
-        List<String> adCommands = new ArrayList<>();
-        // Process graphics objects
-        for (GraphicsObject obj : graphicsObjectStream) {
-            if (obj instanceof Pad) {
-                processPad((Pad)obj, bodyCommands, adCommands, apertures, polygons, generatePolygonNumber, macros, state, generateDcode);
-            } else if (obj instanceof Region) {
-                processRegion((Region)obj, bodyCommands, state);
-            } else if (obj instanceof TracesPath) {
-                processTracesPath((TracesPath)obj, bodyCommands, adCommands, apertures, state, generateDcode);
-            }
-        }
-
-        // Write macro commands in sorted order for predictable output
-        List<String> sortedMacros = new ArrayList<>(macros);
-        Collections.sort(sortedMacros);
-        for (String macro : sortedMacros) {
-            commands.append(macro).append('\n');
-        }
-        
-        // Write aperture definition commands
-        for (String adCommand : adCommands) {
-            commands.append(adCommand).append('\n');
+    /**
+     * Writes a Gerber file with only the objects of the window, chosen by their boxes as
+     * given by the boundary. The objects are found with the spatial index, so the cost
+     * depends on the objects in the window rather than on the size of the layer. Objects
+     * keep their coordinates and their order.
+     *
+     * @throws IllegalStateException if the layer is written with step and repeat
+     */
+    public void dumpGerberWindow(OutputStream out, BoundingBox window, TileBoundary boundary) throws IOException {
+        dumpGerberWindow(out, window, boundary, LocalDateTime.now());
+    }
+
+    public void dumpGerberWindow(OutputStream out, BoundingBox window, TileBoundary boundary, LocalDateTime now)
+            throws IOException {
+        checkNotRepeated();
+        int[] objects = selectObjects(Math.round(window.minX * TO_NM), Math.round(window.minY * TO_NM),
+                Math.round(window.maxX * TO_NM), Math.round(window.maxY * TO_NM), boundary);
+        writeObjects(out, objects, now, encodingPool);
+    }
+
+    public String dumpGerberWindowToString(BoundingBox window, TileBoundary boundary, LocalDateTime now) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            dumpGerberWindow(out, window, boundary, now);
+        } catch (IOException e) {
+            // ByteArrayOutputStream never throws
+            throw new UncheckedIOException(e);
         }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
 
-        // Write body commands (D01/02/03, G01/02/03, G36/G37)
-        for (String bodyCommand : bodyCommands) {
-            commands.append(bodyCommand).append('\n');
+    /**
+     * Splits the box of the layer into a grid of tiles, starting at its lower left corner,
+     * and writes every tile with objects to its own file, {@code tile_<column>_<row>.gbr} in
+     * the directory. Tiles are exported like {@link #dumpGerberWindow} windows. With an
+     * encoding pool the tiles are written in parallel, and the write listener is called from
+     * the threads of the pool.
+     *
+     * @param tileWidth  width of the tiles in mm
+     * @param tileHeight height of the tiles in mm
+     * @return paths of the files, by row and then by column
+     * @throws IllegalStateException if the layer is written with step and repeat
+     */
+    public List<String> dumpGerberTiles(String directory, double tileWidth, double tileHeight,
+                                        TileBoundary boundary, LocalDateTime now) throws IOException {
+        long width = Math.round(tileWidth * TO_NM);
+        long height = Math.round(tileHeight * TO_NM);
+        if (!(width > 0) || !(height > 0)) {
+            throw new IllegalArgumentException("Tile size must be positive");
         }
-        
-        // End of file
-        commands.append("M02*\n");
-
-        return commands.toString();
-    }
-
-    private void processPad(Pad pad, List<String> bodyCommands, List<String> adCommands, Map<String, Integer> apertures,
-                            Map<UserPolygon, String> polygons,  // Added polygons parameter
-                            AtomicInteger generatePolygonNumber,  // Added counter parameter
-                            Set<String> macros, GraphicsState state, AtomicInteger generateDcode) {
-        if (pad.master instanceof Circle) {
-            Circle circle = (Circle) pad.master;
-            String shape = String.format("Circle,%f", circle.getDiameter());
-            String adBody = String.format("C,%f", circle.getDiameter());
-            handleFlash(shape, adBody, circle.getFunction(), circle.isNegative(),
-                    pad.position, bodyCommands, adCommands, apertures, state, generateDcode);
-
-        } else if (pad.master instanceof Rectangle) {
-            Rectangle rect = (Rectangle) pad.master;
-            String shape = String.format("Rectangle,%f,%f,%f",
-                    rect.getXSize(), rect.getYSize(), pad.angle);
-
-            String adBody;
-            if (pad.angle % 180 == 0) {
-                adBody = String.format("R,%fX%f", rect.getXSize(), rect.getYSize());
-            } else {
-                macros.add(GerberMacros.MACRO_RECTANGLE);
-                adBody = String.format("Rectangle,%fX%fX%f",
-                        rect.getXSize()/2, rect.getYSize()/2, pad.angle);
-            }
-            handleFlash(shape, adBody, rect.getFunction(), rect.isNegative(),
-                    pad.position, bodyCommands, adCommands, apertures, state, generateDcode);
-
-        } else if (pad.master instanceof RoundedRectangle) {
-            RoundedRectangle rounded = (RoundedRectangle) pad.master;
-            double xSize = rounded.getXSize();
-            double ySize = rounded.getYSize();
-            double radius = rounded.getRadius();
-            double angle = pad.angle;
-
-            String shape = String.format("RoundedRectangle,%f,%f,%f,%f",
-                    xSize, ySize, radius, angle);
-
-            String adBody;
-            if ((Math.min(xSize, ySize) - 2*radius < TOLERANCE) && (angle % 90 == 0)) {
-                // Becomes obround
-                adBody = String.format("O,%fX%f", xSize, ySize);
-            } else {
-                macros.add(GerberMacros.MACRO_ROUNDED_RECTANGLE);
-                double xc = xSize/2 - radius;
-                double yc = ySize/2 - radius;
-                Point centerQ1 = Point.rotate(new Point(+xc, yc), angle);
-                Point centerQ2 = Point.rotate(new Point(-xc, yc), angle);
-
-                adBody = String.format("RoundedRectangle,%fX%fX%fX%fX%fX%fX%fX%fX%fX%f",
-                        round(xSize/2), round(ySize/2),
-                        round(xc), round(yc),
-                        round(angle), round(2*radius),
-                        round(centerQ1.x), round(centerQ1.y),
-                        round(centerQ2.x), round(centerQ2.y));
-            }
-            handleFlash(shape, adBody, rounded.getFunction(), rounded.isNegative(),
-                    pad.position, bodyCommands, adCommands, apertures, state, generateDcode);
-
-        } else if (pad.master instanceof ChamferedRectangle) {
-            ChamferedRectangle chamfered = (ChamferedRectangle) pad.master;
-            String shape = String.format("ChamferedRectangle,%f,%f,%f,%f",
-                    chamfered.getXSize(), chamfered.getYSize(),
-                    chamfered.getCutoff(), pad.angle);
-
-            macros.add(GerberMacros.MACRO_CHAMFERED_RECTANGLE);
-            String adBody = String.format("ChamferedRectangle,%fX%fX%fX%fX%f",
-                    chamfered.getXSize()/2,
-                    chamfered.getYSize()/2,
-                    chamfered.getXSize()/2 - chamfered.getCutoff(),
-                    chamfered.getYSize()/2 - chamfered.getCutoff(),
-                    pad.angle);
-
-            handleFlash(shape, adBody, chamfered.getFunction(), chamfered.isNegative(),
-                    pad.position, bodyCommands, adCommands, apertures, state, generateDcode);
-
-        } else if (pad.master instanceof Thermal) {
-            Thermal thermal = (Thermal) pad.master;
-            String shape = String.format("Thermal,%f,%f,%f,%f",
-                    thermal.getOuterDiameter(), thermal.getInnerDiameter(),
-                    thermal.getGap(), pad.angle);
-
-            macros.add(GerberMacros.MACRO_THERMAL);
-            String adBody = String.format("Thermal,%fX%fX%fX%f",
-                    thermal.getOuterDiameter(),
-                    thermal.getInnerDiameter(),
-                    thermal.getGap(),
-                    pad.angle);
-
-            handleFlash(shape, adBody, thermal.getFunction(), thermal.isNegative(),
-                    pad.position, bodyCommands, adCommands, apertures, state, generateDcode);
-
-        } else if (pad.master instanceof RoundedThermal) {
-            RoundedThermal rounded = (RoundedThermal) pad.master;
-            String shape = String.format("RoundedThermal,%f,%f,%f,%f",
-                    rounded.getOuterDiameter(), rounded.getInnerDiameter(),
-                    rounded.getGap(), pad.angle);
-
-            macros.add(GerberMacros.MACRO_ROUNDED_THERMAL);
-
-            // Calculate parameters for the rounded thermal
-            double outerDiameter = rounded.getOuterDiameter();
-            double innerDiameter = rounded.getInnerDiameter();
-            double gapGiven = rounded.getGap();
-            double angle = pad.angle;
-
-            // Complex gap and rounding calculations
-            RoundedThermalParams params = calculateRoundedThermalParams(
-                    outerDiameter, innerDiameter, gapGiven);
-
-            String adBody = String.format("RoundedThermal,%fX%fX%fX%fX%fX%fX%fX%fX%fX%f",
-                    round(outerDiameter),
-                    round(innerDiameter),
-                    round(params.gapPrimitive),
-                    round(angle),
-                    round(params.roundingDiameter),
-                    round(params.centerH.x),
-                    round(params.centerH.y),
-                    round(params.centerV.x),
-                    round(params.centerV.y),
-                    round(innerDiameter));
-
-            handleFlash(shape, adBody, rounded.getFunction(), rounded.isNegative(),
-                    pad.position, bodyCommands, adCommands, apertures, state, generateDcode);
-
-        } else if (pad.master instanceof RegularPolygon) {
-            RegularPolygon polygon = (RegularPolygon) pad.master;
-            String shape = String.format("RegularPolygon,%f,%d,%f",
-                    polygon.getOuterDiameter(), polygon.getVertices(), pad.angle);
-
-            String adBody = String.format("P,%fX%dX%f",
-                    polygon.getOuterDiameter(),
-                    polygon.getVertices(),
-                    pad.angle);
-
-            handleFlash(shape, adBody, polygon.getFunction(), polygon.isNegative(),
-                    pad.position, bodyCommands, adCommands, apertures, state, generateDcode);
-
-        } else if (pad.master instanceof UserPolygon) {
-            UserPolygon userPoly = (UserPolygon) pad.master;
-            String macroName = polygons.get(userPoly);
-
-            if (macroName == null) {
-                macroName = "UserPolygon_" + generatePolygonNumber.getAndIncrement();
-                polygons.put(userPoly, macroName);
-
-                // Define macro
-                StringBuilder macroDef = new StringBuilder();
-                macroDef.append(String.format("%%AM%s*\n", macroName));
-                macroDef.append(String.format("4,1,%d,", userPoly.getPolygon().length - 1));
-
-                for (Point point : userPoly.getPolygon()) {
-                    macroDef.append(String.format("%f,%f,", point.getX(), point.getY()));
+        checkNotRepeated();
+        long[] bounds = getSpatialIndex().getBounds();
+        if (bounds == null) {
+            return Collections.emptyList();
+        }
+        Files.createDirectories(Paths.get(directory));
+
+        long columns = (bounds[2] - bounds[0]) / width + 1;
+        long rows = (bounds[3] - bounds[1]) / height + 1;
+        List<String> paths = new ArrayList<>();
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (long row = 0; row < rows; row++) {
+            for (long column = 0; column < columns; column++) {
+                long minX = bounds[0] + column * width;
+                long minY = bounds[1] + row * height;
+                int[] objects = selectObjects(minX, minY, minX + width, minY + height, boundary);
+                if (objects.length == 0) {
+                    continue;
+                }
+                String path = Paths.get(directory, String.format(Locale.ROOT, "tile_%d_%d.gbr", column, row)).toString();
+                paths.add(path);
+                if (encodingPool == null) {
+                    writeTile(path, objects, now);
+                } else {
+                    tasks.add(encodingPool.submit(() -> {
+                        try {
+                            writeTile(path, objects, now);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }));
                 }
-
-                macroDef.append("$1*\n%");
-                macros.add(macroDef.toString());
             }
-
-            String shape = String.format("UserPolygon,%f", pad.angle);
-            String adBody = String.format("%s,%f", macroName, pad.angle);
-
-            handleFlash(shape, adBody, userPoly.getFunction(), userPoly.isNegative(),
-                    pad.position, bodyCommands, adCommands, apertures, state, generateDcode);
         }
+        try {
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return paths;
     }
 
-    private RoundedThermalParams calculateRoundedThermalParams(
-            double outerDiameter, double innerDiameter, double gapGiven) {
-
-        double gapPrimitive;
-        double roundingDiameter;
-        Point centerH;
-        Point centerV;
-
-        if (gapGiven * Math.sqrt(2) >= (innerDiameter - (1 + Math.sqrt(2)) *
-                (outerDiameter - innerDiameter))) {
-            // Large gap case
-            gapPrimitive = gapGiven + (outerDiameter - innerDiameter)/2;
-
-            double cornerYInner = 0;
-            double cornerYOuter = 0;
-
-            while (true) {
-                // Calculate y-coordinates where the gap intersects the circles
-                // For inner circle:
-                // Using right triangle formed by:
-                // - Hypotenuse = innerDiameter/2 (radius)
-                // - Adjacent = gapPrimitive/2 (half gap)
-                // - Opposite = cornerYInner (y-coordinate we want)
-                 cornerYInner = innerDiameter *
-                        Math.sin(Math.acos(gapPrimitive/innerDiameter))/2;
-
-                // Same calculation for outer circle
-                 cornerYOuter = outerDiameter *
-                        Math.sin(Math.acos(gapPrimitive/outerDiameter))/2;
-
-                // The rounding diameter is the difference between these y-coordinates
-                // This represents how much we need to round the corners
-                roundingDiameter = cornerYOuter - cornerYInner;
+    private void writeTile(String path, int[] objects, LocalDateTime now) throws IOException {
+        try (OutputStream out = Files.newOutputStream(Paths.get(path))) {
+            // Tiles are already written in parallel
+            writeObjects(out, objects, now, null);
+        }
+    }
 
-                // The actual gap will be smaller than gapPrimitive by roundingDiameter
-                double gapReal = gapPrimitive - roundingDiameter;
+    private void writeObjects(OutputStream out, int[] objects, LocalDateTime now, ForkJoinPool pool)
+            throws IOException {
+        GerberOutput output = new GerberOutput(out);
+        writeGerber(output, now, graphicsObjectStream.copyOf(objects), pool);
+        output.flush();
+    }
 
-                // Iterate until we get close enough to desired gap
-                if (Math.abs(gapGiven - gapReal) < TOLERANCE/10) break;
-                gapPrimitive += gapGiven - gapReal;
+    /**
+     * @return objects of the window in nanometres, chosen by the boundary, in ascending order
+     */
+    private int[] selectObjects(long minX, long minY, long maxX, long maxY, TileBoundary boundary) {
+        int[] objects = getSpatialIndex().query(minX, minY, maxX, maxY);
+        if (boundary == TileBoundary.INTERSECTING) {
+            return objects;
+        }
+        // Twice the centers, so they stay whole nanometres
+        int count = 0;
+        for (int object : objects) {
+            long centerX = objectBounds[4 * object] + objectBounds[4 * object + 2];
+            long centerY = objectBounds[4 * object + 1] + objectBounds[4 * object + 3];
+            if (centerX >= 2 * minX && centerX < 2 * maxX && centerY >= 2 * minY && centerY < 2 * maxY) {
+                objects[count++] = object;
             }
+        }
+        return Arrays.copyOf(objects, count);
+    }
 
-            // Calculate centers of rounding circles
-            double centerY = (cornerYOuter + cornerYInner)/2;  // Midpoint between corners
-            centerH = new Point(centerY, gapPrimitive/2);      // Horizontal gap
-            centerV = new Point(gapPrimitive/2, centerY);      // Vertical gap
+    private void checkNotSnapshot() {
+        if (snapshot) {
+            throw new IllegalStateException("Objects cannot be added to a snapshot");
+        }
+    }
 
-        } else {
-            // Small gap case - similar calculations but different geometry
-            gapPrimitive = gapGiven + 1.2*(outerDiameter-innerDiameter)/2;
+    private void checkNotRepeated() {
+        if (isRepeated()) {
+            throw new IllegalStateException("Windows of a layer with step and repeat cannot be exported");
+        }
+    }
 
-            while (true) {
-                double alfaInner = Math.acos(gapPrimitive/innerDiameter);
-                double alfaOuter = Math.acos(gapPrimitive/outerDiameter);
+    private void writeGerber(GerberOutput out, LocalDateTime now, GraphicsStore store, ForkJoinPool pool)
+            throws IOException {
+        GerberWriteListener listener = writeListener;
+        long startNanos = listener != null ? System.nanoTime() : 0;
 
-                // Calculate intersection points similar to large gap case
-                double cornerYInner = innerDiameter * Math.sin(alfaInner)/2;
-                double cornerYOuter = outerDiameter * Math.sin(alfaOuter)/2;
+        // Macros and apertures must be defined before the body that uses them, so they are
+        // collected in a first pass. D-codes are assigned in order of first use and memoized
+        // per style, the second pass only looks them up.
+        Apertures apertures = new Apertures();
+        int[] dcodes = registerApertures(store, apertures);
 
-                // For small gaps, rounding diameter calculation includes sine adjustment
-                roundingDiameter = (cornerYOuter - cornerYInner)/Math.sin(alfaOuter);
-                double gapReal = gapPrimitive - roundingDiameter*(1+Math.cos(alfaOuter));
+        long headerNanos = listener != null ? System.nanoTime() : 0;
+        long headerStart = out.size();
 
-                if (Math.abs(gapGiven - gapReal) < TOLERANCE/10) break;
-                gapPrimitive += gapGiven - gapReal;
-            }
+        // Header
+        out.append(String.format(Locale.ROOT, "G04 #@! TF.CreationDate,%s*\n",
+                now.format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"))));
 
-            // Calculate centers with different geometry for small gaps
-            double roundingDistance = outerDiameter - roundingDiameter;
-            double alfaOuter = Math.acos(gapPrimitive/outerDiameter);
-            centerV = new Point(
-                    roundingDistance * Math.cos(alfaOuter)/2,
-                    roundingDistance * Math.sin(alfaOuter)/2
-            );
-            centerH = new Point(
-                    roundingDistance * Math.sin(alfaOuter)/2,
-                    roundingDistance * Math.cos(alfaOuter)/2
-            );
+        if (!function.isEmpty()) {
+            out.append(String.format(Locale.ROOT, "G04 #@! TF.FileFunction,%s*\n", function));
         }
 
-        return new RoundedThermalParams(gapPrimitive, roundingDiameter, centerH, centerV);
-    }
-
-    private void handleFlash(String shape, String adBody, String function, boolean negative,
-                             Point position, List<String> bodyCommands, List<String> adCommands,
-                             Map<String, Integer> apertures, GraphicsState state,
-                             AtomicInteger generateDcode) {
-        handleLp(negative, bodyCommands, state);
-        handleDcode(shape, function, negative, adBody, bodyCommands, adCommands, apertures, state, generateDcode);
+        out.append(String.format(Locale.ROOT, "G04 #@! TF.FilePolarity,%s*\n",
+                negative ? "Negative" : "Positive"));
 
-        Point gerberPoint = toGerberCoordinates(position);
-        bodyCommands.add(String.format("X%dY%dD03*",
-                (int)gerberPoint.x, (int)gerberPoint.y));
-        state.point = position;
-    }
+        // Generation software
+        if (generationSoftware.getVendor() != null && !generationSoftware.getVendor().isEmpty() &&
+                generationSoftware.getApplication() != null && !generationSoftware.getApplication().isEmpty() &&
+                generationSoftware.getVersion() != null && !generationSoftware.getVersion().isEmpty()) {
 
-    private void handleDcode(String shape, String function, boolean negative,
-                             String adBody, List<String> bodyCommands, List<String> adCommands,
-                             Map<String, Integer> apertures, GraphicsState state,
-                             AtomicInteger generateDcode) {
-        String key = shape + "," + function + "," + negative;
-        Integer dcode = apertures.get(key);
+            out.append(String.format(Locale.ROOT, "G04 #@! TF.GenerationSoftware,%s,%s,%s*\n",
+                    generationSoftware.getVendor(),
+                    generationSoftware.getApplication(),
+                    generationSoftware.getVersion()));
+        }
 
-        if (dcode == null) {
-            dcode = generateDcode.getAndIncrement();
-            apertures.put(key, dcode);
+        out.append("%MOMM*%\n");
 
-            if (!function.isEmpty()) {
-                adCommands.add(String.format("G04 #@! TA.AperFunction,%s*", function));
-            }
-            adCommands.add(String.format("G04 #@! TAShape,%s*", shape));
-            adCommands.add(String.format("%%ADD%d%s*%%", dcode, adBody));
-            if (!function.isEmpty()) {
-                adCommands.add("G04 #@! TD*");
-            }
+        // Format specification
+        int maxIntegerDigits = getIntegerDigits(store, apertures.blockExtent);
+        out.append(String.format(Locale.ROOT, "%%FSLAX%d6Y%d6*%%\n", maxIntegerDigits, maxIntegerDigits));
+        out.append("G75*\n");
+
+        // Write macro commands, sorted for predictable output
+        long macroStart = out.size();
+        for (String macro : apertures.macros) {
+            out.append(macro).append('\n');
         }
 
-        if (!Objects.equals(state.dcode, dcode)) {
-            bodyCommands.add(String.format("D%d*", dcode));
-            state.dcode = dcode;
+        // Write aperture definition commands
+        long apertureStart = out.size();
+        for (String adCommand : apertures.adCommands) {
+            out.append(adCommand).append('\n');
         }
-    }
 
-    private static Point toGerberCoordinates(Point point) {
-        return new Point(
-                point.x * TO_NM,
-                point.y * TO_NM
-        );
-    }
-
-    private double round(double value) {
-        return Math.round(value * Math.pow(10, DECIMALS)) / Math.pow(10, DECIMALS);
-    }
-
-    private void processRegion(Region region, List<String> bodyCommands, GraphicsState state) {
-        handleLp(region.negative, bodyCommands, state);
-        if (!region.function.isEmpty()) {
-            bodyCommands.add(String.format("G04 #@! TA.AperFunction,%s*", region.function));
+        // Write body commands (D01/02/03, G01/02/03, G36/G37)
+        long bodyNanos = listener != null ? System.nanoTime() : 0;
+        long bodyStart = out.size();
+        int[] order = ObjectOrdering.order(store, dcodes, objectOrder);
+        if (coalesceTraces) {
+            order = TraceCoalescing.coalesce(store, order);
         }
-        bodyCommands.add("G36*");
-        handlePathOperators(region.path, bodyCommands, state, true);
-        bodyCommands.add("G37*");
-        if (!region.function.isEmpty()) {
-            bodyCommands.add("G04 #@! TD*");
+        if (isRepeated()) {
+            out.append(String.format(Locale.ROOT, "%%SRX%dY%dI%fJ%f*%%\n", repeatXCount, repeatYCount, repeatXPitch, repeatYPitch));
         }
-    }
-
-    private void processTracesPath(TracesPath tracesPath, List<String> bodyCommands,
-                                   List<String> adCommands,
-                                   Map<String, Integer> apertures, GraphicsState state,
-                                   AtomicInteger generateDcode) {
-        handleTraceLpAdDnn(tracesPath, bodyCommands, adCommands, apertures, state, generateDcode);
-        handlePathOperators(tracesPath.path, bodyCommands, state, false);
-    }
-
-    // Additional helper methods for Gerber command generation
-    private void handleLp(boolean negative, List<String> bodyCommands, GraphicsState state) {
-        if (state.negative == null || state.negative != negative) {
-            bodyCommands.add(String.format("%%LP%s*%%", negative ? "C" : "D"));
-            state.negative = negative;
+        RegionSimplification simplification =
+                simplifyRegions ? RegionSimplification.simplify(store, pool) : null;
+        BodyEncoder body = new BodyEncoder(store, dcodes, order, modalCoordinates,
+                simplification != null ? simplification.getSkipped() : null);
+        if (pool != null) {
+            body.encode(out, pool);
+        } else {
+            body.encode(out);
+        }
+        if (isRepeated()) {
+            out.append("%SR*%\n");
         }
-    }
-    
-    private void handlePathOperators(Path path, List<String> bodyCommands, GraphicsState state, boolean alwaysD02) {
-        for (PathOperator operator : path.getOperators()) {
-            if (operator instanceof MoveTo) {
-                MoveTo moveTo = (MoveTo) operator;
-
-                // For regions (alwaysD02=true) or when current point is null, use D02
-                if (alwaysD02) {
-                    Point gerberPoint = toGerberCoordinates(moveTo.getTo());
-                    bodyCommands.add(String.format("X%dY%dD02*",
-                            (int)gerberPoint.x,
-                            (int)gerberPoint.y));
-                } else {
-                    handleD02(bodyCommands, state, moveTo.getTo());
-                }
-                
-
-                state.point = moveTo.getTo();
 
-            } else if (operator instanceof LineTo) {
-                LineTo lineTo = (LineTo) operator;
-                if (state.point == null) {
-                    throw new IllegalStateException("LineTo without current point");
+        // End of file
+        out.append("M02*\n");
+
+        if (listener != null) {
+            GerberWriteStats stats = new GerberWriteStats();
+            for (int i = 0; i < store.size(); i++) {
+                byte kind = store.getKind(i);
+                if (kind == GraphicsStore.PAD) {
+                    stats.pads++;
+                } else if (kind == GraphicsStore.TRACES) {
+                    stats.traces++;
+                } else {
+                    stats.regions++;
                 }
+            }
+            stats.apertures = apertures.dcodes.size();
+            stats.macros = apertures.macros.size();
+            body.addCountsTo(stats);
+            stats.regionVertices = RegionSimplification.countRegionPoints(store);
+            stats.writtenRegionVertices = stats.regionVertices
+                    - (simplification != null ? simplification.getSkippedCount() : 0);
+            stats.headerBytes = macroStart - headerStart;
+            stats.macroBytes = apertureStart - macroStart;
+            stats.apertureBytes = bodyStart - apertureStart;
+            stats.bodyBytes = out.size() - bodyStart;
+            stats.apertureNanos = headerNanos - startNanos;
+            stats.headerNanos = bodyNanos - headerNanos;
+            stats.bodyNanos = System.nanoTime() - bodyNanos;
+            listener.written(this, stats);
+        }
+    }
 
-                handleG0n(bodyCommands, state, "G01*");
-                Point gerberPoint = toGerberCoordinates(lineTo.getTo());
-                bodyCommands.add(String.format("X%dY%dD01*",
-                        (int)gerberPoint.x,
-                        (int)gerberPoint.y));
-
-                state.point = lineTo.getTo();
-
-            } else if (operator instanceof ArcTo) {
-                ArcTo arcTo = (ArcTo) operator;
-                if (state.point == null) {
-                    throw new IllegalStateException("ArcTo without current point");
+    /**
+     * Defines the apertures used by the objects of the store, the ones of the contents of
+     * blocks before the blocks themselves
+     *
+     * @return D-codes of the apertures, indexed by style, -1 for region styles
+     */
+    private int[] registerApertures(GraphicsStore store, Apertures apertures) throws IOException {
+        int[] dcodes = new int[store.getStyleCount()];
+        Arrays.fill(dcodes, -1);
+        for (int i = 0; i < store.size(); i++) {
+            int styleIndex = store.getStyleIndexOf(i);
+            if (dcodes[styleIndex] < 0 && store.getKind(i) != GraphicsStore.REGION) {
+                Object style = store.getStyle(styleIndex);
+                if (style instanceof PadStyle) {
+                    dcodes[styleIndex] = processPadAperture(apertureTemplates.get((PadStyle) style), apertures);
+                } else if (style instanceof TraceStyle) {
+                    dcodes[styleIndex] = processTraceAperture((TraceStyle) style, apertures);
                 }
-
-                // Set quadrant mode if needed
-                String g0n = arcTo.getOrientation().equals("-") ? "G02*" : "G03*";
-                handleG0n(bodyCommands, state, g0n);
-
-                // Convert points to Gerber coordinates
-                Point gerberEnd = toGerberCoordinates(arcTo.getTo());
-                Point gerberCenter = toGerberCoordinates(arcTo.getCenter());
-
-                // Calculate offsets from current point to center
-                Point currentGerber = toGerberCoordinates(state.point);
-                int i = (int)(gerberCenter.x - currentGerber.x);
-                int j = (int)(gerberCenter.y - currentGerber.y);
-
-                // Output arc command
-                bodyCommands.add(String.format("X%dY%dI%dJ%dD01*",
-                        (int)gerberEnd.x,
-                        (int)gerberEnd.y,
-                        i,
-                        j));
-
-                state.point = arcTo.getTo();
             }
         }
+        return dcodes;
     }
-    
-    private static void handleD02(List<String> bodyCommands, GraphicsState state, Point point) {
-        if (!point.equals(state.point)) {
-            Point gerberPoint = toGerberCoordinates(point);
-            bodyCommands.add(String.format("X%dY%dD02*",
-                    (int)gerberPoint.x,
-                    (int)gerberPoint.y));
-            state.point = point;
+
+    /**
+     * Defines the aperture of the pad if needed. A block is encoded with the apertures of its
+     * contents, which are defined first.
+     *
+     * @return D-code of the aperture
+     */
+    private int processPadAperture(ApertureTemplate template, Apertures apertures) throws IOException {
+        if (template.block == null) {
+            return apertures.register(template);
+        }
+        int[] blockDcodes = registerApertures(template.block, apertures);
+        int dcode = apertures.findBlock(template);
+        if (dcode >= 0) {
+            return dcode;
         }
+        GerberOutput body = new GerberOutput();
+        boolean[] skippedVertices =
+                simplifyRegions ? RegionSimplification.simplify(template.block, null).getSkipped() : null;
+        new BodyEncoder(template.block, blockDcodes, null, modalCoordinates, skippedVertices).encode(body);
+        apertures.blockExtent = Math.max(apertures.blockExtent,
+                Math.max(template.block.getMaxAbsX(), template.block.getMaxAbsY()));
+        return apertures.defineBlock(template.shape, body.toString());
     }
 
-    private static void handleG0n(List<String> bodyCommands, GraphicsState state, String g0n) {
-        if (!g0n.equals(state.g0n)) {
-            bodyCommands.add(g0n);
-            state.g0n = g0n;
+    /**
+     * Defines the round aperture of the trace if needed
+     *
+     * @return D-code of the aperture
+     */
+    private int processTraceAperture(TraceStyle tracePath, Apertures apertures) {
+        int dcode = apertures.find(ApertureKey.CIRCLE, tracePath.width, 0, 0, 0,
+                tracePath.function, tracePath.negative);
+        if (dcode >= 0) {
+            return dcode;
         }
-    }
-    
-    private void handleTraceLpAdDnn(TracesPath tracePath,
-                                    List<String> bodyCommands,
-                                    List<String> adCommands,
-                                    Map<String, Integer> apertures,
-                                    GraphicsState state,
-                                    AtomicInteger generateDcode) {
-        // First handle the Line Polarity
-        handleLp(tracePath.negative, bodyCommands, state);
 
         // Create the shape and aperture definition
-        String shape = String.format("Circle,%f", tracePath.width);
-        String adBody = String.format("C,%f", tracePath.width);
-
-        // Handle the aperture definition and D-code selection
-        handleDcode(
-                shape,                  // Shape description
-                tracePath.function,     // Function (e.g., "Conductor")
-                tracePath.negative,     // Polarity
-                adBody,                 // Aperture definition body
-                bodyCommands,              // Command accumulator
-                adCommands,
-                apertures,             // Existing apertures
-                state,                 // Graphics state
-                generateDcode          // D-code counter
-        );
+        String shape = String.format(Locale.ROOT, "Circle,%f", tracePath.width);
+        String adBody = String.format(Locale.ROOT, "C,%f", tracePath.width);
+
+        return apertures.define(shape, adBody);
     }
     
-    private static class GraphicsState {
-        Point point = null;
-        Integer dcode = null;
-        String g0n = null;
-        Boolean negative = null;
-    }
+    /**
+     * Macros and aperture definitions of one Gerber file, keyed by {@link ApertureKey}.
+     * <p>
+     * A lookup with {@link #find} reuses a single probe key, so finding an aperture that is
+     * already defined neither allocates nor formats anything. Only a miss pays for building
+     * the shape and AD strings, which are then passed to {@link #define}.
+     */
+    private static class Apertures {
+        final Map<ApertureKey, Integer> dcodes = new HashMap<>();
+        final Map<String, Integer> functionIds = new HashMap<>();
+        final List<String> adCommands = new ArrayList<>();
+        final Set<String> macros = new TreeSet<>(); // sorted for predictable output
+        final Map<UserPolygon, Integer> polygons = new HashMap<>();
+        final Map<BlockAperture, Integer> blocks = new HashMap<>();
+        long blockExtent; // largest absolute coordinate in blocks, nm
+        final ApertureKey probe = new ApertureKey();
+        String probeFunction;
+        int nextDcode = 10;
+
+        /**
+         * @return D-code of the aperture, or -1 if it is not defined yet
+         */
+        int find(byte kind, double parameter1, double parameter2, double parameter3, double angle,
+                 String function, boolean negative) {
+            Integer functionId = functionIds.get(function);
+            if (functionId == null) {
+                functionId = functionIds.size();
+                functionIds.put(function, functionId);
+            }
+            probe.set(kind, parameter1, parameter2, parameter3, angle, functionId, negative);
+            probeFunction = function;
 
-    // Graphics objects as inner classes
-    private interface GraphicsObject {
-    }
+            Integer dcode = dcodes.get(probe);
+            return dcode == null ? -1 : dcode;
+        }
 
-    private static class Pad implements GraphicsObject {
-        final AbstractPad master;
-        final Point position;
-        final double angle;
+        /**
+         * Defines the aperture of the template if needed, together with its macro
+         *
+         * @return D-code of the aperture
+         */
+        int register(ApertureTemplate template) {
+            if (template.polygon != null) {
+                // User polygon macros are numbered in order of first use
+                Integer polygonNumber = polygons.get(template.polygon);
+                if (polygonNumber == null) {
+                    polygonNumber = polygons.size() + 1;
+                    polygons.put(template.polygon, polygonNumber);
+                    macros.add("%AMUserPolygon_" + polygonNumber + "*\n" + template.macro);
+                }
+                int dcode = find(template.kind, polygonNumber, 0, 0, template.angle,
+                        template.function, template.negative);
+                return dcode >= 0 ? dcode
+                        : define(template.shape, "UserPolygon_" + polygonNumber + template.adBody);
+            }
 
-        Pad(AbstractPad master, Point position, double angle) {
-            this.master = master;
-            this.position = position;
-            this.angle = angle;
+            int dcode = find(template.kind, template.parameter1, template.parameter2, template.parameter3,
+                    template.angle, template.function, template.negative);
+            if (dcode >= 0) {
+                return dcode;
+            }
+            if (template.macro != null) {
+                macros.add(template.macro);
+            }
+            return define(template.shape, template.adBody);
         }
-    }
-
-    private static class Region implements GraphicsObject {
-        final Path path;
-        final String function;
-        final boolean negative;
 
-        Region(Path path, String function, boolean negative) {
-            this.path = path;
-            this.function = function;
-            this.negative = negative;
+        /**
+         * Blocks are numbered by identity, like user polygons
+         *
+         * @return D-code of the block under the angle of the template, or -1 if it is not defined yet
+         */
+        int findBlock(ApertureTemplate template) {
+            Integer blockNumber = blocks.get(template.blockMaster);
+            if (blockNumber == null) {
+                blockNumber = blocks.size() + 1;
+                blocks.put(template.blockMaster, blockNumber);
+            }
+            return find(template.kind, blockNumber, 0, 0, template.angle, template.function, template.negative);
         }
-    }
 
-    private static class TracesPath implements GraphicsObject {
-        final Path path;
-        final double width;
-        final String function;
-        final boolean negative;
+        /**
+         * Defines the aperture that was not found by the last call to {@link #find}
+         *
+         * @return D-code of the new aperture
+         */
+        int define(String shape, String adBody) {
+            int dcode = nextDcode++;
+            addDefinition(dcode, shape, String.format(Locale.ROOT, "%%ADD%d%s*%%", dcode, adBody));
+            return dcode;
+        }
 
-        TracesPath(Path path, double width, String function, boolean negative) {
-            this.path = path;
-            this.width = width;
-            this.function = function;
-            this.negative = negative;
+        /**
+         * Defines the block that was not found by the last call to {@link #findBlock}
+         *
+         * @param body encoded contents of the block
+         * @return D-code of the new aperture
+         */
+        int defineBlock(String shape, String body) {
+            int dcode = nextDcode++;
+            addDefinition(dcode, shape, String.format(Locale.ROOT, "%%ABD%d*%%\n%s%%AB*%%", dcode, body));
+            return dcode;
         }
-    }
 
-    private static class RoundedThermalParams {
-        final double gapPrimitive;
-        final double roundingDiameter;
-        final Point centerH;
-        final Point centerV;
+        private void addDefinition(int dcode, String shape, String definition) {
+            dcodes.put(probe.copy(), dcode);
 
-        RoundedThermalParams(double gapPrimitive, double roundingDiameter,
-                             Point centerH, Point centerV) {
-            this.gapPrimitive = gapPrimitive;
-            this.roundingDiameter = roundingDiameter;
-            this.centerH = centerH;
-            this.centerV = centerV;
+            if (!probeFunction.isEmpty()) {
+                adCommands.add(String.format(Locale.ROOT, "G04 #@! TA.AperFunction,%s*", probeFunction));
+            }
+            adCommands.add(String.format(Locale.ROOT, "G04 #@! TAShape,%s*", shape));
+            adCommands.add(definition);
+            if (!probeFunction.isEmpty()) {
+                adCommands.add("G04 #@! TD*");
+            }
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,282 @@
+package com.bancika.gerberwriter;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Writes all layers of a board into one ZIP archive, together with a Gerber job file
+ * ({@code .gbrjob}) describing them.
+ * <p>
+ * Layers are encoded and compressed concurrently on an executor, so the time to write
+ * a board is bounded by its largest layer rather than the sum of all layers. Entries are
+ * written in the order of the {@link LayerSet}, followed by the job file. Compressed layers
+ * that wait for the ones before them are kept in temporary files once they are larger than
+ * a megabyte.
+ */
+public class FabricationJob {
+
+    private final String projectName;
+    private final LayerSet layers;
+    private final GenerationSoftware generationSoftware;
+
+    /**
+     * @param projectName name of the job file, without the {@code .gbrjob} extension
+     */
+    public FabricationJob(String projectName, LayerSet layers, GenerationSoftware generationSoftware) {
+        if (projectName == null || projectName.trim().isEmpty()) {
+            throw new IllegalArgumentException("Project name cannot be empty");
+        }
+        if (layers == null) {
+            throw new IllegalArgumentException("Layers cannot be null");
+        }
+        this.projectName = projectName;
+        this.layers = layers;
+        this.generationSoftware = generationSoftware;
+    }
+
+    public String getJobFileName() {
+        return projectName + ".gbrjob";
+    }
+
+    /**
+     * Writes the archive on a thread pool with one thread per core, at most one per layer.
+     *
+     * @return timing of every layer, in the order of the layer set
+     */
+    public List<LayerTiming> writeZip(String fileName) throws IOException {
+        int threads = Math.max(1, Math.min(layers.size(), Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (OutputStream out = Files.newOutputStream(Paths.get(fileName))) {
+            return writeZip(out, executor);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public List<LayerTiming> writeZip(OutputStream out, ExecutorService executor) throws IOException {
+        return writeZip(out, executor, LocalDateTime.now());
+    }
+
+    /**
+     * Writes the archive to the stream, which is flushed but not closed. The size of the
+     * executor bounds how many layers are encoded at the same time.
+     *
+     * @param now creation date of the layers and the job file
+     * @return timing of every layer, in the order of the layer set
+     */
+    public List<LayerTiming> writeZip(OutputStream out, ExecutorService executor, LocalDateTime now)
+            throws IOException {
+        List<String> fileNames = layers.getFileNames();
+        if (fileNames.contains(getJobFileName())) {
+            throw new IllegalArgumentException("Layer file name clashes with the job file: " + getJobFileName());
+        }
+
+        Handoff handoff = new Handoff(fileNames.size());
+        List<Future<?>> futures = new ArrayList<>(fileNames.size());
+        for (int i = 0; i < fileNames.size(); i++) {
+            DataLayer layer = layers.getLayer(fileNames.get(i));
+            int index = i;
+            futures.add(executor.submit(() -> {
+                handoff.put(index, encode(layer, now));
+                return null;
+            }));
+        }
+
+        ZipWriter zip = new ZipWriter(out);
+        List<LayerTiming> timings = new ArrayList<>(fileNames.size());
+        try {
+            for (int i = 0; i < fileNames.size(); i++) {
+                get(futures.get(i));
+                EncodedLayer encoded = handoff.get(i);
+                zip.write(fileNames.get(i), now, encoded.data);
+                handoff.release(i);
+                timings.add(new LayerTiming(fileNames.get(i), encoded.nanos,
+                        encoded.data.getSize(), encoded.data.getCompressedSize()));
+            }
+        } catch (Throwable e) {
+            // Stop the remaining layers if one of them failed, and drop the finished ones
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+            try {
+                handoff.abort();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+
+        ZipWriter.EntryData job = new ZipWriter.EntryData();
+        try {
+            job.write(dumpJobToString(now).getBytes(StandardCharsets.UTF_8));
+            job.close();
+            zip.write(getJobFileName(), now, job);
+        } finally {
+            job.discard();
+        }
+        zip.finish();
+        return timings;
+    }
+
+    /**
+     * @return the Gerber job file listing all layers with their function and polarity
+     */
+    public String dumpJobToString(LocalDateTime now) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"Header\": {\n");
+        if (generationSoftware != null) {
+            // Fields that are not known are left out
+            List<String> fields = new ArrayList<>(3);
+            addField(fields, "Vendor", generationSoftware.getVendor());
+            addField(fields, "Application", generationSoftware.getApplication());
+            addField(fields, "Version", generationSoftware.getVersion());
+            if (!fields.isEmpty()) {
+                json.append("    \"GenerationSoftware\": {\n");
+                json.append(String.join(",\n", fields)).append("\n");
+                json.append("    },\n");
+            }
+        }
+        json.append("    \"CreationDate\": ")
+                .append(quote(now.format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss")))).append("\n");
+        json.append("  },\n");
+        json.append("  \"FilesAttributes\": [");
+        List<String> fileNames = layers.getFileNames();
+        for (int i = 0; i < fileNames.size(); i++) {
+            DataLayer layer = layers.getLayer(fileNames.get(i));
+            json.append(i == 0 ? "\n" : ",\n");
+            json.append("    {\n");
+            json.append("      \"Path\": ").append(quote(fileNames.get(i))).append(",\n");
+            json.append("      \"FileFunction\": ").append(quote(layer.getFunction())).append(",\n");
+            json.append("      \"FilePolarity\": ")
+                    .append(quote(layer.isNegative() ? "Negative" : "Positive")).append("\n");
+            json.append("    }");
+        }
+        json.append("\n  ]\n");
+        json.append("}\n");
+        return json.toString();
+    }
+
+    private static EncodedLayer encode(DataLayer layer, LocalDateTime now) throws IOException {
+        long start = System.nanoTime();
+        ZipWriter.EntryData data = new ZipWriter.EntryData();
+        boolean encoded = false;
+        try {
+            layer.dumpGerber(data, now);
+            data.close();
+            encoded = true;
+        } finally {
+            if (!encoded) {
+                data.discard();
+            }
+        }
+        return new EncodedLayer(data, System.nanoTime() - start);
+    }
+
+    private static void get(Future<?> future) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing layers");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private static void addField(List<String> fields, String name, String value) {
+        if (value != null) {
+            fields.add("      \"" + name + "\": " + quote(value));
+        }
+    }
+
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static class EncodedLayer {
+        final ZipWriter.EntryData data;
+        final long nanos;
+
+        EncodedLayer(ZipWriter.EntryData data, long nanos) {
+            this.data = data;
+            this.nanos = nanos;
+        }
+    }
+
+    /**
+     * Layers encoded but not yet written, passed from the encoding threads to the writing one.
+     * Once writing has failed, layers are discarded as they are finished, so that none of their
+     * temporary files is left behind.
+     */
+    private static class Handoff {
+        private final EncodedLayer[] layers;
+        private boolean aborted;
+
+        Handoff(int count) {
+            layers = new EncodedLayer[count];
+        }
+
+        synchronized void put(int index, EncodedLayer layer) throws IOException {
+            if (aborted) {
+                layer.data.discard();
+            } else {
+                layers[index] = layer;
+            }
+        }
+
+        synchronized EncodedLayer get(int index) {
+            return layers[index];
+        }
+
+        /**
+         * Discards a layer that was written
+         */
+        synchronized void release(int index) throws IOException {
+            EncodedLayer layer = layers[index];
+            layers[index] = null;
+            layer.data.discard();
+        }
+
+        synchronized void abort() throws IOException {
+            aborted = true;
+            for (int i = 0; i < layers.length; i++) {
+                if (layers[i] != null) {
+                    layers[i].data.discard();
+                    layers[i] = null;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package com.bancika.gerberwriter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Buffered writer for Gerber output.
+ * <p>
+ * Commands are encoded straight into a reusable byte buffer which is flushed to the
+ * underlying stream or channel whenever it fills up, so the memory needed to write a
+ * layer does not depend on its size. Gerber files are ASCII; any other character
+ * (e.g. in a user supplied function attribute) is encoded as UTF-8.
+ * <p>
+ * Coordinate data words are the bulk of every file, so they have dedicated encoders
+ * that write the integer coordinates digit by digit into the buffer, without
+ * formatting or boxing. GerberOutputBenchmark in the benchmark module measures their
+ * rate in words per second.
+ * <p>
+ * Without a stream or channel the output is kept in memory, growing as needed, and can be
+ * copied into another output with {@link #writeTo(GerberOutput)}. This is used to encode
+ * parts of the body in parallel.
+ */
+final class GerberOutput {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Longest data word: four signed 19 digit numbers, their letters, "D01*" and a newline
+    private static final int MAX_WORD_LENGTH = 4 * 21 + 5;
+
+    private static final long[] NEGATIVE_POWERS_OF_TEN = new long[19];
+    private static final byte[] DIGIT_TENS = new byte[100];
+    private static final byte[] DIGIT_ONES = new byte[100];
+
+    static {
+        long power = -1;
+        for (int i = 0; i < NEGATIVE_POWERS_OF_TEN.length; i++) {
+            NEGATIVE_POWERS_OF_TEN[i] = power;
+            power *= 10;
+        }
+        for (int i = 0; i < 100; i++) {
+            DIGIT_TENS[i] = (byte) ('0' + i / 10);
+            DIGIT_ONES[i] = (byte) ('0' + i % 10);
+        }
+    }
+
+    private final OutputStream stream;
+    private final WritableByteChannel channel;
+    private byte[] buffer;
+    private int position;
+    private long flushed;
+
+    GerberOutput() {
+        this.stream = null;
+        this.channel = null;
+        this.buffer = new byte[BUFFER_SIZE];
+    }
+
+    GerberOutput(OutputStream stream) {
+        this.stream = stream;
+        this.channel = null;
+        this.buffer = new byte[BUFFER_SIZE];
+    }
+
+    GerberOutput(WritableByteChannel channel) {
+        this.stream = null;
+        this.channel = channel;
+        this.buffer = new byte[BUFFER_SIZE];
+    }
+
+    GerberOutput append(String s) throws IOException {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                appendBytes(s.substring(i).getBytes(StandardCharsets.UTF_8));
+                return this;
+            }
+            if (position == buffer.length) {
+                flushBuffer();
+            }
+            buffer[position++] = (byte) c;
+        }
+        return this;
+    }
+
+    GerberOutput append(char c) throws IOException {
+        if (c >= 0x80) {
+            return append(String.valueOf(c));
+        }
+        if (position == buffer.length) {
+            flushBuffer();
+        }
+        buffer[position++] = (byte) c;
+        return this;
+    }
+
+    /**
+     * Appends a D01, D02 or D03 operation, e.g. {@code X1000Y-2000D03*}, followed by a newline.
+     *
+     * @param x X coordinate in Gerber units
+     * @param y Y coordinate in Gerber units
+     * @param operation 1, 2 or 3
+     */
+    GerberOutput appendOperation(long x, long y, int operation) throws IOException {
+        reserve(MAX_WORD_LENGTH);
+        buffer[position++] = 'X';
+        putLong(x);
+        buffer[position++] = 'Y';
+        putLong(y);
+        putOperation(operation);
+        return this;
+    }
+
+    /**
+     * Appends a circular D01 operation with I/J center offsets, e.g. {@code X0Y1000I0J500D01*},
+     * followed by a newline.
+     */
+    GerberOutput appendArc(long x, long y, long i, long j) throws IOException {
+        reserve(MAX_WORD_LENGTH);
+        buffer[position++] = 'X';
+        putLong(x);
+        buffer[position++] = 'Y';
+        putLong(y);
+        buffer[position++] = 'I';
+        putLong(i);
+        buffer[position++] = 'J';
+        putLong(j);
+        putOperation(1);
+        return this;
+    }
+
+    /**
+     * Appends a D01, D02 or D03 operation with only the given coordinates, the others are
+     * taken from the current point.
+     */
+    GerberOutput appendOperation(long x, long y, boolean writeX, boolean writeY, int operation)
+            throws IOException {
+        reserve(MAX_WORD_LENGTH);
+        putCoordinates(x, y, writeX, writeY);
+        putOperation(operation);
+        return this;
+    }
+
+    /**
+     * Appends a circular D01 operation with only the given end point coordinates and the I/J
+     * center offsets.
+     */
+    GerberOutput appendArc(long x, long y, boolean writeX, boolean writeY, long i, long j) throws IOException {
+        reserve(MAX_WORD_LENGTH);
+        putCoordinates(x, y, writeX, writeY);
+        buffer[position++] = 'I';
+        putLong(i);
+        buffer[position++] = 'J';
+        putLong(j);
+        putOperation(1);
+        return this;
+    }
+
+    /**
+     * Appends an aperture selection, e.g. {@code D10*}, followed by a newline.
+     */
+    GerberOutput appendDcode(int dcode) throws IOException {
+        reserve(MAX_WORD_LENGTH);
+        buffer[position++] = 'D';
+        putLong(dcode);
+        buffer[position++] = '*';
+        buffer[position++] = '\n';
+        return this;
+    }
+
+    /**
+     * @return number of bytes written so far, including the ones still buffered
+     */
+    long size() {
+        return flushed + position;
+    }
+
+    /**
+     * Appends everything written to this in-memory output to the target output.
+     */
+    void writeTo(GerberOutput target) throws IOException {
+        int offset = 0;
+        while (offset < position) {
+            if (target.position == target.buffer.length) {
+                target.flushBuffer();
+            }
+            int length = Math.min(position - offset, target.buffer.length - target.position);
+            System.arraycopy(buffer, offset, target.buffer, target.position, length);
+            target.position += length;
+            offset += length;
+        }
+    }
+
+    /**
+     * @return everything written to this in-memory output
+     */
+    @Override
+    public String toString() {
+        return new String(buffer, 0, position, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes out the buffered bytes and flushes the underlying stream.
+     */
+    void flush() throws IOException {
+        if (stream == null && channel == null) {
+            return;
+        }
+        flushBuffer();
+        if (stream != null) {
+            stream.flush();
+        }
+    }
+
+    private void putCoordinates(long x, long y, boolean writeX, boolean writeY) {
+        if (writeX) {
+            buffer[position++] = 'X';
+            putLong(x);
+        }
+        if (writeY) {
+            buffer[position++] = 'Y';
+            putLong(y);
+        }
+    }
+
+    private void putOperation(int operation) {
+        buffer[position++] = 'D';
+        buffer[position++] = '0';
+        buffer[position++] = (byte) ('0' + operation);
+        buffer[position++] = '*';
+        buffer[position++] = '\n';
+    }
+
+    private void putLong(long value) {
+        // Digits are produced from the negated value, which also covers Long.MIN_VALUE
+        long remaining = value;
+        if (remaining < 0) {
+            buffer[position++] = '-';
+        } else {
+            remaining = -remaining;
+        }
+        int digits = 1;
+        while (digits < NEGATIVE_POWERS_OF_TEN.length && remaining <= NEGATIVE_POWERS_OF_TEN[digits]) {
+            digits++;
+        }
+        int end = position + digits;
+        int index = end;
+        // Two digits per division
+        while (remaining <= -100) {
+            int pair = (int) -(remaining % 100);
+            remaining /= 100;
+            buffer[--index] = DIGIT_ONES[pair];
+            buffer[--index] = DIGIT_TENS[pair];
+        }
+        int rest = (int) -remaining;
+        buffer[--index] = DIGIT_ONES[rest];
+        if (rest >= 10) {
+            buffer[--index] = DIGIT_TENS[rest];
+        }
+        position = end;
+    }
+
+    private void reserve(int length) throws IOException {
+        if (buffer.length - position < length) {
+            flushBuffer();
+        }
+    }
+
+    private void appendBytes(byte[] bytes) throws IOException {
+        for (byte b : bytes) {
+            if (position == buffer.length) {
+                flushBuffer();
+            }
+            buffer[position++] = b;
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (stream == null && channel == null) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            return;
+        }
+        if (position == 0) {
+            return;
+        }
+        if (stream != null) {
+            stream.write(buffer, 0, position);
+        } else {
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, position);
+            while (byteBuffer.hasRemaining()) {
+                channel.write(byteBuffer);
+            }
+        }
+        flushed += position;
+        position = 0;
+    }
+}
@@ -0,0 +1,13 @@
+package com.bancika.gerberwriter;
+
+/**
+ * Receives the statistics of every Gerber file written by a {@link DataLayer},
+ * see {@link DataLayer#setWriteListener(GerberWriteListener)}.
+ * <p>
+ * The listener is called on the thread that writes the file, once the whole file is
+ * encoded, before the output is flushed.
+ */
+public interface GerberWriteListener {
+
+    void written(DataLayer layer, GerberWriteStats stats);
+}
@@ -0,0 +1,162 @@
+package com.bancika.gerberwriter;
+
+/**
+ * What went into one Gerber file and where the time was spent writing it.
+ * <p>
+ * Sections are the header (file attributes, units, format), the aperture macros (AM),
+ * the aperture definitions (AD) and the body with the graphics objects. Phases are
+ * resolving the apertures of all objects, writing the header and definitions, and
+ * encoding the body.
+ */
+public class GerberWriteStats {
+
+    long pads;
+    long traces;
+    long regions;
+    int apertures;
+    int macros;
+    long dcodeSwitches;
+    long polaritySwitches;
+    long redundantD02;
+    long omittedCoordinateBytes;
+    long regionVertices;
+    long writtenRegionVertices;
+    long headerBytes;
+    long macroBytes;
+    long apertureBytes;
+    long bodyBytes;
+    long apertureNanos;
+    long headerNanos;
+    long bodyNanos;
+
+    GerberWriteStats() {
+    }
+
+    public long getPads() {
+        return pads;
+    }
+
+    /**
+     * @return number of traces, a path of traces counts as one
+     */
+    public long getTraces() {
+        return traces;
+    }
+
+    public long getRegions() {
+        return regions;
+    }
+
+    /**
+     * @return number of aperture definitions (AD)
+     */
+    public int getApertures() {
+        return apertures;
+    }
+
+    /**
+     * @return number of aperture macros (AM)
+     */
+    public int getMacros() {
+        return macros;
+    }
+
+    /**
+     * @return number of Dnn commands selecting an aperture
+     */
+    public long getDcodeSwitches() {
+        return dcodeSwitches;
+    }
+
+    /**
+     * @return number of %LP commands
+     */
+    public long getPolaritySwitches() {
+        return polaritySwitches;
+    }
+
+    /**
+     * @return number of D02 moves left out because the current point already was at the target
+     */
+    public long getRedundantD02() {
+        return redundantD02;
+    }
+
+    /**
+     * @return bytes saved by leaving out unchanged coordinates, see
+     * {@link DataLayer#setModalCoordinates(boolean)}
+     */
+    public long getOmittedCoordinateBytes() {
+        return omittedCoordinateBytes;
+    }
+
+    /**
+     * @return number of points of all region contours in the layer, not counting arc centers
+     */
+    public long getRegionVertices() {
+        return regionVertices;
+    }
+
+    /**
+     * @return number of points of region contours written, fewer than in the layer when
+     * they are simplified, see {@link DataLayer#setSimplifyRegions(boolean)}
+     */
+    public long getWrittenRegionVertices() {
+        return writtenRegionVertices;
+    }
+
+    public long getHeaderBytes() {
+        return headerBytes;
+    }
+
+    public long getMacroBytes() {
+        return macroBytes;
+    }
+
+    public long getApertureBytes() {
+        return apertureBytes;
+    }
+
+    /**
+     * @return size of the body, including the end of file command
+     */
+    public long getBodyBytes() {
+        return bodyBytes;
+    }
+
+    public long getTotalBytes() {
+        return headerBytes + macroBytes + apertureBytes + bodyBytes;
+    }
+
+    /**
+     * @return nanoseconds spent resolving the apertures of all objects
+     */
+    public long getApertureNanos() {
+        return apertureNanos;
+    }
+
+    /**
+     * @return nanoseconds spent writing the header, macros and aperture definitions
+     */
+    public long getHeaderNanos() {
+        return headerNanos;
+    }
+
+    /**
+     * @return nanoseconds spent encoding the body
+     */
+    public long getBodyNanos() {
+        return bodyNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("pads=%d traces=%d regions=%d apertures=%d macros=%d dcodeSwitches=%d " +
+                        "polaritySwitches=%d redundantD02=%d omittedCoordinateBytes=%d " +
+                        "regionVertices=%d/%d " +
+                        "bytes(header=%d AM=%d AD=%d body=%d) " +
+                        "ns(apertures=%d header=%d body=%d)",
+                pads, traces, regions, apertures, macros, dcodeSwitches, polaritySwitches, redundantD02, omittedCoordinateBytes,
+                writtenRegionVertices, regionVertices, headerBytes, macroBytes, apertureBytes, bodyBytes, apertureNanos, headerNanos, bodyNanos);
+    }
+}
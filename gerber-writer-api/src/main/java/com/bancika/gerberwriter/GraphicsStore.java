@@ -0,0 +1,485 @@
+package com.bancika.gerberwriter;
+
+import com.bancika.gerberwriter.padmasters.AbstractPad;
+import com.bancika.gerberwriter.padmasters.BlockAperture;
+import com.bancika.gerberwriter.path.*;
+
+import java.util.*;
+
+/**
+ * Struct-of-arrays storage of the graphics objects of a layer.
+ * <p>
+ * Every object is a row in the object columns: its kind (pad, traces or region), the index
+ * of its master in the style table and the index of its first vertex. Vertices are rows in
+ * the vertex columns: an operation code and the coordinates in nanometres, rounded once
+ * when the object is added. A pad is a single FLASH vertex, a path is a MOVE followed by
+ * LINE and ARC vertices, and every arc vertex is followed by a CENTER vertex holding the
+ * center of the arc.
+ * <p>
+ * Styles (pad master with angle, trace width with attributes, region attributes) are shared
+ * between all objects that use them, so an object costs a few primitive array slots instead
+ * of a graph of small objects.
+ */
+final class GraphicsStore {
+
+    // Object kinds
+    static final byte PAD = 0;
+    static final byte TRACES = 1;
+    static final byte REGION = 2;
+
+    // Vertex operations
+    static final byte FLASH = 0;
+    static final byte MOVE = 1;
+    static final byte LINE = 2;
+    static final byte ARC_CW = 3;   // orientation "-"
+    static final byte ARC_CCW = 4;  // orientation "+"
+    static final byte CENTER = 5;   // center of the preceding arc
+
+    private static final int INITIAL_CAPACITY = 16;
+    static final double MAX_COORDINATE = 1e6; // mm, 6 integer digits
+
+    private byte[] kinds = new byte[INITIAL_CAPACITY];
+    private int[] styleIndices = new int[INITIAL_CAPACITY];
+    private int[] firstVertices = new int[INITIAL_CAPACITY];
+    private int objectCount;
+
+    private byte[] operations = new byte[INITIAL_CAPACITY];
+    private long[] xs = new long[INITIAL_CAPACITY];
+    private long[] ys = new long[INITIAL_CAPACITY];
+    private int vertexCount;
+    // Largest absolute end point coordinates, arc centers are not included
+    private long maxAbsX;
+    private long maxAbsY;
+
+    private final List<Object> styles;
+    private final Map<Object, Integer> styleIndex;
+    // Set for snapshots, which share the columns of the store they were taken from
+    private final boolean frozen;
+
+    // Pads are usually added in runs with the same master
+    private AbstractPad lastPadMaster;
+    private double lastPadAngle;
+    private int lastPadStyle;
+
+    GraphicsStore() {
+        this.styles = new ArrayList<>();
+        this.styleIndex = new HashMap<>();
+        this.frozen = false;
+    }
+
+    private GraphicsStore(GraphicsStore source) {
+        this.kinds = source.kinds;
+        this.styleIndices = source.styleIndices;
+        this.firstVertices = source.firstVertices;
+        this.objectCount = source.objectCount;
+        this.operations = source.operations;
+        this.xs = source.xs;
+        this.ys = source.ys;
+        this.vertexCount = source.vertexCount;
+        this.maxAbsX = source.maxAbsX;
+        this.maxAbsY = source.maxAbsY;
+        this.styles = new ArrayList<>(source.styles);
+        this.styleIndex = new HashMap<>(source.styleIndex);
+        this.frozen = true;
+    }
+
+    void addPad(AbstractPad master, double angle, long x, long y) {
+        if (master != lastPadMaster || Double.compare(angle, lastPadAngle) != 0) {
+            lastPadStyle = getStyleIndex(new PadStyle(master, angle));
+            lastPadMaster = master;
+            lastPadAngle = angle;
+        }
+        beginObject(PAD, lastPadStyle);
+        addVertex(FLASH, x, y);
+    }
+
+    /**
+     * Adds one pad per position. All coordinates are validated before anything is stored.
+     *
+     * @param angles angle of every pad, or {@code null} for pads that are not rotated
+     */
+    void addPads(AbstractPad master, double[] angles, double[] xs, double[] ys) {
+        validateCoordinates(xs);
+        validateCoordinates(ys);
+        ensureCapacity(objectCount + xs.length, vertexCount + xs.length);
+        for (int i = 0; i < xs.length; i++) {
+            addPad(master, angles == null ? 0 : angles[i], toNanometres(xs[i]), toNanometres(ys[i]));
+        }
+    }
+
+    /**
+     * Adds an object with one subpath per array of interleaved X and Y coordinates. The first
+     * point of a subpath is a MOVE and the others are LINE vertices. All coordinates are
+     * validated before anything is stored.
+     */
+    void addPolylines(byte kind, int style, double[][] polylines) {
+        int vertices = 0;
+        for (double[] xy : polylines) {
+            validateCoordinates(xy);
+            vertices += xy.length / 2;
+        }
+        ensureCapacity(objectCount + 1, vertexCount + vertices);
+
+        beginObject(kind, style);
+        for (double[] xy : polylines) {
+            addVertex(MOVE, toNanometres(xy[0]), toNanometres(xy[1]));
+            for (int i = 2; i < xy.length; i += 2) {
+                addVertex(LINE, toNanometres(xy[i]), toNanometres(xy[i + 1]));
+            }
+        }
+    }
+
+    void addPath(byte kind, int style, Path path) {
+        // Validate all points first so that an invalid path does not leave half an object behind
+        validatePath(path);
+
+        beginObject(kind, style);
+        for (PathOperator operator : path.getOperators()) {
+            if (operator instanceof MoveTo) {
+                Point to = ((MoveTo) operator).getTo();
+                addVertex(MOVE, toNanometres(to.x), toNanometres(to.y));
+            } else if (operator instanceof LineTo) {
+                Point to = ((LineTo) operator).getTo();
+                addVertex(LINE, toNanometres(to.x), toNanometres(to.y));
+            } else if (operator instanceof ArcTo) {
+                ArcTo arcTo = (ArcTo) operator;
+                addVertex(arcTo.getOrientation().equals("-") ? ARC_CW : ARC_CCW,
+                        toNanometres(arcTo.getTo().x), toNanometres(arcTo.getTo().y));
+                addVertex(CENTER, toNanometres(arcTo.getCenter().x), toNanometres(arcTo.getCenter().y));
+            }
+        }
+    }
+
+    /**
+     * @return store with copies of the objects, in the given order, with the same styles
+     */
+    GraphicsStore copyOf(int[] objects) {
+        GraphicsStore copy = new GraphicsStore();
+        int vertices = 0;
+        for (int object : objects) {
+            vertices += getVertexEnd(object) - firstVertices[object];
+        }
+        copy.ensureCapacity(objects.length, vertices);
+
+        int[] copiedStyles = new int[styles.size()];
+        Arrays.fill(copiedStyles, -1);
+        for (int object : objects) {
+            copy.addObject(this, object, copiedStyles);
+        }
+        return copy;
+    }
+
+    /**
+     * Adds a copy of an object of another store
+     *
+     * @param styleMap index in this store of every style of the other store, -1 for styles
+     *                 not registered yet, which are registered and filled in
+     */
+    void addObject(GraphicsStore source, int object, int[] styleMap) {
+        int style = source.styleIndices[object];
+        if (styleMap[style] < 0) {
+            styleMap[style] = getStyleIndex(source.styles.get(style));
+        }
+        beginObject(source.kinds[object], styleMap[style]);
+        int end = source.getVertexEnd(object);
+        for (int vertex = source.firstVertices[object]; vertex < end; vertex++) {
+            addVertex(source.operations[vertex], source.xs[vertex], source.ys[vertex]);
+        }
+    }
+
+    /**
+     * Objects are only ever appended, and columns that are full are replaced by larger copies,
+     * so the rows of the objects stored so far never change. A snapshot shares the columns
+     * and keeps the counts of now, which costs a copy of the style table only. Objects
+     * cannot be added to a snapshot.
+     *
+     * @return store with the objects stored so far
+     */
+    GraphicsStore snapshot() {
+        return new GraphicsStore(this);
+    }
+
+    /**
+     * Converts millimetres to the nanometres stored for every point, rounding to the nearest
+     * nanometre with halves rounded up ({@link Math#round(double)}).
+     *
+     * @throws IllegalArgumentException if the value is not finite or too large for Gerber
+     *                                  coordinates, which have at most 6 integer digits
+     */
+    static long toNanometres(double millimetres) {
+        if (!(Math.abs(millimetres) < MAX_COORDINATE)) {
+            throw new IllegalArgumentException("Coordinate out of range: " + millimetres);
+        }
+        return Math.round(millimetres * DataLayer.TO_NM);
+    }
+
+    static void validatePoint(Point point) {
+        toNanometres(point.x);
+        toNanometres(point.y);
+    }
+
+    static void validatePath(Path path) {
+        for (PathOperator operator : path.getOperators()) {
+            if (operator instanceof ArcTo) {
+                validatePoint(((ArcTo) operator).getCenter());
+            }
+        }
+        validatePoint(path.getPointMax());
+    }
+
+    private static void validateCoordinates(double[] millimetres) {
+        for (double value : millimetres) {
+            toNanometres(value);
+        }
+    }
+
+    /**
+     * Grows the columns at once to hold the given number of objects and vertices
+     */
+    private void ensureCapacity(int objects, int vertices) {
+        if (objects > kinds.length) {
+            int capacity = Math.max(objects, grow(kinds.length));
+            kinds = Arrays.copyOf(kinds, capacity);
+            styleIndices = Arrays.copyOf(styleIndices, capacity);
+            firstVertices = Arrays.copyOf(firstVertices, capacity);
+        }
+        if (vertices > operations.length) {
+            int capacity = Math.max(vertices, grow(operations.length));
+            operations = Arrays.copyOf(operations, capacity);
+            xs = Arrays.copyOf(xs, capacity);
+            ys = Arrays.copyOf(ys, capacity);
+        }
+    }
+
+    /**
+     * Starts a new object, its vertices are added with {@link #addVertex(byte, long, long)}
+     */
+    void beginObject(byte kind, int style) {
+        if (frozen) {
+            // The columns beyond the counts belong to the store the snapshot was taken from
+            throw new IllegalStateException("Objects cannot be added to a snapshot");
+        }
+        if (objectCount == kinds.length) {
+            int capacity = grow(objectCount);
+            kinds = Arrays.copyOf(kinds, capacity);
+            styleIndices = Arrays.copyOf(styleIndices, capacity);
+            firstVertices = Arrays.copyOf(firstVertices, capacity);
+        }
+        kinds[objectCount] = kind;
+        styleIndices[objectCount] = style;
+        firstVertices[objectCount] = vertexCount;
+        objectCount++;
+    }
+
+    void addVertex(byte operation, long x, long y) {
+        if (vertexCount == operations.length) {
+            int capacity = grow(vertexCount);
+            operations = Arrays.copyOf(operations, capacity);
+            xs = Arrays.copyOf(xs, capacity);
+            ys = Arrays.copyOf(ys, capacity);
+        }
+        operations[vertexCount] = operation;
+        xs[vertexCount] = x;
+        ys[vertexCount] = y;
+        vertexCount++;
+        if (operation != CENTER) {
+            maxAbsX = Math.max(maxAbsX, Math.abs(x));
+            maxAbsY = Math.max(maxAbsY, Math.abs(y));
+        }
+    }
+
+    /**
+     * @return index of the style in the style table, registering it if needed
+     */
+    int getStyleIndex(Object style) {
+        Integer index = styleIndex.get(style);
+        if (index == null) {
+            index = styles.size();
+            styles.add(style);
+            styleIndex.put(style, index);
+        }
+        return index;
+    }
+
+    int size() {
+        return objectCount;
+    }
+
+    int getVertexCount() {
+        return vertexCount;
+    }
+
+    int getStyleCount() {
+        return styles.size();
+    }
+
+    Object getStyle(int styleIndex) {
+        return styles.get(styleIndex);
+    }
+
+    byte getKind(int object) {
+        return kinds[object];
+    }
+
+    int getStyleIndexOf(int object) {
+        return styleIndices[object];
+    }
+
+    int getFirstVertex(int object) {
+        return firstVertices[object];
+    }
+
+    /**
+     * @return index after the last vertex of the object
+     */
+    int getVertexEnd(int object) {
+        return object + 1 < objectCount ? firstVertices[object + 1] : vertexCount;
+    }
+
+    /**
+     * @return index of the vertex holding the point where the object ends
+     */
+    int getLastPointVertex(int object) {
+        int vertex = getVertexEnd(object) - 1;
+        return operations[vertex] == CENTER ? vertex - 1 : vertex;
+    }
+
+    boolean isNegative(int object) {
+        return isNegativeStyle(styles.get(styleIndices[object]));
+    }
+
+    static boolean isNegativeStyle(Object style) {
+        if (style instanceof PadStyle) {
+            return ((PadStyle) style).master.isNegative();
+        } else if (style instanceof TraceStyle) {
+            return ((TraceStyle) style).negative;
+        }
+        return ((RegionStyle) style).negative;
+    }
+
+    /**
+     * @return whether objects of the style are flashes of a block with clear contents, which
+     * clear what is drawn under them, so they must stay where they are among the objects of
+     * their polarity
+     */
+    static boolean isBarrierStyle(Object style) {
+        return style instanceof PadStyle && ((PadStyle) style).master instanceof BlockAperture
+                && hasClearContents((BlockAperture) ((PadStyle) style).master);
+    }
+
+    private static boolean hasClearContents(BlockAperture block) {
+        for (BlockAperture.Element element : block.getElements()) {
+            if (element.isNegative() || (element.getMaster() instanceof BlockAperture
+                    && hasClearContents((BlockAperture) element.getMaster()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    byte getOperation(int vertex) {
+        return operations[vertex];
+    }
+
+    /**
+     * @return X coordinate of the vertex in nanometres
+     */
+    long getX(int vertex) {
+        return xs[vertex];
+    }
+
+    long getY(int vertex) {
+        return ys[vertex];
+    }
+
+    long getMaxAbsX() {
+        return maxAbsX;
+    }
+
+    long getMaxAbsY() {
+        return maxAbsY;
+    }
+
+    private static int grow(int capacity) {
+        return Math.max(INITIAL_CAPACITY, capacity + (capacity >> 1));
+    }
+
+    static final class PadStyle {
+        final AbstractPad master;
+        final double angle;
+
+        PadStyle(AbstractPad master, double angle) {
+            this.master = master;
+            this.angle = angle;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            PadStyle padStyle = (PadStyle) o;
+            // Masters are compared by identity, like the masters themselves
+            return master == padStyle.master && Double.compare(padStyle.angle, angle) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(master) + Double.hashCode(angle);
+        }
+    }
+
+    static final class TraceStyle {
+        final double width;
+        final String function;
+        final boolean negative;
+
+        TraceStyle(double width, String function, boolean negative) {
+            this.width = width;
+            this.function = function;
+            this.negative = negative;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            TraceStyle that = (TraceStyle) o;
+            return Double.compare(that.width, width) == 0 && negative == that.negative &&
+                    function.equals(that.function);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = Double.hashCode(width);
+            result = 31 * result + function.hashCode();
+            result = 31 * result + Boolean.hashCode(negative);
+            return result;
+        }
+    }
+
+    static final class RegionStyle {
+        final String function;
+        final boolean negative;
+
+        RegionStyle(String function, boolean negative) {
+            this.function = function;
+            this.negative = negative;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            RegionStyle that = (RegionStyle) o;
+            return negative == that.negative && function.equals(that.function);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * function.hashCode() + Boolean.hashCode(negative);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.bancika.gerberwriter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The data layers of one board, each with the name of the file it is written to.
+ * Layers keep the order in which they were added.
+ */
+public class LayerSet {
+
+    private final Map<String, DataLayer> layers = new LinkedHashMap<>();
+
+    /**
+     * @param fileName name of the Gerber file of the layer, e.g. {@code "copper_top.gbr"}
+     * @throws IllegalArgumentException if the name is empty or already used
+     */
+    public void add(String fileName, DataLayer layer) {
+        if (fileName == null || fileName.trim().isEmpty()) {
+            throw new IllegalArgumentException("File name cannot be empty");
+        }
+        if (layer == null) {
+            throw new IllegalArgumentException("Layer cannot be null");
+        }
+        if (layers.containsKey(fileName)) {
+            throw new IllegalArgumentException("Duplicate file name: " + fileName);
+        }
+        layers.put(fileName, layer);
+    }
+
+    public List<String> getFileNames() {
+        return Collections.unmodifiableList(new ArrayList<>(layers.keySet()));
+    }
+
+    public DataLayer getLayer(String fileName) {
+        return layers.get(fileName);
+    }
+
+    public int size() {
+        return layers.size();
+    }
+}
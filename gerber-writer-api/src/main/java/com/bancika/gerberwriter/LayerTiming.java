@@ -0,0 +1,50 @@
+package com.bancika.gerberwriter;
+
+/**
+ * How long writing one layer of a {@link FabricationJob} took and how large its file is
+ */
+public class LayerTiming {
+
+    private final String fileName;
+    private final long nanos;
+    private final long size;
+    private final long compressedSize;
+
+    public LayerTiming(String fileName, long nanos, long size, long compressedSize) {
+        this.fileName = fileName;
+        this.nanos = nanos;
+        this.size = size;
+        this.compressedSize = compressedSize;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * @return time spent encoding and compressing the layer, in nanoseconds
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * @return size of the Gerber file in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return size of the Gerber file in the ZIP archive in bytes
+     */
+    public long getCompressedSize() {
+        return compressedSize;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %.1f ms, %d bytes (%d compressed)",
+                fileName, nanos / 1e6, size, compressedSize);
+    }
+}
@@ -0,0 +1,232 @@
+package com.bancika.gerberwriter;
+
+import com.bancika.gerberwriter.GraphicsStore.PadStyle;
+import com.bancika.gerberwriter.GraphicsStore.TraceStyle;
+import com.bancika.gerberwriter.padmasters.*;
+
+/**
+ * Exact bounding boxes of the objects of a store, in nanometres.
+ * <p>
+ * A pad covers its aperture under its angle: the rotated corners of rectangles and polygons,
+ * the rotated corner circles of rounded rectangles and the boxes of the contents of blocks.
+ * Thermals are bounded by their outer circle. Traces and regions cover their points and the
+ * points where their arcs cross the axes through the center, so bulges are included, and
+ * traces are grown by half their width. Boxes are rounded outwards to whole nanometres.
+ */
+final class ObjectBounds {
+
+    // nm, rounding errors of the aperture geometry that are ignored when rounding outwards
+    private static final double EPSILON = 1e-3;
+
+    private final GraphicsStore store;
+    private final ApertureTemplateCache templates;
+    // Box of a pad around its flash point, or half the width of traces, per style
+    private final long[][] styleExtents;
+    // Box of the object being computed
+    private long minX;
+    private long minY;
+    private long maxX;
+    private long maxY;
+
+    ObjectBounds(GraphicsStore store, ApertureTemplateCache templates) {
+        this.store = store;
+        this.templates = templates;
+        this.styleExtents = new long[store.getStyleCount()][];
+    }
+
+    /**
+     * @return minimum X, minimum Y, maximum X and maximum Y of every object
+     */
+    long[] computeAll() {
+        long[] bounds = new long[4 * store.size()];
+        for (int object = 0; object < store.size(); object++) {
+            compute(object, bounds, 4 * object);
+        }
+        return bounds;
+    }
+
+    /**
+     * Writes minimum X, minimum Y, maximum X and maximum Y of the object to the bounds
+     */
+    void compute(int object, long[] bounds, int offset) {
+        int first = store.getFirstVertex(object);
+        byte kind = store.getKind(object);
+        if (kind == GraphicsStore.PAD) {
+            long[] extent = getPadExtent(store.getStyleIndexOf(object));
+            bounds[offset] = store.getX(first) + extent[0];
+            bounds[offset + 1] = store.getY(first) + extent[1];
+            bounds[offset + 2] = store.getX(first) + extent[2];
+            bounds[offset + 3] = store.getY(first) + extent[3];
+            return;
+        }
+
+        minX = Long.MAX_VALUE;
+        minY = Long.MAX_VALUE;
+        maxX = Long.MIN_VALUE;
+        maxY = Long.MIN_VALUE;
+        int end = store.getVertexEnd(object);
+        for (int vertex = first; vertex < end; vertex++) {
+            byte operation = store.getOperation(vertex);
+            if (operation == GraphicsStore.CENTER) {
+                continue;
+            }
+            long x = store.getX(vertex);
+            long y = store.getY(vertex);
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+            if (operation == GraphicsStore.ARC_CW || operation == GraphicsStore.ARC_CCW) {
+                int from = store.getOperation(vertex - 1) == GraphicsStore.CENTER ? vertex - 2 : vertex - 1;
+                includeArc(store.getX(from), store.getY(from), x, y,
+                        store.getX(vertex + 1), store.getY(vertex + 1), operation == GraphicsStore.ARC_CCW);
+            }
+        }
+
+        long halfWidth = kind == GraphicsStore.TRACES ? getHalfWidth(store.getStyleIndexOf(object)) : 0;
+        bounds[offset] = minX - halfWidth;
+        bounds[offset + 1] = minY - halfWidth;
+        bounds[offset + 2] = maxX + halfWidth;
+        bounds[offset + 3] = maxY + halfWidth;
+    }
+
+    /**
+     * Includes the points where the arc crosses the horizontal and vertical axes through its
+     * center. Equal start and end points make a full circle.
+     */
+    private void includeArc(long startX, long startY, long endX, long endY, long centerX, long centerY,
+                            boolean counterclockwise) {
+        double radius = Math.max(Math.hypot(startX - centerX, startY - centerY),
+                Math.hypot(endX - centerX, endY - centerY));
+        double startAngle = Math.atan2(startY - centerY, startX - centerX);
+        double endAngle = Math.atan2(endY - centerY, endX - centerX);
+        double sweep = startX == endX && startY == endY ? 2 * Math.PI
+                : normalize(counterclockwise ? endAngle - startAngle : startAngle - endAngle);
+
+        for (int quadrant = 0; quadrant < 4; quadrant++) {
+            double axisAngle = quadrant * Math.PI / 2;
+            double distance = normalize(counterclockwise ? axisAngle - startAngle : startAngle - axisAngle);
+            if (distance > sweep) {
+                continue;
+            }
+            switch (quadrant) {
+                case 0:
+                    maxX = Math.max(maxX, (long) Math.ceil(centerX + radius - EPSILON));
+                    break;
+                case 1:
+                    maxY = Math.max(maxY, (long) Math.ceil(centerY + radius - EPSILON));
+                    break;
+                case 2:
+                    minX = Math.min(minX, (long) Math.floor(centerX - radius + EPSILON));
+                    break;
+                default:
+                    minY = Math.min(minY, (long) Math.floor(centerY - radius + EPSILON));
+            }
+        }
+    }
+
+    /**
+     * @return the angle in [0, 2 pi)
+     */
+    private static double normalize(double angle) {
+        double normalized = angle % (2 * Math.PI);
+        return normalized < 0 ? normalized + 2 * Math.PI : normalized;
+    }
+
+    private long getHalfWidth(int style) {
+        long[] extent = styleExtents[style];
+        if (extent == null) {
+            extent = new long[]{(long) Math.ceil(((TraceStyle) store.getStyle(style)).width / 2 * DataLayer.TO_NM - EPSILON)};
+            styleExtents[style] = extent;
+        }
+        return extent[0];
+    }
+
+    private long[] getPadExtent(int style) {
+        long[] extent = styleExtents[style];
+        if (extent == null) {
+            extent = computePadExtent((PadStyle) store.getStyle(style));
+            styleExtents[style] = extent;
+        }
+        return extent;
+    }
+
+    private long[] computePadExtent(PadStyle pad) {
+        AbstractPad master = pad.master;
+        if (master instanceof Circle) {
+            return extent(new Point[]{new Point(0, 0)}, 0, ((Circle) master).getDiameter() / 2);
+        } else if (master instanceof Rectangle) {
+            Rectangle rect = (Rectangle) master;
+            return extent(corners(rect.getXSize() / 2, rect.getYSize() / 2), pad.angle, 0);
+        } else if (master instanceof RoundedRectangle) {
+            RoundedRectangle rounded = (RoundedRectangle) master;
+            double radius = rounded.getRadius();
+            return extent(corners(rounded.getXSize() / 2 - radius, rounded.getYSize() / 2 - radius),
+                    pad.angle, radius);
+        } else if (master instanceof ChamferedRectangle) {
+            ChamferedRectangle chamfered = (ChamferedRectangle) master;
+            double x = chamfered.getXSize() / 2;
+            double y = chamfered.getYSize() / 2;
+            double cutoff = chamfered.getCutoff();
+            Point[] points = new Point[8];
+            System.arraycopy(corners(x, y - cutoff), 0, points, 0, 4);
+            System.arraycopy(corners(x - cutoff, y), 0, points, 4, 4);
+            return extent(points, pad.angle, 0);
+        } else if (master instanceof Thermal) {
+            return extent(new Point[]{new Point(0, 0)}, 0, ((Thermal) master).getOuterDiameter() / 2);
+        } else if (master instanceof RoundedThermal) {
+            return extent(new Point[]{new Point(0, 0)}, 0, ((RoundedThermal) master).getOuterDiameter() / 2);
+        } else if (master instanceof RegularPolygon) {
+            RegularPolygon polygon = (RegularPolygon) master;
+            Point[] points = new Point[polygon.getVertices()];
+            for (int i = 0; i < points.length; i++) {
+                double angle = 2 * Math.PI * i / points.length;
+                points[i] = new Point(polygon.getOuterDiameter() / 2 * Math.cos(angle),
+                        polygon.getOuterDiameter() / 2 * Math.sin(angle));
+            }
+            return extent(points, pad.angle, 0);
+        } else if (master instanceof UserPolygon) {
+            return extent(((UserPolygon) master).getPolygon(), pad.angle, 0);
+        } else if (master instanceof BlockAperture) {
+            // The contents of the block are already rotated by the angle of the pad
+            GraphicsStore block = templates.get(pad).block;
+            long[] bounds = new ObjectBounds(block, templates).computeAll();
+            long[] extent = {Long.MAX_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE};
+            for (int i = 0; i < bounds.length; i += 4) {
+                extent[0] = Math.min(extent[0], bounds[i]);
+                extent[1] = Math.min(extent[1], bounds[i + 1]);
+                extent[2] = Math.max(extent[2], bounds[i + 2]);
+                extent[3] = Math.max(extent[3], bounds[i + 3]);
+            }
+            return extent;
+        }
+        throw new IllegalArgumentException("Unknown pad master type: " + master.getClass().getName());
+    }
+
+    private static Point[] corners(double x, double y) {
+        return new Point[]{new Point(x, y), new Point(-x, y), new Point(-x, -y), new Point(x, -y)};
+    }
+
+    /**
+     * @param radius distance by which the rotated points are grown, in mm
+     * @return box of the points rotated around the origin, in nanometres
+     */
+    private static long[] extent(Point[] points, double angle, double radius) {
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (Point point : points) {
+            Point rotated = angle == 0 ? point : Point.rotate(point, angle);
+            minX = Math.min(minX, rotated.x);
+            minY = Math.min(minY, rotated.y);
+            maxX = Math.max(maxX, rotated.x);
+            maxY = Math.max(maxY, rotated.y);
+        }
+        return new long[]{
+                (long) Math.floor((minX - radius) * DataLayer.TO_NM + EPSILON),
+                (long) Math.floor((minY - radius) * DataLayer.TO_NM + EPSILON),
+                (long) Math.ceil((maxX + radius) * DataLayer.TO_NM - EPSILON),
+                (long) Math.ceil((maxY + radius) * DataLayer.TO_NM - EPSILON)};
+    }
+}
@@ -0,0 +1,34 @@
+package com.bancika.gerberwriter;
+
+/**
+ * Order in which the graphics objects of a layer are written, see
+ * {@link DataLayer#setObjectOrder(ObjectOrder)}.
+ * <p>
+ * Objects are only reordered within runs of consecutive objects with the same polarity,
+ * so the image is the same as in insertion order. Within a run, objects using the same
+ * aperture are written together, which saves the aperture selections, and each group is
+ * ordered to keep the moves between objects short, which saves D02 moves when traces
+ * continue where the previous one ended.
+ * <p>
+ * An aperture selection is much shorter than a D02 move, so a layer where most traces
+ * start at the pad added just before them can get larger when reordered.
+ */
+public enum ObjectOrder {
+
+    /**
+     * Objects are written in the order they were added
+     */
+    INSERTION,
+
+    /**
+     * Objects with the same aperture are ordered along a Hilbert curve through their start points
+     */
+    HILBERT,
+
+    /**
+     * Objects with the same aperture are ordered greedily, each followed by the object starting
+     * nearest to where it ends. Candidates are looked up among the next objects along the
+     * Hilbert curve, so the cost stays linear in the number of objects.
+     */
+    NEAREST_NEIGHBOUR
+}
@@ -0,0 +1,209 @@
+package com.bancika.gerberwriter;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Computes the order in which objects are written for an {@link ObjectOrder}.
+ */
+final class ObjectOrdering {
+
+    private static final int HILBERT_ORDER = 16; // 2^16 x 2^16 grid over the layer
+    private static final int NEIGHBOUR_CANDIDATES = 32;
+
+    private final GraphicsStore store;
+    private final int[] dcodes;
+    private final ObjectOrder objectOrder;
+    private final boolean[] negativeStyles;
+    private final boolean[] barrierStyles;
+    private double minX = Double.POSITIVE_INFINITY;
+    private double minY = Double.POSITIVE_INFINITY;
+    private double scale;
+
+    private ObjectOrdering(GraphicsStore store, int[] dcodes, ObjectOrder objectOrder) {
+        this.store = store;
+        this.dcodes = dcodes;
+        this.objectOrder = objectOrder;
+        this.negativeStyles = new boolean[store.getStyleCount()];
+        this.barrierStyles = new boolean[store.getStyleCount()];
+        for (int i = 0; i < negativeStyles.length; i++) {
+            negativeStyles[i] = GraphicsStore.isNegativeStyle(store.getStyle(i));
+            barrierStyles[i] = GraphicsStore.isBarrierStyle(store.getStyle(i));
+        }
+    }
+
+    /**
+     * @param dcodes D-codes of the apertures, indexed by style
+     * @return objects in the order they are written, or {@code null} for insertion order
+     */
+    static int[] order(GraphicsStore store, int[] dcodes, ObjectOrder objectOrder) {
+        if (objectOrder == ObjectOrder.INSERTION || store.size() == 0) {
+            return null;
+        }
+        return new ObjectOrdering(store, dcodes, objectOrder).order();
+    }
+
+    private int[] order() {
+        // Hilbert coordinates are relative to the box around all start points
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < store.size(); i++) {
+            int vertex = store.getFirstVertex(i);
+            minX = Math.min(minX, store.getX(vertex));
+            minY = Math.min(minY, store.getY(vertex));
+            maxX = Math.max(maxX, store.getX(vertex));
+            maxY = Math.max(maxY, store.getY(vertex));
+        }
+        double extent = Math.max(maxX - minX, maxY - minY);
+        scale = extent > 0 ? ((1 << HILBERT_ORDER) - 1) / extent : 0;
+
+        int[] order = new int[store.size()];
+        int runStart = 0;
+        while (runStart < store.size()) {
+            boolean negative = isNegative(runStart);
+            int runEnd = runStart + 1;
+            // Blocks with clear contents are runs of their own, nothing moves across them
+            if (!isBarrier(runStart)) {
+                while (runEnd < store.size() && isNegative(runEnd) == negative && !isBarrier(runEnd)) {
+                    runEnd++;
+                }
+            }
+            orderRun(runStart, runEnd, order);
+            runStart = runEnd;
+        }
+        return order;
+    }
+
+    private void orderRun(int from, int to, int[] order) {
+        // Groups of objects with the same aperture (regions: the same attributes),
+        // in order of their first object
+        Map<Integer, Integer> groupIds = new HashMap<>();
+        int[] groups = new int[to - from];
+        for (int i = from; i < to; i++) {
+            int styleIndex = store.getStyleIndexOf(i);
+            int key = store.getKind(i) == GraphicsStore.REGION ? -1 - styleIndex : dcodes[styleIndex];
+            Integer group = groupIds.get(key);
+            if (group == null) {
+                group = groupIds.size();
+                groupIds.put(key, group);
+            }
+            groups[i - from] = group;
+        }
+
+        // Counting sort by group keeps the insertion order within each group
+        int[] groupStarts = new int[groupIds.size() + 1];
+        for (int group : groups) {
+            groupStarts[group + 1]++;
+        }
+        for (int group = 0; group < groupIds.size(); group++) {
+            groupStarts[group + 1] += groupStarts[group];
+        }
+        int[] next = Arrays.copyOf(groupStarts, groupIds.size());
+        for (int i = from; i < to; i++) {
+            order[from + next[groups[i - from]]++] = i;
+        }
+
+        int previous = from > 0 ? order[from - 1] : -1;
+        for (int group = 0; group < groupIds.size(); group++) {
+            int groupFrom = from + groupStarts[group];
+            int groupTo = from + groupStarts[group + 1];
+            sortByHilbert(order, groupFrom, groupTo);
+            if (objectOrder == ObjectOrder.NEAREST_NEIGHBOUR) {
+                orderByNeighbours(order, groupFrom, groupTo, previous);
+            }
+            previous = order[groupTo - 1];
+        }
+    }
+
+    private void sortByHilbert(int[] order, int from, int to) {
+        // Hilbert index in the high bits, position in the group in the low 31 bits
+        long[] keys = new long[to - from];
+        for (int i = from; i < to; i++) {
+            int vertex = store.getFirstVertex(order[i]);
+            keys[i - from] = hilbertIndex(store.getX(vertex), store.getY(vertex)) << 31 | (i - from);
+        }
+        Arrays.sort(keys);
+        int[] objects = Arrays.copyOfRange(order, from, to);
+        for (int i = 0; i < keys.length; i++) {
+            order[from + i] = objects[(int) (keys[i] & Integer.MAX_VALUE)];
+        }
+    }
+
+    /**
+     * Reorders objects sorted along the Hilbert curve so that each is followed by the one among
+     * the next few candidates that starts nearest to its end
+     */
+    private void orderByNeighbours(int[] order, int from, int to, int previous) {
+        int[] objects = Arrays.copyOfRange(order, from, to);
+        boolean[] taken = new boolean[objects.length];
+        int first = 0; // first object not taken yet
+        double x = Double.NaN;
+        double y = Double.NaN;
+        if (previous >= 0) {
+            int vertex = store.getLastPointVertex(previous);
+            x = store.getX(vertex);
+            y = store.getY(vertex);
+        }
+        for (int position = from; position < to; position++) {
+            while (taken[first]) {
+                first++;
+            }
+            int best = first;
+            if (!Double.isNaN(x)) {
+                double bestDistance = Double.POSITIVE_INFINITY;
+                int candidates = 0;
+                for (int i = first; i < objects.length && candidates < NEIGHBOUR_CANDIDATES; i++) {
+                    if (taken[i]) {
+                        continue;
+                    }
+                    candidates++;
+                    int vertex = store.getFirstVertex(objects[i]);
+                    double dx = store.getX(vertex) - x;
+                    double dy = store.getY(vertex) - y;
+                    double distance = dx * dx + dy * dy;
+                    if (distance < bestDistance) {
+                        bestDistance = distance;
+                        best = i;
+                    }
+                }
+            }
+            taken[best] = true;
+            order[position] = objects[best];
+            int vertex = store.getLastPointVertex(objects[best]);
+            x = store.getX(vertex);
+            y = store.getY(vertex);
+        }
+    }
+
+    private long hilbertIndex(double x, double y) {
+        int n = 1 << HILBERT_ORDER;
+        int hx = (int) ((x - minX) * scale);
+        int hy = (int) ((y - minY) * scale);
+        long index = 0;
+        for (int s = n / 2; s > 0; s /= 2) {
+            int rx = (hx & s) > 0 ? 1 : 0;
+            int ry = (hy & s) > 0 ? 1 : 0;
+            index += (long) s * s * ((3 * rx) ^ ry);
+            // Rotate the quadrant
+            if (ry == 0) {
+                if (rx == 1) {
+                    hx = n - 1 - hx;
+                    hy = n - 1 - hy;
+                }
+                int t = hx;
+                hx = hy;
+                hy = t;
+            }
+        }
+        return index;
+    }
+
+    private boolean isNegative(int object) {
+        return negativeStyles[store.getStyleIndexOf(object)];
+    }
+
+    private boolean isBarrier(int object) {
+        return barrierStyles[store.getStyleIndexOf(object)];
+    }
+}
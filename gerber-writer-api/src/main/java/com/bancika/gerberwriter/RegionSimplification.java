@@ -0,0 +1,171 @@
+package com.bancika.gerberwriter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Finds the vertices of region contours that can be left out without moving the contour by
+ * more than {@link DataLayer#TOLERANCE}, see {@link DataLayer#setSimplifyRegions(boolean)}.
+ * <p>
+ * Every run of straight segments is simplified in one linear pass of cone intersection
+ * (sleeve fitting): from the last kept point, every following point narrows the cone of
+ * directions whose rays pass within the tolerance of it. A point is left out while the next
+ * one still lies in the cone of all points before it and farther from the kept point, so
+ * the segment to that next point passes all of them. Points within the tolerance of the
+ * kept point are left out the same way. Arcs and the points where runs start and end are
+ * always kept, so contours stay closed and arcs keep their end points.
+ * <p>
+ * Regions do not depend on each other, so with a pool they are simplified in parallel chunks.
+ */
+final class RegionSimplification {
+
+    // nm, half of DataLayer.TOLERANCE to leave room for rounding to whole nanometres
+    private static final double TOLERANCE = DataLayer.TOLERANCE / 2 * DataLayer.TO_NM;
+
+    private final GraphicsStore store;
+    private final boolean[] skipped;
+    private long skippedCount;
+
+    private RegionSimplification(GraphicsStore store) {
+        this.store = store;
+        this.skipped = new boolean[store.getVertexCount()];
+    }
+
+    /**
+     * @param pool pool to simplify large layers in parallel, or {@code null}
+     */
+    static RegionSimplification simplify(GraphicsStore store, ForkJoinPool pool) {
+        RegionSimplification simplification = new RegionSimplification(store);
+        int chunkCount = (store.size() + BodyEncoder.CHUNK_SIZE - 1) / BodyEncoder.CHUNK_SIZE;
+        if (pool == null || chunkCount < 2) {
+            simplification.skippedCount = simplification.simplify(0, store.size());
+            return simplification;
+        }
+
+        // Chunks write to the disjoint vertex ranges of their objects
+        List<ForkJoinTask<Long>> tasks = new ArrayList<>(chunkCount);
+        for (int chunk = 0; chunk < chunkCount; chunk++) {
+            int from = chunk * BodyEncoder.CHUNK_SIZE;
+            int to = Math.min(from + BodyEncoder.CHUNK_SIZE, store.size());
+            tasks.add(pool.submit(() -> simplification.simplify(from, to)));
+        }
+        for (ForkJoinTask<Long> task : tasks) {
+            simplification.skippedCount += task.join();
+        }
+        return simplification;
+    }
+
+    /**
+     * @return for every vertex of the store, whether it is left out
+     */
+    boolean[] getSkipped() {
+        return skipped;
+    }
+
+    long getSkippedCount() {
+        return skippedCount;
+    }
+
+    /**
+     * @return number of points of the regions in the store, arc centers are not included
+     */
+    static long countRegionPoints(GraphicsStore store) {
+        long points = 0;
+        for (int object = 0; object < store.size(); object++) {
+            if (store.getKind(object) == GraphicsStore.REGION) {
+                for (int vertex = store.getFirstVertex(object); vertex < store.getVertexEnd(object); vertex++) {
+                    if (store.getOperation(vertex) != GraphicsStore.CENTER) {
+                        points++;
+                    }
+                }
+            }
+        }
+        return points;
+    }
+
+    /**
+     * @return number of vertices left out in the regions of the range
+     */
+    private long simplify(int from, int to) {
+        long count = 0;
+        for (int object = from; object < to; object++) {
+            if (store.getKind(object) != GraphicsStore.REGION) {
+                continue;
+            }
+            int end = store.getVertexEnd(object);
+            int vertex = store.getFirstVertex(object);
+            while (vertex < end) {
+                if (store.getOperation(vertex) != GraphicsStore.LINE) {
+                    vertex++;
+                    continue;
+                }
+                int last = vertex;
+                while (last + 1 < end && store.getOperation(last + 1) == GraphicsStore.LINE) {
+                    last++;
+                }
+                int anchor = store.getOperation(vertex - 1) == GraphicsStore.CENTER ? vertex - 2 : vertex - 1;
+                count += simplifyRun(anchor, vertex, last);
+                vertex = last + 1;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Simplifies the line vertices from first to last, which is kept, starting at the point
+     * of the anchor vertex
+     *
+     * @return number of vertices left out
+     */
+    private long simplifyRun(int anchor, int first, int last) {
+        long count = 0;
+        int key = anchor;
+        int vertex = first;
+        while (vertex < last) {
+            // Directions from the key point are relative to the first point outside the tolerance
+            double keyX = store.getX(key);
+            double keyY = store.getY(key);
+            double referenceX = 0;
+            double referenceY = 0;
+            double low = -Math.PI;
+            double high = Math.PI;
+            double distance = 0;
+            int next = vertex;
+            while (next <= last) {
+                double x = store.getX(next) - keyX;
+                double y = store.getY(next) - keyY;
+                double nextDistance = Math.hypot(x, y);
+                if (nextDistance < distance) {
+                    break; // the contour turns back
+                }
+                if (nextDistance > TOLERANCE) {
+                    if (referenceX == 0 && referenceY == 0) {
+                        referenceX = x / nextDistance;
+                        referenceY = y / nextDistance;
+                    }
+                    double angle = Math.atan2(referenceX * y - referenceY * x, referenceX * x + referenceY * y);
+                    if (angle < low || angle > high) {
+                        break; // no segment from the key point through here passes all points before
+                    }
+                    double spread = Math.asin(TOLERANCE / nextDistance);
+                    low = Math.max(low, angle - spread);
+                    high = Math.min(high, angle + spread);
+                }
+                distance = nextDistance;
+                next++;
+            }
+
+            // The last point that passed is kept, the ones before it are within the tolerance
+            int kept = Math.max(next - 1, vertex);
+            for (int i = vertex; i < kept; i++) {
+                skipped[i] = true;
+                count++;
+            }
+            key = kept;
+            vertex = kept + 1;
+        }
+        return count;
+    }
+}
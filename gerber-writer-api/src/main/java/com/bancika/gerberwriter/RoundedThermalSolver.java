@@ -0,0 +1,195 @@
+package com.bancika.gerberwriter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Geometry of the rounded thermal macro: the gap of its straight thermal primitive and the
+ * circles rounding the corners of that gap, chosen so that the gap left between the rounded
+ * corners is the gap of the pad.
+ * <p>
+ * The gap left is a function of the primitive gap, which is solved for by bracketed root
+ * finding. At the gap of the pad the rounding leaves too small a gap, so the primitive gap is
+ * stepped up towards the inner diameter until enough is left, and the root in that bracket is
+ * refined with the Illinois variant of regula falsi, which keeps the root bracketed and
+ * converges superlinearly. Iterations are capped at {@link #MAX_ITERATIONS}, and a gap that
+ * no primitive gap leaves is an error instead of an endless loop. Solutions are cached per
+ * diameters and gap, least recently used ones are dropped once the cache is full.
+ */
+final class RoundedThermalSolver {
+
+    static final int MAX_ITERATIONS = 100;
+    static final double PRECISION = 1e-12; // mm, largest error of the gap left
+
+    private static final int BRACKET_STEPS = 64;
+
+    private final Map<Key, Solution> solutions;
+
+    RoundedThermalSolver(int capacity) {
+        this.solutions = new LinkedHashMap<Key, Solution>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Solution> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @throws IllegalArgumentException if no primitive gap leaves the gap between the rounded corners
+     */
+    synchronized Solution solve(double outerDiameter, double innerDiameter, double gap) {
+        Key key = new Key(outerDiameter, innerDiameter, gap);
+        Solution solution = solutions.get(key);
+        if (solution == null) {
+            solution = compute(outerDiameter, innerDiameter, gap);
+            solutions.put(key, solution);
+        }
+        return solution;
+    }
+
+    synchronized int size() {
+        return solutions.size();
+    }
+
+    static Solution compute(double outerDiameter, double innerDiameter, double gap) {
+        // Large gaps are rounded by a circle between the corners on the inner and outer circle,
+        // small ones by a circle touching the outer circle
+        boolean large = gap * Math.sqrt(2) >= innerDiameter - (1 + Math.sqrt(2)) * (outerDiameter - innerDiameter);
+        double gapPrimitive = findRoot(outerDiameter, innerDiameter, gap, large);
+
+        double cornerYInner = Math.sqrt(Math.max(0, innerDiameter * innerDiameter - gapPrimitive * gapPrimitive)) / 2;
+        double cornerYOuter = Math.sqrt(Math.max(0, outerDiameter * outerDiameter - gapPrimitive * gapPrimitive)) / 2;
+        if (large) {
+            double roundingDiameter = cornerYOuter - cornerYInner;
+            double centerY = (cornerYOuter + cornerYInner) / 2;  // Midpoint between corners
+            return new Solution(gapPrimitive, roundingDiameter,
+                    new Point(centerY, gapPrimitive / 2), new Point(gapPrimitive / 2, centerY));
+        }
+        double alfaOuter = Math.acos(gapPrimitive / outerDiameter);
+        double roundingDiameter = (cornerYOuter - cornerYInner) / Math.sin(alfaOuter);
+        double roundingDistance = outerDiameter - roundingDiameter;
+        return new Solution(gapPrimitive, roundingDiameter,
+                new Point(roundingDistance * Math.sin(alfaOuter) / 2, roundingDistance * Math.cos(alfaOuter) / 2),
+                new Point(roundingDistance * Math.cos(alfaOuter) / 2, roundingDistance * Math.sin(alfaOuter) / 2));
+    }
+
+    /**
+     * @return gap left between the rounded corners minus the gap of the pad
+     */
+    static double residual(double outerDiameter, double innerDiameter, double gap, boolean large,
+                           double gapPrimitive) {
+        // Y of the points where the gap meets the inner and the outer circle
+        double cornerYInner = Math.sqrt(Math.max(0, innerDiameter * innerDiameter - gapPrimitive * gapPrimitive)) / 2;
+        double cornerYOuter = Math.sqrt(Math.max(0, outerDiameter * outerDiameter - gapPrimitive * gapPrimitive)) / 2;
+        if (large) {
+            return gapPrimitive - (cornerYOuter - cornerYInner) - gap;
+        }
+        // sin and cos of the angle at which the gap meets the outer circle
+        double sinOuter = 2 * cornerYOuter / outerDiameter;
+        double cosOuter = gapPrimitive / outerDiameter;
+        return gapPrimitive - (cornerYOuter - cornerYInner) / sinOuter * (1 + cosOuter) - gap;
+    }
+
+    private static double findRoot(double outerDiameter, double innerDiameter, double gap, boolean large) {
+        double low = gap;
+        double lowResidual = residual(outerDiameter, innerDiameter, gap, large, low);
+        if (lowResidual >= 0) {
+            return low;
+        }
+
+        // The gap left can fall again close to the inner diameter, so the first root is
+        // bracketed by stepping up from the gap
+        double step = (innerDiameter - gap) / BRACKET_STEPS;
+        double high = Double.NaN;
+        double highResidual = Double.NaN;
+        for (int i = 1; i <= BRACKET_STEPS && step > 0; i++) {
+            double candidate = i == BRACKET_STEPS ? innerDiameter : gap + i * step;
+            double candidateResidual = residual(outerDiameter, innerDiameter, gap, large, candidate);
+            if (candidateResidual >= 0) {
+                high = candidate;
+                highResidual = candidateResidual;
+                break;
+            }
+            low = candidate;
+            lowResidual = candidateResidual;
+        }
+        if (Double.isNaN(high)) {
+            throw new IllegalArgumentException(String.format(
+                    "RoundedThermal gap %f cannot be made with outer diameter %f and inner diameter %f",
+                    gap, outerDiameter, innerDiameter));
+        }
+
+        // Illinois: when the same end is kept twice in a row, its residual is halved
+        int kept = 0;
+        for (int i = 0; i < MAX_ITERATIONS; i++) {
+            double middle = (low * highResidual - high * lowResidual) / (highResidual - lowResidual);
+            double middleResidual = residual(outerDiameter, innerDiameter, gap, large, middle);
+            if (Math.abs(middleResidual) <= PRECISION || high - low <= PRECISION) {
+                return middle;
+            }
+            if (middleResidual < 0) {
+                low = middle;
+                lowResidual = middleResidual;
+                if (kept > 0) {
+                    highResidual /= 2;
+                }
+                kept = 1;
+            } else {
+                high = middle;
+                highResidual = middleResidual;
+                if (kept < 0) {
+                    lowResidual /= 2;
+                }
+                kept = -1;
+            }
+        }
+        throw new IllegalStateException(String.format(
+                "RoundedThermal solver did not converge in %d iterations for outer diameter %f, inner diameter %f and gap %f",
+                MAX_ITERATIONS, outerDiameter, innerDiameter, gap));
+    }
+
+    static final class Solution {
+        final double gapPrimitive;
+        final double roundingDiameter;
+        final Point centerH;
+        final Point centerV;
+
+        Solution(double gapPrimitive, double roundingDiameter, Point centerH, Point centerV) {
+            this.gapPrimitive = gapPrimitive;
+            this.roundingDiameter = roundingDiameter;
+            this.centerH = centerH;
+            this.centerV = centerV;
+        }
+    }
+
+    private static final class Key {
+        final double outerDiameter;
+        final double innerDiameter;
+        final double gap;
+
+        Key(double outerDiameter, double innerDiameter, double gap) {
+            this.outerDiameter = outerDiameter;
+            this.innerDiameter = innerDiameter;
+            this.gap = gap;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Key key = (Key) o;
+            return Double.compare(key.outerDiameter, outerDiameter) == 0 &&
+                    Double.compare(key.innerDiameter, innerDiameter) == 0 &&
+                    Double.compare(key.gap, gap) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = Double.hashCode(outerDiameter);
+            result = 31 * result + Double.hashCode(innerDiameter);
+            result = 31 * result + Double.hashCode(gap);
+            return result;
+        }
+    }
+}
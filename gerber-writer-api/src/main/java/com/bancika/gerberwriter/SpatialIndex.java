@@ -0,0 +1,380 @@
+package com.bancika.gerberwriter;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/**
+ * R-tree over the bounding boxes of the objects of a layer, packed in bulk with
+ * Sort-Tile-Recursive (STR): the boxes are sorted into vertical slices by the X of their
+ * centers, every slice is sorted by Y and cut into nodes of {@link #NODE_SIZE}, and the nodes
+ * are packed the same way up to a single root. Nodes are full and barely overlap, so a
+ * window query visits about log n nodes plus the ones holding its results.
+ * <p>
+ * Every level is a set of primitive columns: the box of every entry and the range of its
+ * children in the level below, which are stored next to each other. Boxes are in nanometres.
+ * <p>
+ * Objects added after packing are kept in a pending range after the packed ones and scanned
+ * one by one by every query, until there are more than about the square root of the packed
+ * ones and {@link #extend(long[], int)} packs them all again. An object added between every
+ * two queries thus costs O(sqrt(n) log n) on average rather than a packing of O(n log n).
+ */
+final class SpatialIndex {
+
+    static final int NODE_SIZE = 16;
+
+    private static final int INSERTION_SORT_SIZE = 16;
+    // Pending objects allowed per square root of the packed ones, and at least
+    private static final int PENDING_FACTOR = 4;
+    private static final int MIN_PENDING = 64;
+
+    private final int size;
+    // Objects from this one on are pending, their boxes are in objectBounds
+    private final int packed;
+    private final long[] objectBounds;
+    // Box of all objects, packed and pending
+    private final long[] totalBounds;
+    // Boxes, 4 values per entry, of the objects at level 0 and of the nodes above
+    private final long[][] bounds;
+    // Object of every entry at level 0, first child of every node above
+    private final int[][] firstChildren;
+    // Number of children of every node above level 0
+    private final int[][] childCounts;
+
+    private SpatialIndex(int size, int packed, long[] objectBounds, long[] totalBounds,
+                         long[][] bounds, int[][] firstChildren, int[][] childCounts) {
+        this.size = size;
+        this.packed = packed;
+        this.objectBounds = objectBounds;
+        this.totalBounds = totalBounds;
+        this.bounds = bounds;
+        this.firstChildren = firstChildren;
+        this.childCounts = childCounts;
+    }
+
+    /**
+     * @param objectBounds minimum X, minimum Y, maximum X and maximum Y of every object, for
+     *                     at least the first count objects
+     */
+    static SpatialIndex build(long[] objectBounds, int count) {
+        int size = count;
+        int[] objects = new int[count];
+        for (int i = 0; i < count; i++) {
+            objects[i] = i;
+        }
+        int[] order = pack(objectBounds, count);
+        long[] levelBounds = permute(objectBounds, order);
+        int[] levelChildren = permute(objects, order);
+
+        long[][] bounds = {levelBounds};
+        int[][] firstChildren = {levelChildren};
+        int[][] childCounts = {null};
+        while (count > 1) {
+            // Consecutive entries of the level below become the children of a node
+            int nodes = (count + NODE_SIZE - 1) / NODE_SIZE;
+            long[] nodeBounds = new long[4 * nodes];
+            int[] nodeChildren = new int[nodes];
+            int[] nodeCounts = new int[nodes];
+            for (int node = 0; node < nodes; node++) {
+                int first = node * NODE_SIZE;
+                int end = Math.min(first + NODE_SIZE, count);
+                nodeChildren[node] = first;
+                nodeCounts[node] = end - first;
+                nodeBounds[4 * node] = Long.MAX_VALUE;
+                nodeBounds[4 * node + 1] = Long.MAX_VALUE;
+                nodeBounds[4 * node + 2] = Long.MIN_VALUE;
+                nodeBounds[4 * node + 3] = Long.MIN_VALUE;
+                for (int child = first; child < end; child++) {
+                    nodeBounds[4 * node] = Math.min(nodeBounds[4 * node], levelBounds[4 * child]);
+                    nodeBounds[4 * node + 1] = Math.min(nodeBounds[4 * node + 1], levelBounds[4 * child + 1]);
+                    nodeBounds[4 * node + 2] = Math.max(nodeBounds[4 * node + 2], levelBounds[4 * child + 2]);
+                    nodeBounds[4 * node + 3] = Math.max(nodeBounds[4 * node + 3], levelBounds[4 * child + 3]);
+                }
+            }
+
+            // The nodes are packed in turn, their children stay where they are
+            order = pack(nodeBounds, nodes);
+            levelBounds = permute(nodeBounds, order);
+            levelChildren = permute(nodeChildren, order);
+            int[] levelCounts = permute(nodeCounts, order);
+            bounds = Arrays.copyOf(bounds, bounds.length + 1);
+            firstChildren = Arrays.copyOf(firstChildren, firstChildren.length + 1);
+            childCounts = Arrays.copyOf(childCounts, childCounts.length + 1);
+            bounds[bounds.length - 1] = levelBounds;
+            firstChildren[firstChildren.length - 1] = levelChildren;
+            childCounts[childCounts.length - 1] = levelCounts;
+            count = nodes;
+        }
+        long[] totalBounds = size == 0 ? null : Arrays.copyOf(bounds[bounds.length - 1], 4);
+        return new SpatialIndex(size, size, objectBounds, totalBounds, bounds, firstChildren, childCounts);
+    }
+
+    /**
+     * @param objectBounds boxes of the objects of this index and of the ones added since, which
+     *                     may be a grown copy of the array this index was built from
+     * @return index over the first count objects, which shares the packed objects of this one
+     * as long as few objects were added
+     */
+    SpatialIndex extend(long[] objectBounds, int count) {
+        if (count - packed > Math.max(MIN_PENDING, PENDING_FACTOR * (int) Math.sqrt(packed))) {
+            return build(objectBounds, count);
+        }
+        long[] totalBounds = this.totalBounds;
+        for (int object = size; object < count; object++) {
+            if (totalBounds == null) {
+                totalBounds = Arrays.copyOfRange(objectBounds, 4 * object, 4 * object + 4);
+            } else {
+                if (totalBounds == this.totalBounds) {
+                    totalBounds = totalBounds.clone();
+                }
+                totalBounds[0] = Math.min(totalBounds[0], objectBounds[4 * object]);
+                totalBounds[1] = Math.min(totalBounds[1], objectBounds[4 * object + 1]);
+                totalBounds[2] = Math.max(totalBounds[2], objectBounds[4 * object + 2]);
+                totalBounds[3] = Math.max(totalBounds[3], objectBounds[4 * object + 3]);
+            }
+        }
+        return new SpatialIndex(count, packed, objectBounds, totalBounds, bounds, firstChildren, childCounts);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return minimum X, minimum Y, maximum X and maximum Y of all objects, or {@code null} if
+     * the index is empty
+     */
+    long[] getBounds() {
+        return totalBounds == null ? null : totalBounds.clone();
+    }
+
+    /**
+     * @return objects whose boxes share at least one point with the window, in ascending order
+     */
+    int[] query(long minX, long minY, long maxX, long maxY) {
+        int[] result = new int[16];
+        int resultSize = 0;
+        if (packed == 0) {
+            return queryPending(result, resultSize, minX, minY, maxX, maxY);
+        }
+        // Pending nodes as level and index pairs
+        int[] stack = new int[2 * NODE_SIZE * bounds.length];
+        int stackSize = 0;
+        stack[stackSize++] = bounds.length - 1;
+        stack[stackSize++] = 0;
+        while (stackSize > 0) {
+            int index = stack[--stackSize];
+            int level = stack[--stackSize];
+            long[] levelBounds = bounds[level];
+            if (levelBounds[4 * index] > maxX || levelBounds[4 * index + 1] > maxY
+                    || levelBounds[4 * index + 2] < minX || levelBounds[4 * index + 3] < minY) {
+                continue;
+            }
+            if (level == 0) {
+                if (resultSize == result.length) {
+                    result = Arrays.copyOf(result, 2 * resultSize);
+                }
+                result[resultSize++] = firstChildren[0][index];
+                continue;
+            }
+            int first = firstChildren[level][index];
+            int end = first + childCounts[level][index];
+            if (stackSize + 2 * (end - first) > stack.length) {
+                stack = Arrays.copyOf(stack, 2 * stack.length);
+            }
+            for (int child = first; child < end; child++) {
+                stack[stackSize++] = level - 1;
+                stack[stackSize++] = child;
+            }
+        }
+        Arrays.sort(result, 0, resultSize);
+        return queryPending(result, resultSize, minX, minY, maxX, maxY);
+    }
+
+    /**
+     * Appends the pending objects in the window, which come after all packed ones
+     */
+    private int[] queryPending(int[] result, int resultSize, long minX, long minY, long maxX, long maxY) {
+        for (int object = packed; object < size; object++) {
+            if (objectBounds[4 * object] > maxX || objectBounds[4 * object + 1] > maxY
+                    || objectBounds[4 * object + 2] < minX || objectBounds[4 * object + 3] < minY) {
+                continue;
+            }
+            if (resultSize == result.length) {
+                result = Arrays.copyOf(result, 2 * resultSize);
+            }
+            result[resultSize++] = object;
+        }
+        return Arrays.copyOf(result, resultSize);
+    }
+
+    /**
+     * @return object whose box is nearest to the point, the first one added when several are
+     * equally near, or -1 if the index is empty
+     */
+    int nearest(long x, long y) {
+        int nearest = -1;
+        double nearestDistance = 0;
+        if (packed > 0) {
+            nearest = nearestPacked(x, y);
+            nearestDistance = distance(objectBounds, nearest, x, y);
+        }
+        // Pending objects come after the packed ones, so they only win when strictly nearer
+        for (int object = packed; object < size; object++) {
+            double distance = distance(objectBounds, object, x, y);
+            if (nearest < 0 || distance < nearestDistance) {
+                nearest = object;
+                nearestDistance = distance;
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * Best-first search: nodes are visited in order of the distance from the point to their
+     * boxes, so the first object taken from the queue is the nearest one
+     */
+    private int nearestPacked(long x, long y) {
+        PriorityQueue<Candidate> queue = new PriorityQueue<>();
+        queue.add(new Candidate(bounds.length - 1, 0, distance(bounds.length - 1, 0, x, y)));
+        int nearest = -1;
+        double nearestDistance = 0;
+        while (!queue.isEmpty()) {
+            Candidate candidate = queue.poll();
+            if (nearest >= 0 && candidate.distance > nearestDistance) {
+                break;
+            }
+            if (candidate.level == 0) {
+                int object = firstChildren[0][candidate.index];
+                if (nearest < 0 || object < nearest) {
+                    nearest = object;
+                    nearestDistance = candidate.distance;
+                }
+                continue;
+            }
+            int first = firstChildren[candidate.level][candidate.index];
+            int end = first + childCounts[candidate.level][candidate.index];
+            for (int child = first; child < end; child++) {
+                queue.add(new Candidate(candidate.level - 1, child, distance(candidate.level - 1, child, x, y)));
+            }
+        }
+        return nearest;
+    }
+
+    private double distance(int level, int index, long x, long y) {
+        return distance(bounds[level], index, x, y);
+    }
+
+    /**
+     * @return squared distance from the point to the box of the entry, 0 inside the box
+     */
+    private static double distance(long[] boxes, int index, long x, long y) {
+        double dx = Math.max(0, Math.max(boxes[4 * index] - x, x - boxes[4 * index + 2]));
+        double dy = Math.max(0, Math.max(boxes[4 * index + 1] - y, y - boxes[4 * index + 3]));
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * @return order of the entries after sorting them into slices by the X and then by the Y
+     * of their centers
+     */
+    private static int[] pack(long[] bounds, int count) {
+        int[] order = new int[count];
+        long[] keys = new long[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+            keys[i] = bounds[4 * i] + bounds[4 * i + 2];
+        }
+        sort(order, keys, 0, count);
+
+        int nodes = (count + NODE_SIZE - 1) / NODE_SIZE;
+        int sliceSize = (int) Math.ceil(Math.sqrt(nodes)) * NODE_SIZE;
+        for (int i = 0; i < count; i++) {
+            keys[i] = bounds[4 * i + 1] + bounds[4 * i + 3];
+        }
+        for (int from = 0; from < count; from += sliceSize) {
+            sort(order, keys, from, Math.min(from + sliceSize, count));
+        }
+        return order;
+    }
+
+    private static long[] permute(long[] bounds, int[] order) {
+        long[] permuted = new long[4 * order.length];
+        for (int i = 0; i < order.length; i++) {
+            System.arraycopy(bounds, 4 * order[i], permuted, 4 * i, 4);
+        }
+        return permuted;
+    }
+
+    private static int[] permute(int[] values, int[] order) {
+        int[] permuted = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            permuted[i] = values[order[i]];
+        }
+        return permuted;
+    }
+
+    /**
+     * Sorts the range of the indices by their keys with a three-way quicksort, so that the
+     * many equal keys of pads on a grid do not make it quadratic
+     */
+    private static void sort(int[] indices, long[] keys, int from, int to) {
+        while (to - from > INSERTION_SORT_SIZE) {
+            long pivot = keys[indices[(from + to) >>> 1]];
+            // [from, less) < pivot, [less, i) == pivot, (greater, to) > pivot
+            int less = from;
+            int greater = to - 1;
+            int i = from;
+            while (i <= greater) {
+                long key = keys[indices[i]];
+                if (key < pivot) {
+                    swap(indices, less++, i++);
+                } else if (key > pivot) {
+                    swap(indices, i, greater--);
+                } else {
+                    i++;
+                }
+            }
+            // Recurse into the smaller part and loop on the larger one
+            if (less - from < to - greater - 1) {
+                sort(indices, keys, from, less);
+                from = greater + 1;
+            } else {
+                sort(indices, keys, greater + 1, to);
+                to = less;
+            }
+        }
+        for (int i = from + 1; i < to; i++) {
+            int index = indices[i];
+            long key = keys[index];
+            int j = i - 1;
+            while (j >= from && keys[indices[j]] > key) {
+                indices[j + 1] = indices[j];
+                j--;
+            }
+            indices[j + 1] = index;
+        }
+    }
+
+    private static void swap(int[] values, int i, int j) {
+        int value = values[i];
+        values[i] = values[j];
+        values[j] = value;
+    }
+
+    private static final class Candidate implements Comparable<Candidate> {
+        final int level;
+        final int index;
+        final double distance;
+
+        Candidate(int level, int index, double distance) {
+            this.level = level;
+            this.index = index;
+            this.distance = distance;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            return Double.compare(distance, other.distance);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.bancika.gerberwriter;
+
+/**
+ * Which objects a window or tile of a layer exports, see
+ * {@link DataLayer#dumpGerberWindow(java.io.OutputStream, BoundingBox, TileBoundary)}.
+ * Objects are compared by their boxes ({@link DataLayer#getBounds(int)}) and are always
+ * written whole, never clipped.
+ */
+public enum TileBoundary {
+
+    /**
+     * Every object whose box shares at least one point with the window, so objects on the
+     * boundary between tiles are written to all of them
+     */
+    INTERSECTING,
+
+    /**
+     * Every object whose box has its center in the window, including its lower and left edges
+     * but not its upper and right ones, so every object is written to exactly one tile
+     */
+    ANCHOR
+}
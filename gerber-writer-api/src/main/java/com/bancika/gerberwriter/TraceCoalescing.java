@@ -0,0 +1,226 @@
+package com.bancika.gerberwriter;
+
+import java.util.Arrays;
+
+/**
+ * Joins traces with the same width, function and polarity that share end points into chains,
+ * see {@link DataLayer#setCoalesceTraces(boolean)}.
+ * <p>
+ * A chain is written as consecutive objects, some of them drawn in reverse, so that each one
+ * starts where the previous one ended. The encoder then leaves out the D02 and the aperture
+ * selection between them, which is exactly how a single polyline through all of them is
+ * written. Chains are only formed within runs of objects with the same polarity and take the
+ * place of their first trace, so the image does not change.
+ * <p>
+ * End points are found through a hash index with one entry per trace end.
+ */
+final class TraceCoalescing {
+
+    private final GraphicsStore store;
+    private final boolean[] negativeStyles;
+    private final boolean[] barrierStyles;
+
+    // Traces of the current run, their end points are entries 2 * trace (start) and 2 * trace + 1 (end)
+    private int[] traces = new int[0];
+    private int traceCount;
+    private boolean[] used = new boolean[0];
+    private int[] slots = new int[0];
+    private int[] nextEntries = new int[0];
+    private int mask;
+    private int[] backward = new int[16];
+
+    private TraceCoalescing(GraphicsStore store) {
+        this.store = store;
+        this.negativeStyles = new boolean[store.getStyleCount()];
+        this.barrierStyles = new boolean[store.getStyleCount()];
+        for (int i = 0; i < negativeStyles.length; i++) {
+            negativeStyles[i] = GraphicsStore.isNegativeStyle(store.getStyle(i));
+            barrierStyles[i] = GraphicsStore.isBarrierStyle(store.getStyle(i));
+        }
+    }
+
+    /**
+     * @param order objects in the order they are written, or {@code null} for the order of the store
+     * @return the new order, where {@code ~object} stands for an object written in reverse
+     */
+    static int[] coalesce(GraphicsStore store, int[] order) {
+        return new TraceCoalescing(store).coalesce(order);
+    }
+
+    private int[] coalesce(int[] order) {
+        int[] result = new int[store.size()];
+        int length = 0;
+        int runStart = 0;
+        while (runStart < store.size()) {
+            boolean negative = isNegative(getObject(order, runStart));
+            int runEnd = runStart + 1;
+            // Blocks with clear contents are runs of their own, no trace moves across them
+            if (!isBarrier(getObject(order, runStart))) {
+                while (runEnd < store.size() && isNegative(getObject(order, runEnd)) == negative
+                        && !isBarrier(getObject(order, runEnd))) {
+                    runEnd++;
+                }
+            }
+            length = coalesceRun(order, runStart, runEnd, result, length);
+            runStart = runEnd;
+        }
+        return result;
+    }
+
+    private int coalesceRun(int[] order, int from, int to, int[] result, int length) {
+        indexTraces(order, from, to);
+
+        int trace = 0;
+        for (int position = from; position < to; position++) {
+            int object = getObject(order, position);
+            if (trace < traceCount && traces[trace] == object) {
+                if (!used[trace]) {
+                    length = appendChain(trace, result, length);
+                }
+                trace++;
+            } else {
+                result[length++] = object;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Appends the chain through the trace: the traces connected to its start, the trace itself
+     * and the traces connected to its end
+     *
+     * @return new length of the result
+     */
+    private int appendChain(int first, int[] result, int length) {
+        used[first] = true;
+
+        int backwardLength = 0;
+        int entry = 2 * first;
+        for (int next = findUnused(entry); next >= 0; next = findUnused(entry)) {
+            int trace = next / 2;
+            used[trace] = true;
+            boolean reversed = next % 2 == 0; // connected by its start, so it is drawn toward it
+            if (backwardLength == backward.length) {
+                backward = Arrays.copyOf(backward, backwardLength * 2);
+            }
+            backward[backwardLength++] = encode(trace, reversed);
+            entry = reversed ? 2 * trace + 1 : 2 * trace;
+        }
+        for (int i = backwardLength - 1; i >= 0; i--) {
+            result[length++] = backward[i];
+        }
+
+        result[length++] = encode(first, false);
+        entry = 2 * first + 1;
+        for (int next = findUnused(entry); next >= 0; next = findUnused(entry)) {
+            int trace = next / 2;
+            used[trace] = true;
+            boolean reversed = next % 2 == 1; // connected by its end, so it is drawn from end to start
+            result[length++] = encode(trace, reversed);
+            entry = reversed ? 2 * trace : 2 * trace + 1;
+        }
+        return length;
+    }
+
+    private int encode(int trace, boolean reversed) {
+        return reversed ? ~traces[trace] : traces[trace];
+    }
+
+    /**
+     * @return an entry of an unused trace with the same style at the point of the given entry, or -1
+     */
+    private int findUnused(int entry) {
+        int object = traces[entry / 2];
+        int style = store.getStyleIndexOf(object);
+        int vertex = getEntryVertex(entry);
+        long x = store.getX(vertex);
+        long y = store.getY(vertex);
+        for (int candidate = slots[hash(style, x, y) & mask]; candidate >= 0; candidate = nextEntries[candidate]) {
+            int candidateObject = traces[candidate / 2];
+            if (used[candidate / 2] || store.getStyleIndexOf(candidateObject) != style) {
+                continue;
+            }
+            int candidateVertex = getEntryVertex(candidate);
+            if (store.getX(candidateVertex) == x && store.getY(candidateVertex) == y) {
+                return candidate;
+            }
+        }
+        return -1;
+    }
+
+    private void indexTraces(int[] order, int from, int to) {
+        traceCount = 0;
+        for (int position = from; position < to; position++) {
+            int object = getObject(order, position);
+            if (isCoalescible(object)) {
+                if (traceCount == traces.length) {
+                    traces = Arrays.copyOf(traces, Math.max(16, traceCount * 2));
+                }
+                traces[traceCount++] = object;
+            }
+        }
+
+        int capacity = Integer.highestOneBit(Math.max(4 * traceCount, 16) - 1) << 1;
+        if (slots.length < capacity) {
+            slots = new int[capacity];
+        }
+        mask = capacity - 1;
+        Arrays.fill(slots, 0, capacity, -1);
+        if (used.length < traceCount) {
+            used = new boolean[traces.length];
+            nextEntries = new int[2 * traces.length];
+        }
+        Arrays.fill(used, 0, traceCount, false);
+
+        for (int entry = 0; entry < 2 * traceCount; entry++) {
+            int vertex = getEntryVertex(entry);
+            int slot = hash(store.getStyleIndexOf(traces[entry / 2]), store.getX(vertex), store.getY(vertex)) & mask;
+            nextEntries[entry] = slots[slot];
+            slots[slot] = entry;
+        }
+    }
+
+    /**
+     * Only traces made of one connected sequence of segments can be drawn in reverse
+     */
+    private boolean isCoalescible(int object) {
+        if (store.getKind(object) != GraphicsStore.TRACES) {
+            return false;
+        }
+        int first = store.getFirstVertex(object);
+        int end = store.getVertexEnd(object);
+        if (end - first < 2) {
+            return false;
+        }
+        for (int vertex = first + 1; vertex < end; vertex++) {
+            if (store.getOperation(vertex) == GraphicsStore.MOVE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int getEntryVertex(int entry) {
+        int object = traces[entry / 2];
+        return entry % 2 == 0 ? store.getFirstVertex(object) : store.getLastPointVertex(object);
+    }
+
+    private static int hash(int style, long x, long y) {
+        long h = x * 0x9E3779B97F4A7C15L;
+        h = (h ^ y) * 0x9E3779B97F4A7C15L;
+        h = (h ^ style) * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32);
+    }
+
+    private static int getObject(int[] order, int position) {
+        return order == null ? position : order[position];
+    }
+
+    private boolean isNegative(int object) {
+        return negativeStyles[store.getStyleIndexOf(object)];
+    }
+
+    private boolean isBarrier(int object) {
+        return barrierStyles[store.getStyleIndexOf(object)];
+    }
+}
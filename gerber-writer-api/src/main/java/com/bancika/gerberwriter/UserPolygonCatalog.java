@@ -0,0 +1,228 @@
+package com.bancika.gerberwriter;
+
+import com.bancika.gerberwriter.padmasters.UserPolygon;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds congruent user polygons, so that pads made from them share one macro, see
+ * {@link DataLayer#setDeduplicatePolygons(boolean)}.
+ * <p>
+ * Every polygon is reduced to a signature that does not change when the polygon is moved,
+ * rotated or started at another vertex: the cyclic sequence of its edge lengths and of the
+ * distances of its vertices from their centroid, rounded to {@link #QUANTUM}, started where
+ * the sequence is lexicographically smallest and going counterclockwise. Polygons with equal
+ * signatures are compared vertex by vertex under the rotation that maps their first edges
+ * onto each other, so a hash collision never merges different shapes. Congruent polygons
+ * whose lengths round to different steps keep their own macros, which is harmless.
+ */
+final class UserPolygonCatalog {
+
+    static final double QUANTUM = 1e-5; // mm, step of the rounded lengths and largest vertex deviation
+
+    private final Map<UserPolygon, Placement> placements = new IdentityHashMap<>();
+    private final Map<Signature, List<Shape>> shapes = new HashMap<>();
+
+    /**
+     * @return master to use instead of the polygon and how to place it, the polygon itself if
+     * it is the first of its shape
+     */
+    Placement place(UserPolygon polygon) {
+        Placement placement = placements.get(polygon);
+        if (placement == null) {
+            placement = find(polygon);
+            placements.put(polygon, placement);
+        }
+        return placement;
+    }
+
+    private Placement find(UserPolygon polygon) {
+        Shape shape = new Shape(polygon);
+        List<Shape> candidates = shapes.get(shape.signature);
+        if (candidates == null) {
+            candidates = new ArrayList<>();
+            shapes.put(shape.signature, candidates);
+        }
+        for (Shape candidate : candidates) {
+            Placement placement = candidate.map(shape);
+            if (placement != null) {
+                return placement;
+            }
+        }
+        candidates.add(shape);
+        return new Placement(polygon, 0, 0, 0);
+    }
+
+    /**
+     * A pad of the polygon under angle a at point p is a pad of {@link #master} under angle
+     * a + {@link #angle} at p plus the offset rotated by a
+     */
+    static final class Placement {
+        final UserPolygon master;
+        final double angle;
+        final double offsetX;
+        final double offsetY;
+
+        Placement(UserPolygon master, double angle, double offsetX, double offsetY) {
+            this.master = master;
+            this.angle = angle;
+            this.offsetX = offsetX;
+            this.offsetY = offsetY;
+        }
+    }
+
+    /**
+     * Vertices of a polygon relative to their centroid, counterclockwise from the start of its
+     * signature
+     */
+    private static final class Shape {
+        final UserPolygon polygon;
+        final double centroidX;
+        final double centroidY;
+        final double[] xs;
+        final double[] ys;
+        final Signature signature;
+
+        Shape(UserPolygon polygon) {
+            this.polygon = polygon;
+            Point[] points = polygon.getPolygon();
+
+            // Vertices without the closing one and without repeated ones
+            List<Point> vertices = new ArrayList<>(points.length);
+            for (int i = 0; i < points.length - 1; i++) {
+                if (vertices.isEmpty() || !points[i].equals(vertices.get(vertices.size() - 1))) {
+                    vertices.add(points[i]);
+                }
+            }
+            if (vertices.size() > 1 && vertices.get(vertices.size() - 1).equals(vertices.get(0))) {
+                vertices.remove(vertices.size() - 1);
+            }
+            int n = vertices.size();
+
+            double sumX = 0;
+            double sumY = 0;
+            double area = 0;
+            for (int i = 0; i < n; i++) {
+                Point a = vertices.get(i);
+                Point b = vertices.get((i + 1) % n);
+                sumX += a.x;
+                sumY += a.y;
+                area += a.x * b.y - b.x * a.y;
+            }
+            centroidX = sumX / n;
+            centroidY = sumY / n;
+
+            // The image does not depend on the direction of the outline
+            double[] x = new double[n];
+            double[] y = new double[n];
+            for (int i = 0; i < n; i++) {
+                Point vertex = vertices.get(area < 0 ? n - 1 - i : i);
+                x[i] = vertex.x - centroidX;
+                y[i] = vertex.y - centroidY;
+            }
+
+            long[] sequence = new long[2 * n];
+            for (int i = 0; i < n; i++) {
+                int next = (i + 1) % n;
+                sequence[2 * i] = Math.round(Math.hypot(x[next] - x[i], y[next] - y[i]) / QUANTUM);
+                sequence[2 * i + 1] = Math.round(Math.hypot(x[i], y[i]) / QUANTUM);
+            }
+            int start = smallestRotation(sequence, n);
+            xs = new double[n];
+            ys = new double[n];
+            long[] values = new long[2 * n];
+            for (int i = 0; i < n; i++) {
+                int vertex = (start + i) % n;
+                xs[i] = x[vertex];
+                ys[i] = y[vertex];
+                values[2 * i] = sequence[2 * vertex];
+                values[2 * i + 1] = sequence[2 * vertex + 1];
+            }
+            signature = new Signature(values, polygon.getFunction(), polygon.isNegative());
+        }
+
+        /**
+         * @return placement of this shape's polygon for pads of the other one, or {@code null}
+         * if they are not congruent
+         */
+        Placement map(Shape other) {
+            int n = xs.length;
+            if (n < 2) {
+                return null;
+            }
+            // Rotation from this shape to the other one, aligning their first edges
+            double angle = Math.atan2(other.ys[1] - other.ys[0], other.xs[1] - other.xs[0])
+                    - Math.atan2(ys[1] - ys[0], xs[1] - xs[0]);
+            double cos = Math.cos(angle);
+            double sin = Math.sin(angle);
+            for (int i = 0; i < n; i++) {
+                double x = xs[i] * cos - ys[i] * sin;
+                double y = xs[i] * sin + ys[i] * cos;
+                if (Math.abs(x - other.xs[i]) > QUANTUM || Math.abs(y - other.ys[i]) > QUANTUM) {
+                    return null;
+                }
+            }
+
+            // The other polygon is this one rotated around the origin, which moves this
+            // centroid, and shifted to the other centroid
+            double offsetX = other.centroidX - (centroidX * cos - centroidY * sin);
+            double offsetY = other.centroidY - (centroidX * sin + centroidY * cos);
+            // Rounded so that polygons in the same orientation share the aperture of this one
+            double degrees = Math.round(Math.toDegrees(angle) * 1e9) / 1e9;
+            return new Placement(polygon, (degrees % 360 + 360) % 360, offsetX, offsetY);
+        }
+
+        /**
+         * @return vertex where the cyclic sequence of pairs is lexicographically smallest
+         */
+        private static int smallestRotation(long[] sequence, int n) {
+            int best = 0;
+            for (int start = 1; start < n; start++) {
+                for (int i = 0; i < 2 * n; i++) {
+                    long candidate = sequence[(2 * start + i) % (2 * n)];
+                    long current = sequence[(2 * best + i) % (2 * n)];
+                    if (candidate != current) {
+                        if (candidate < current) {
+                            best = start;
+                        }
+                        break;
+                    }
+                }
+            }
+            return best;
+        }
+    }
+
+    private static final class Signature {
+        final long[] values;
+        final String function;
+        final boolean negative;
+        final int hash;
+
+        Signature(long[] values, String function, boolean negative) {
+            this.values = values;
+            this.function = function;
+            this.negative = negative;
+            this.hash = 31 * (31 * Arrays.hashCode(values) + function.hashCode()) + Boolean.hashCode(negative);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Signature that = (Signature) o;
+            return negative == that.negative && function.equals(that.function) && Arrays.equals(values, that.values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package com.bancika.gerberwriter;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Minimal writer of ZIP archives whose entries are compressed in advance.
+ * <p>
+ * {@link java.util.zip.ZipOutputStream} compresses on the thread that writes the archive.
+ * Here every entry is deflated into an {@link EntryData}, which can be filled on any
+ * thread, and the archive only copies the compressed bytes. Entries, offsets and entry
+ * counts beyond the limits of the original format are written with the ZIP64 extensions.
+ */
+final class ZipWriter {
+
+    private static final int VERSION = 20;       // 2.0, deflate
+    private static final int VERSION_ZIP64 = 45; // 4.5, ZIP64 extensions
+    private static final int UTF8_NAMES = 0x0800;
+    private static final int DEFLATED = 8;
+    private static final int ZIP64_EXTRA = 0x0001;
+    // Sizes and offsets from this value on are stored in the ZIP64 extra field
+    private static final long MAX_SIZE = 0xFFFFFFFFL;
+    private static final int MAX_ENTRIES = 0xFFFF;
+
+    private final OutputStream out;
+    private final ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+    private long entryCount;
+    private long offset;
+
+    ZipWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    void write(String name, LocalDateTime time, EntryData data) throws IOException {
+        long compressedSize = data.getCompressedSize();
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        int dosTime = toDosTime(time);
+        long crc = data.crc.getValue();
+        boolean zip64Sizes = data.size >= MAX_SIZE || compressedSize >= MAX_SIZE;
+        boolean zip64 = zip64Sizes || offset >= MAX_SIZE;
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        putInt(header, 0x04034b50);
+        putShort(header, zip64Sizes ? VERSION_ZIP64 : VERSION);
+        if (zip64Sizes) {
+            putEntryFields(header, dosTime, crc, MAX_SIZE, MAX_SIZE, nameBytes.length);
+            putShort(header, 20); // extra field length
+            header.write(nameBytes);
+            putShort(header, ZIP64_EXTRA);
+            putShort(header, 16);
+            putLong(header, data.size);
+            putLong(header, compressedSize);
+        } else {
+            putEntryFields(header, dosTime, crc, compressedSize, data.size, nameBytes.length);
+            putShort(header, 0); // extra field length
+            header.write(nameBytes);
+        }
+
+        putInt(centralDirectory, 0x02014b50);
+        putShort(centralDirectory, zip64 ? VERSION_ZIP64 : VERSION); // made by
+        putShort(centralDirectory, zip64 ? VERSION_ZIP64 : VERSION); // needed to extract
+        if (zip64) {
+            // All three values go to the extra field, in this order
+            putEntryFields(centralDirectory, dosTime, crc, MAX_SIZE, MAX_SIZE, nameBytes.length);
+            putShort(centralDirectory, 28); // extra field length
+        } else {
+            putEntryFields(centralDirectory, dosTime, crc, compressedSize, data.size, nameBytes.length);
+            putShort(centralDirectory, 0); // extra field length
+        }
+        putShort(centralDirectory, 0); // comment length
+        putShort(centralDirectory, 0); // disk number
+        putShort(centralDirectory, 0); // internal attributes
+        putInt(centralDirectory, 0);   // external attributes
+        putInt(centralDirectory, zip64 ? MAX_SIZE : offset);
+        centralDirectory.write(nameBytes);
+        if (zip64) {
+            putShort(centralDirectory, ZIP64_EXTRA);
+            putShort(centralDirectory, 24);
+            putLong(centralDirectory, data.size);
+            putLong(centralDirectory, compressedSize);
+            putLong(centralDirectory, offset);
+        }
+
+        header.writeTo(out);
+        data.writeTo(out);
+        offset += header.size() + compressedSize;
+        entryCount++;
+    }
+
+    /**
+     * Writes the central directory. The underlying stream is flushed but not closed.
+     */
+    void finish() throws IOException {
+        long directoryOffset = offset;
+        long directorySize = centralDirectory.size();
+        centralDirectory.writeTo(out);
+
+        ByteArrayOutputStream end = new ByteArrayOutputStream();
+        if (entryCount > MAX_ENTRIES || directoryOffset >= MAX_SIZE || directorySize >= MAX_SIZE) {
+            long zip64EndOffset = directoryOffset + directorySize;
+            putInt(end, 0x06064b50);
+            putLong(end, 44); // size of the rest of the record
+            putShort(end, VERSION_ZIP64); // made by
+            putShort(end, VERSION_ZIP64); // needed to extract
+            putInt(end, 0); // disk number
+            putInt(end, 0); // disk with the central directory
+            putLong(end, entryCount);
+            putLong(end, entryCount);
+            putLong(end, directorySize);
+            putLong(end, directoryOffset);
+
+            putInt(end, 0x07064b50);
+            putInt(end, 0); // disk with the ZIP64 end record
+            putLong(end, zip64EndOffset);
+            putInt(end, 1); // number of disks
+        }
+        putInt(end, 0x06054b50);
+        putShort(end, 0); // disk number
+        putShort(end, 0); // disk with the central directory
+        putShort(end, (int) Math.min(entryCount, MAX_ENTRIES));
+        putShort(end, (int) Math.min(entryCount, MAX_ENTRIES));
+        putInt(end, Math.min(directorySize, MAX_SIZE));
+        putInt(end, Math.min(directoryOffset, MAX_SIZE));
+        putShort(end, 0); // comment length
+        end.writeTo(out);
+        out.flush();
+    }
+
+    private static void putEntryFields(ByteArrayOutputStream out, int dosTime, long crc, long compressedSize,
+                                       long size, int nameLength) {
+        putShort(out, UTF8_NAMES);
+        putShort(out, DEFLATED);
+        putInt(out, dosTime);
+        putInt(out, crc);
+        putInt(out, compressedSize);
+        putInt(out, size);
+        putShort(out, nameLength);
+    }
+
+    private static int toDosTime(LocalDateTime time) {
+        if (time.getYear() < 1980) {
+            return (1 << 5 | 1) << 16; // 1980-01-01 00:00:00, the earliest DOS date
+        }
+        int date = (Math.min(time.getYear(), 2107) - 1980) << 9 | time.getMonthValue() << 5 | time.getDayOfMonth();
+        return date << 16 | time.getHour() << 11 | time.getMinute() << 5 | time.getSecond() / 2;
+    }
+
+    private static void putShort(ByteArrayOutputStream out, int value) {
+        out.write(value);
+        out.write(value >>> 8);
+    }
+
+    private static void putInt(ByteArrayOutputStream out, long value) {
+        putShort(out, (int) value);
+        putShort(out, (int) (value >>> 16));
+    }
+
+    private static void putLong(ByteArrayOutputStream out, long value) {
+        putInt(out, value);
+        putInt(out, value >>> 32);
+    }
+
+    /**
+     * Contents of one entry, deflated as they are written. The compressed bytes are kept in
+     * memory up to a megabyte and in a temporary file beyond, so entries waiting for their turn
+     * in the archive do not have to fit in memory. {@link #discard()} deletes the file.
+     */
+    static final class EntryData extends OutputStream {
+        private static final int MAX_IN_MEMORY = 1 << 20;
+
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        private final DeflaterOutputStream deflating =
+                new DeflaterOutputStream(new Compressed(), deflater, 64 * 1024);
+        private final CRC32 crc = new CRC32();
+        private long size;
+        private long compressedSize;
+        private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        private Path file;
+        private OutputStream fileOut;
+
+        @Override
+        public void write(int b) throws IOException {
+            crc.update(b);
+            size++;
+            deflating.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            crc.update(b, off, len);
+            size += len;
+            deflating.write(b, off, len);
+        }
+
+        /**
+         * Completes the compressed data; must be called before the entry is written.
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                deflating.finish();
+                if (fileOut != null) {
+                    fileOut.close();
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+
+        /**
+         * Releases the compressed data and deletes its temporary file, if any. Can be called
+         * whether or not the entry was completed or written.
+         */
+        void discard() throws IOException {
+            deflater.end();
+            memory = null;
+            try {
+                if (fileOut != null) {
+                    fileOut.close();
+                }
+            } finally {
+                if (file != null) {
+                    Files.deleteIfExists(file);
+                    file = null;
+                }
+            }
+        }
+
+        /**
+         * @return number of uncompressed bytes
+         */
+        long getSize() {
+            return size;
+        }
+
+        long getCompressedSize() {
+            return compressedSize;
+        }
+
+        private void writeTo(OutputStream out) throws IOException {
+            if (file != null) {
+                Files.copy(file, out);
+            } else {
+                memory.writeTo(out);
+            }
+        }
+
+        /**
+         * Receives the output of the deflater
+         */
+        private final class Compressed extends OutputStream {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (fileOut == null && memory.size() + len > MAX_IN_MEMORY) {
+                    file = Files.createTempFile("gerber", ".deflate");
+                    fileOut = new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024);
+                    memory.writeTo(fileOut);
+                    memory = null;
+                }
+                if (fileOut != null) {
+                    fileOut.write(b, off, len);
+                } else {
+                    memory.write(b, off, len);
+                }
+                compressedSize += len;
+            }
+        }
+    }
+}
@@ -14,6 +14,10 @@ package com.bancika.gerberwriter.padmasters;
  */
 public abstract class AbstractPad {
 
+    public abstract String getFunction();
+
+    public abstract boolean isNegative();
+
     protected static void validateReal(double value, String fieldName) {
         if (Double.isNaN(value) || Double.isInfinite(value)) {
             throw new IllegalArgumentException(fieldName + " must be a real number");
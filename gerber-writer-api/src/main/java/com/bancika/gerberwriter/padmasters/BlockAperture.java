@@ -0,0 +1,152 @@
+package com.bancika.gerberwriter.padmasters;
+
+import com.bancika.gerberwriter.Point;
+import com.bancika.gerberwriter.path.Path;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Pad master made of other pads, traces and regions, e.g. a footprint. It is written once
+ * as a block aperture ({@code %AB}) and every pad made from it is a single flash.
+ * <p>
+ * The contents are placed relative to the origin of the block, which is put at the position
+ * of the pad and rotated around it by the angle of the pad. Like other masters, blocks are
+ * compared by identity. Layers keep the compiled contents of a block, so the block is frozen
+ * when it is first used for a pad; contents added after that throw
+ * {@link IllegalStateException}.
+ * <p>
+ * A block is defined once for every angle its pads are flashed at, each definition repeating
+ * all of its contents. For a block flashed at many different angles with few pads per angle,
+ * adding its contents to the layer directly gives a smaller file.
+ */
+public final class BlockAperture extends AbstractPad {
+
+    private final String function;
+    private final boolean negative;
+    private final List<Element> elements = new ArrayList<>();
+    private volatile boolean frozen;
+
+    public BlockAperture(String function, boolean negative) {
+        if (function == null) {
+            throw new IllegalArgumentException("function must not be null");
+        }
+        this.function = function;
+        this.negative = negative;
+    }
+
+    public void addPad(AbstractPad master, Point position, double angle) {
+        if (master == null || position == null) {
+            throw new IllegalArgumentException("master and position must not be null");
+        }
+        validateReal(angle, "angle");
+        if (master == this || (master instanceof BlockAperture && ((BlockAperture) master).contains(this))) {
+            throw new IllegalArgumentException("block must not contain itself");
+        }
+        checkNotFrozen();
+        elements.add(new Element(master, position, angle, null, 0, master.getFunction(), master.isNegative(),
+                false));
+    }
+
+    public void addPad(AbstractPad master, Point position) {
+        addPad(master, position, 0);
+    }
+
+    public void addTracesPath(Path path, double width, String function, boolean negative) {
+        validateReal(width, "width");
+        if (width < 0) {
+            throw new IllegalArgumentException("width must be >= 0");
+        }
+        if (path == null || function == null) {
+            throw new IllegalArgumentException("path and function must not be null");
+        }
+        checkNotFrozen();
+        elements.add(new Element(null, null, 0, path, width, function, negative, false));
+    }
+
+    public void addRegion(Path path, String function, boolean negative) {
+        if (path == null || function == null) {
+            throw new IllegalArgumentException("path and function must not be null");
+        }
+        if (!path.isContour()) {
+            throw new IllegalArgumentException("Some subpaths are not closed");
+        }
+        checkNotFrozen();
+        elements.add(new Element(null, null, 0, path, 0, function, negative, true));
+    }
+
+    /**
+     * @return pads, traces and regions of the block, in the order they were added
+     */
+    public List<Element> getElements() {
+        return Collections.unmodifiableList(elements);
+    }
+
+    /**
+     * Prevents further contents from being added. Done by the layer the block is first used in.
+     */
+    public void freeze() {
+        frozen = true;
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    private void checkNotFrozen() {
+        if (frozen) {
+            throw new IllegalStateException("Contents cannot be added to a block that is in use");
+        }
+    }
+
+    private boolean contains(BlockAperture block) {
+        for (Element element : elements) {
+            if (element.master == block
+                    || (element.master instanceof BlockAperture && ((BlockAperture) element.master).contains(block))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Getters
+    public String getFunction() { return function; }
+    public boolean isNegative() { return negative; }
+
+    /**
+     * A pad ({@link #getMaster()} is not {@code null}), traces or a region of a block
+     */
+    public static final class Element {
+        private final AbstractPad master;
+        private final Point position;
+        private final double angle;
+        private final Path path;
+        private final double width;
+        private final String function;
+        private final boolean negative;
+        private final boolean region;
+
+        private Element(AbstractPad master, Point position, double angle, Path path, double width,
+                        String function, boolean negative, boolean region) {
+            this.master = master;
+            this.position = position;
+            this.angle = angle;
+            this.path = path;
+            this.width = width;
+            this.function = function;
+            this.negative = negative;
+            this.region = region;
+        }
+
+        // Getters
+        public AbstractPad getMaster() { return master; }
+        public Point getPosition() { return position; }
+        public double getAngle() { return angle; }
+        public Path getPath() { return path; }
+        public double getWidth() { return width; }
+        public String getFunction() { return function; }
+        public boolean isNegative() { return negative; }
+        public boolean isRegion() { return region; }
+    }
+}
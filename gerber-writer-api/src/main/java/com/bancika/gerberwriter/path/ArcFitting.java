@@ -0,0 +1,163 @@
+package com.bancika.gerberwriter.path;
+
+import com.bancika.gerberwriter.Point;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replaces runs of line segments whose vertices lie on a common circle with arcs, see
+ * {@link Path#fitArcs(double)}.
+ * <p>
+ * From the start of a run, the end of the arc is found by doubling the number of segments
+ * while the run still fits and then bisecting. A run fits the circle through its first,
+ * middle and last point when every vertex is within the tolerance of that circle and all
+ * segments turn the same way by at most {@link #MAX_SEGMENT_ANGLE} degrees, so polygons
+ * such as octagons stay polygons. No segment may turn so far that the arc bulges out of it
+ * by more than the tolerance either, as vertices on the circle do not bound the distance of
+ * the arc from the segments between them. Arcs are at least {@link #MIN_SEGMENTS} segments long,
+ * sweep at most three quarters of a circle and must bulge out of their chord by more than the tolerance,
+ * otherwise the segments are kept as they are.
+ */
+final class ArcFitting {
+
+    static final int MIN_SEGMENTS = 4;
+    static final double MAX_SEGMENT_ANGLE = 10; // degrees
+
+    private static final double MAX_SEGMENT_RADIANS = Math.toRadians(MAX_SEGMENT_ANGLE);
+    private static final double MAX_SWEEP = 1.5 * Math.PI; // a full circle is split in two arcs
+    private static final double MAX_RADIUS = 1000; // mm
+
+    private final double tolerance;
+    // Circle of the last run that fitted
+    private double centerX;
+    private double centerY;
+    private double sweep;
+
+    private ArcFitting(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    static Path fit(Path path, double tolerance) {
+        ArcFitting fitting = new ArcFitting(tolerance);
+        Path fitted = new Path();
+        List<Point> run = new ArrayList<>();
+        for (PathOperator operator : path.getOperators()) {
+            if (operator instanceof LineTo) {
+                run.add(((LineTo) operator).getTo());
+                continue;
+            }
+            fitting.appendRun(run, fitted);
+            run.clear();
+            if (operator instanceof MoveTo) {
+                Point to = ((MoveTo) operator).getTo();
+                fitted.moveTo(to);
+                run.add(to);
+            } else if (operator instanceof ArcTo) {
+                ArcTo arcTo = (ArcTo) operator;
+                fitted.arcTo(arcTo.getTo(), arcTo.getCenter(), arcTo.getOrientation());
+                run.add(arcTo.getTo());
+            }
+        }
+        fitting.appendRun(run, fitted);
+        return fitted;
+    }
+
+    /**
+     * Appends the segments from the first point of the run, which is already the current
+     * point of the path, through the others
+     */
+    private void appendRun(List<Point> run, Path fitted) {
+        int start = 0;
+        int last = run.size() - 1;
+        while (start < last) {
+            int end = start + MIN_SEGMENTS;
+            if (end > last || !fits(run, start, end)) {
+                fitted.lineTo(run.get(++start));
+                continue;
+            }
+
+            // Grow the arc by doubling, then bisect between the longest run that fits and the
+            // shortest one that does not
+            int good = end;
+            int bad = last + 1;
+            for (int length = 2 * MIN_SEGMENTS; start + length <= last; length *= 2) {
+                if (!fits(run, start, start + length)) {
+                    bad = start + length;
+                    break;
+                }
+                good = start + length;
+            }
+            while (bad - good > 1) {
+                int middle = (good + bad) >>> 1;
+                if (fits(run, start, middle)) {
+                    good = middle;
+                } else {
+                    bad = middle;
+                }
+            }
+
+            fits(run, start, good);
+            fitted.arcTo(run.get(good), new Point(centerX, centerY), sweep > 0 ? "+" : "-");
+            start = good;
+        }
+    }
+
+    /**
+     * Checks whether the points from start to end lie on one arc, which is then kept in the fields
+     */
+    private boolean fits(List<Point> run, int start, int end) {
+        Point a = run.get(start);
+        Point b = run.get((start + end) >>> 1);
+        Point c = run.get(end);
+
+        // Center of the circle through the three points
+        double bx = b.x - a.x;
+        double by = b.y - a.y;
+        double cx = c.x - a.x;
+        double cy = c.y - a.y;
+        double d = 2 * (bx * cy - by * cx);
+        if (d == 0) {
+            return false; // collinear
+        }
+        double b2 = bx * bx + by * by;
+        double c2 = cx * cx + cy * cy;
+        double x = a.x + (cy * b2 - by * c2) / d;
+        double y = a.y + (bx * c2 - cx * b2) / d;
+        double radius = Math.hypot(a.x - x, a.y - y);
+        if (radius > MAX_RADIUS) {
+            return false;
+        }
+
+        // The arc over a segment turning by the step bulges out of it by radius * (1 - cos(step / 2))
+        double maxStep = Math.min(MAX_SEGMENT_RADIANS, 2 * Math.acos(Math.max(-1, 1 - tolerance / radius)));
+        double total = 0;
+        double previousAngle = Math.atan2(a.y - y, a.x - x);
+        for (int i = start + 1; i <= end; i++) {
+            Point p = run.get(i);
+            if (Math.abs(Math.hypot(p.x - x, p.y - y) - radius) > tolerance) {
+                return false;
+            }
+            double angle = Math.atan2(p.y - y, p.x - x);
+            double step = angle - previousAngle;
+            if (step > Math.PI) {
+                step -= 2 * Math.PI;
+            } else if (step < -Math.PI) {
+                step += 2 * Math.PI;
+            }
+            if (step == 0 || Math.abs(step) > maxStep || (total != 0 && (step > 0) != (total > 0))) {
+                return false;
+            }
+            total += step;
+            previousAngle = angle;
+        }
+        // Arcs that do not bulge out of their chord by more than the tolerance are lines
+        if (Math.abs(total) > MAX_SWEEP || radius * (1 - Math.cos(total / 2)) <= tolerance) {
+            return false;
+        }
+        centerX = x;
+        centerY = y;
+        sweep = total;
+        return true;
+    }
+}
@@ -35,20 +35,30 @@ public class Path {
         if (currentPoint == null) {
             throw new IllegalStateException("No current point");
         }
-        if (!orientation.equals("+") && !orientation.equals("-")) {
+        validateArc(currentPoint, end, center, orientation);
+
+        operators.add(new ArcTo(end, center, orientation));
+        currentPoint = end;
+        contour = end.equals(startPoint);
+        updatePointMax(end);
+    }
+
+    /**
+     * Checks that an arc from start to end around center is well defined
+     *
+     * @throws IllegalArgumentException if the orientation is not '+' or '-', or if start and end
+     * are not on the same circle around center
+     */
+    public static void validateArc(Point start, Point end, Point center, String orientation) {
+        if (!"+".equals(orientation) && !"-".equals(orientation)) {
             throw new IllegalArgumentException("Orientation must be '+' or '-'");
         }
 
         double maxDeviation = 2.0e-5;
-        if (Math.abs(Point.l2(center, currentPoint) - Point.l2(center, end)) > maxDeviation) {
+        if (Math.abs(Point.l2(center, start) - Point.l2(center, end)) > maxDeviation) {
             throw new IllegalArgumentException(
                     String.format("Radii to begin and end points differ by more than %f", maxDeviation));
         }
-
-        operators.add(new ArcTo(end, center, orientation));
-        currentPoint = end;
-        contour = end.equals(startPoint);
-        updatePointMax(end);
     }
 
     private void updatePointMax(Point p) {
@@ -58,6 +68,22 @@ public class Path {
         );
     }
 
+    /**
+     * Replaces runs of line segments whose vertices lie on a common circle with arcs. The arcs
+     * pass through the vertices within the tolerance; the chords between them are replaced by
+     * the arc. Only runs of at least 4 segments that turn the same way by at most 10 degrees
+     * each are replaced, so polygons keep their corners.
+     *
+     * @param tolerance largest distance of a vertex from the arc that replaces it
+     * @return a new path, this path is not changed
+     */
+    public Path fitArcs(double tolerance) {
+        if (!(tolerance > 0)) {
+            throw new IllegalArgumentException("Tolerance must be positive");
+        }
+        return ArcFitting.fit(this, tolerance);
+    }
+
     public int size() {
         return operators.size();
     }
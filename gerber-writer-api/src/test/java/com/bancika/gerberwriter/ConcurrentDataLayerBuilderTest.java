@@ -0,0 +1,143 @@
+package com.bancika.gerberwriter;
+
+import com.bancika.gerberwriter.padmasters.AbstractPad;
+import com.bancika.gerberwriter.padmasters.Circle;
+import com.bancika.gerberwriter.padmasters.Rectangle;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.bancika.gerberwriter.GerberFunctions.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConcurrentDataLayerBuilderTest {
+
+    private static final GenerationSoftware SOFTWARE = new GenerationSoftware("Bancika", "test", "1.0");
+    private static final LocalDateTime NOW = LocalDateTime.of(2024, 5, 17, 12, 30);
+    private static final AbstractPad VIA = new Circle(0.6, VIA_PAD, false);
+    private static final AbstractPad SMD = new Rectangle(1, 0.5, SMDPAD_CU_DEF, false);
+
+    @Test
+    void testKeyedOrderMatchesSerialLayer() throws Exception {
+        int nets = 200;
+        DataLayer serial = new DataLayer("Copper,L1,Top", false, SOFTWARE);
+        for (int net = 0; net < nets; net++) {
+            addNet(serial, net);
+        }
+        String expected = serial.dumpGerberToString(NOW);
+
+        for (int run = 0; run < 3; run++) {
+            ConcurrentDataLayerBuilder builder = new ConcurrentDataLayerBuilder("Copper,L1,Top", false, SOFTWARE);
+            int threads = 8;
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                for (int thread = 0; thread < threads; thread++) {
+                    int first = thread;
+                    futures.add(executor.submit(() -> {
+                        for (int net = first; net < nets; net += threads) {
+                            builder.setOrderKey(net);
+                            addNet(builder, net);
+                        }
+                        builder.closeProducer();
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } finally {
+                executor.shutdown();
+            }
+
+            assertEquals(serial.getObjectCount(), builder.getObjectCount());
+            DataLayer built = builder.build();
+            assertEquals(serial.getObjectCount(), built.getObjectCount());
+            assertEquals(expected, built.dumpGerberToString(NOW));
+        }
+    }
+
+    @Test
+    void testUnkeyedObjectsInAddedOrder() {
+        DataLayer serial = new DataLayer("Copper,L1,Top", false, SOFTWARE);
+        ConcurrentDataLayerBuilder builder = new ConcurrentDataLayerBuilder("Copper,L1,Top", false, SOFTWARE);
+        for (int net = 0; net < 20; net++) {
+            addNet(serial, net);
+            addNet(builder, net);
+        }
+        // Objects that were not added are not counted
+        assertThrows(IllegalArgumentException.class, () -> builder.addPad(VIA, new Point(2e6, 0)));
+        assertEquals(0, builder.getObjectCount());
+        builder.closeProducer();
+        assertEquals(serial.getObjectCount(), builder.getObjectCount());
+
+        // Adding again makes a new producer, whose objects come after those of the first one
+        for (int net = 20; net < 30; net++) {
+            addNet(serial, net);
+            addNet(builder, net);
+        }
+        builder.closeProducer();
+        assertEquals(serial.dumpGerberToString(NOW), builder.build().dumpGerberToString(NOW));
+
+        assertThrows(IllegalStateException.class, () -> builder.addPad(VIA, new Point(0, 0)));
+        assertThrows(IllegalStateException.class, builder::build);
+    }
+
+    @Test
+    void testKeysOfOneProducerOutOfOrder() {
+        // The only producer comes first, but its objects must be reordered
+        ConcurrentDataLayerBuilder builder = new ConcurrentDataLayerBuilder("Copper,L1,Top", false, SOFTWARE);
+        builder.setOrderKey(5);
+        addNet(builder, 5);
+        builder.setOrderKey(1);
+        addNet(builder, 1);
+        builder.closeProducer();
+
+        DataLayer serial = new DataLayer("Copper,L1,Top", false, SOFTWARE);
+        addNet(serial, 1);
+        addNet(serial, 5);
+        assertEquals(serial.dumpGerberToString(NOW), builder.build().dumpGerberToString(NOW));
+    }
+
+    @Test
+    void testBuildRequiresClosedProducers() throws Exception {
+        ConcurrentDataLayerBuilder builder = new ConcurrentDataLayerBuilder("Copper,L1,Top", false, SOFTWARE);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(() -> addNet(builder, 1)).get();
+            builder.setOrderKey(-1);
+            addNet(builder, 0);
+            builder.closeProducer();
+            assertEquals(5, builder.getObjectCount());
+            assertThrows(IllegalStateException.class, builder::build);
+
+            executor.submit(builder::closeProducer).get();
+        } finally {
+            executor.shutdown();
+        }
+        DataLayer serial = new DataLayer("Copper,L1,Top", false, SOFTWARE);
+        addNet(serial, 0);
+        addNet(serial, 1);
+        assertEquals(serial.dumpGerberToString(NOW), builder.build().dumpGerberToString(NOW));
+    }
+
+    private static void addNet(DataLayer layer, int net) {
+        double y = net * 2;
+        layer.addPad(SMD, new Point(0, y), net % 4 * 90);
+        layer.addTraceLine(new Point(0, y), new Point(5, y + 1), 0.2, CONDUCTOR, false);
+        layer.addPads(VIA, new double[]{5, 10}, new double[]{y + 1, y});
+        layer.addTracePolyline(new double[]{5, y + 1, 10, y + 1, 10, y}, 0.1 + net % 3 * 0.1, CONDUCTOR, false);
+    }
+
+    private static void addNet(ConcurrentDataLayerBuilder builder, int net) {
+        double y = net * 2;
+        builder.addPad(SMD, new Point(0, y), net % 4 * 90);
+        builder.addTraceLine(new Point(0, y), new Point(5, y + 1), 0.2, CONDUCTOR, false);
+        builder.addPads(VIA, new double[]{5, 10}, new double[]{y + 1, y});
+        builder.addTracePolyline(new double[]{5, y + 1, 10, y + 1, 10, y}, 0.1 + net % 3 * 0.1, CONDUCTOR, false);
+    }
+}
@@ -3,21 +3,1061 @@ package com.bancika.gerberwriter;
 import com.bancika.gerberwriter.padmasters.*;
 import com.bancika.gerberwriter.path.Path;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static com.bancika.gerberwriter.GerberFunctions.*;
 import static com.bancika.gerberwriter.GerberFunctions.CONDUCTOR;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class DataLayerTest {
 
     @Test
     void testGenerateCopperLayer() throws IOException {
-        
+        DataLayer top = createCopperLayer();
+
+        String gerber = top.dumpGerberToString(LocalDateTime.MIN);
+        String content = new String(Files.readAllBytes(Paths.get("src/test/resources/test1.gbr")))
+                .replaceAll("\\n|\\r\\n", System.getProperty("line.separator"));
+        assertEquals(content, gerber);
+//        System.out.println(gerber);
+    }
+
+    @Test
+    void testDumpGerberToStreamAndChannel() throws IOException {
+        DataLayer top = createCopperLayer();
+        byte[] expected = top.dumpGerberToString(LocalDateTime.MIN).getBytes(StandardCharsets.UTF_8);
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        top.dumpGerber(stream, LocalDateTime.MIN);
+        assertArrayEquals(expected, stream.toByteArray());
+
+        ByteArrayOutputStream channelTarget = new ByteArrayOutputStream();
+        try (WritableByteChannel channel = Channels.newChannel(channelTarget)) {
+            top.dumpGerber(channel, LocalDateTime.MIN);
+        }
+        assertArrayEquals(expected, channelTarget.toByteArray());
+    }
+
+    @Test
+    void testApertureTemplatesCachedAcrossDumps() {
+        DataLayer layer = new DataLayer("Copper,L1,Top", false,
+                new GenerationSoftware("Bancika", "test", "1.0"));
+        RoundedThermal thermal = new RoundedThermal(2, 1.5, 0.2, THERMAL_RELIEF_PAD, false);
+        for (int i = 0; i < 100; i++) {
+            layer.addPad(thermal, new Point(i, 0), 45);
+            layer.addPad(thermal, new Point(i, 1));
+        }
+
+        String first = layer.dumpGerberToString(LocalDateTime.MIN);
+        ApertureTemplateCache cache = layer.getApertureTemplates();
+        // One compilation per master and angle, no matter how many pads use them
+        assertEquals(2, cache.getMisses());
+        assertEquals(0, cache.getHits());
+
+        assertEquals(first, layer.dumpGerberToString(LocalDateTime.MIN));
+        assertEquals(2, cache.getMisses());
+        assertEquals(2, cache.getHits());
+    }
+
+    @Test
+    void testParallelEncodingMatchesSerial() throws IOException {
+        DataLayer layer = createRandomLayer(20 * BodyEncoder.CHUNK_SIZE);
+        String serial = layer.dumpGerberToString(LocalDateTime.MIN);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            layer.setEncodingPool(pool);
+            assertEquals(serial, layer.dumpGerberToString(LocalDateTime.MIN));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void testWriteStats() {
+        DataLayer layer = createCopperLayer();
+        List<GerberWriteStats> written = new ArrayList<>();
+        layer.setWriteListener((source, stats) -> {
+            assertSame(layer, source);
+            written.add(stats);
+        });
+        String gerber = layer.dumpGerberToString(LocalDateTime.MIN);
+
+        assertEquals(1, written.size());
+        GerberWriteStats stats = written.get(0);
+        assertEquals(gerber.length(), stats.getTotalBytes());
+        assertEquals(count(gerber, "(?m)^%ADD"), stats.getApertures());
+        assertEquals(count(gerber, "(?m)^%AM"), stats.getMacros());
+        assertEquals(count(gerber, "(?m)^D\\d+\\*$"), stats.getDcodeSwitches());
+        assertEquals(count(gerber, "(?m)^%LP"), stats.getPolaritySwitches());
+        assertEquals(count(gerber, "D03\\*"), stats.getPads());
+        assertEquals(count(gerber, "G36\\*"), stats.getRegions());
+        assertTrue(gerber.substring(0, (int) stats.getHeaderBytes()).endsWith("G75*\n"));
+        assertTrue(gerber.endsWith("M02*\n"));
+
+        // The second trace starts where the first one ended
+        DataLayer traces = new DataLayer("Copper,L1,Top", false, new GenerationSoftware("Bancika", "test", "1.0"));
+        traces.addTraceLine(new Point(0, 0), new Point(1, 0), 0.1, CONDUCTOR, false);
+        traces.addTraceLine(new Point(1, 0), new Point(1, 1), 0.1, CONDUCTOR, false);
+        traces.setWriteListener((source, traceStats) -> written.add(traceStats));
+        traces.dumpGerberToString();
+        assertEquals(2, written.get(1).getTraces());
+        assertEquals(1, written.get(1).getRedundantD02());
+    }
+
+    @Test
+    void testModalCoordinates() throws IOException {
+        // Manhattan routing and a row of pads
+        DataLayer manhattan = new DataLayer("Copper,L1,Top", false, new GenerationSoftware("Bancika", "test", "1.0"));
+        Path route = new Path();
+        route.moveTo(new Point(0, 0));
+        for (int i = 1; i <= 10; i++) {
+            route.lineTo(new Point(i, i % 2 == 0 ? i : i - 1));
+        }
+        manhattan.addTracesPath(route, 0.2, CONDUCTOR, false);
+        for (int i = 0; i < 10; i++) {
+            manhattan.addPad(new Circle(0.6, VIA_PAD, false), new Point(i * 2.54, 20));
+        }
+        List<GerberWriteStats> written = new ArrayList<>();
+        manhattan.setWriteListener((source, stats) -> written.add(stats));
+        String full = manhattan.dumpGerberToString(LocalDateTime.MIN);
+        manhattan.setModalCoordinates(true);
+        String modal = manhattan.dumpGerberToString(LocalDateTime.MIN);
+        assertTrue(modal.contains("\nY20000000D03*") || modal.contains("\nX2540000D03*"));
+        assertEquals(full.length() - modal.length(), written.get(1).getOmittedCoordinateBytes());
+        assertEquals(0, written.get(0).getOmittedCoordinateBytes());
+        assertEquals(expandCoordinates(full), expandCoordinates(modal));
+
+        DataLayer layer = createRandomLayer(5 * BodyEncoder.CHUNK_SIZE);
+        full = layer.dumpGerberToString(LocalDateTime.MIN);
+        layer.setModalCoordinates(true);
+        modal = layer.dumpGerberToString(LocalDateTime.MIN);
+        assertTrue(modal.length() < full.length());
+        assertEquals(expandCoordinates(full), expandCoordinates(modal));
+        // Regions start with both coordinates
+        assertEquals(0, count(modal, "G36\\*\\n(X-?\\d+D02|Y-?\\d+D02)"));
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            layer.setEncodingPool(pool);
+            assertEquals(modal, layer.dumpGerberToString(LocalDateTime.MIN));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * @return the lines of the file with all coordinates written out, without moves to the current point
+     */
+    private static List<String> expandCoordinates(String gerber) {
+        Pattern operation = Pattern.compile("(?:X(-?\\d+))?(?:Y(-?\\d+))?(I-?\\d+J-?\\d+)?D0([123])\\*");
+        List<String> lines = new ArrayList<>();
+        String x = null;
+        String y = null;
+        for (String line : gerber.split("\n")) {
+            Matcher matcher = operation.matcher(line);
+            if (!matcher.matches()) {
+                lines.add(line);
+                continue;
+            }
+            String nextX = matcher.group(1) != null ? matcher.group(1) : x;
+            String nextY = matcher.group(2) != null ? matcher.group(2) : y;
+            if (!matcher.group(4).equals("2") || !nextX.equals(x) || !nextY.equals(y)) {
+                String center = matcher.group(3) != null ? matcher.group(3) : "";
+                lines.add("X" + nextX + "Y" + nextY + center + "D0" + matcher.group(4) + "*");
+            }
+            x = nextX;
+            y = nextY;
+        }
+        return lines;
+    }
+
+    @Test
+    void testObjectOrder() throws IOException {
+        DataLayer layer = new DataLayer("Copper,L1,Top", false, new GenerationSoftware("Bancika", "test", "1.0"));
+        Circle via = new Circle(0.6, VIA_PAD, false);
+        Rectangle pad = new Rectangle(1, 2, SMDPAD_CU_DEF, false);
+        Circle clearance = new Circle(1, VIA_PAD, true);
+        Random random = new Random(2);
+        for (int i = 0; i < 2000; i++) {
+            Point point = new Point(random.nextInt(1000) / 10.0, random.nextInt(1000) / 10.0);
+            if (i % 500 == 499) {
+                layer.addPad(clearance, point);
+            } else {
+                layer.addPad(i % 2 == 0 ? via : pad, point);
+                layer.addTraceLine(new Point(point.y, point.x), new Point(point.y + 1, point.x), 0.2,
+                        CONDUCTOR, false);
+            }
+        }
+
+        List<GerberWriteStats> written = new ArrayList<>();
+        layer.setWriteListener((source, stats) -> written.add(stats));
+        String insertion = layer.dumpGerberToString(LocalDateTime.MIN);
+        for (ObjectOrder order : new ObjectOrder[]{ObjectOrder.HILBERT, ObjectOrder.NEAREST_NEIGHBOUR}) {
+            layer.setObjectOrder(order);
+            String ordered = layer.dumpGerberToString(LocalDateTime.MIN);
+
+            // Same objects and the same polarity runs, fewer aperture selections
+            assertEquals(sortedLines(insertion, "D03*"), sortedLines(ordered, "D03*"));
+            assertEquals(sortedLines(insertion, "D01*"), sortedLines(ordered, "D01*"));
+            assertEquals(lines(insertion, "%LP"), lines(ordered, "%LP"));
+            assertTrue(ordered.length() < insertion.length());
+            GerberWriteStats stats = written.get(written.size() - 1);
+            assertTrue(stats.getDcodeSwitches() < written.get(0).getDcodeSwitches() / 10);
+
+            ForkJoinPool pool = new ForkJoinPool(4);
+            try {
+                layer.setEncodingPool(pool);
+                assertEquals(ordered, layer.dumpGerberToString(LocalDateTime.MIN));
+            } finally {
+                layer.setEncodingPool(null);
+                pool.shutdown();
+            }
+        }
+    }
+
+    @Test
+    void testCoalesceTraces() throws IOException {
+        DataLayer layer = new DataLayer("Copper,L1,Top", false, new GenerationSoftware("Bancika", "test", "1.0"));
+        Circle via = new Circle(0.6, VIA_PAD, false);
+        Random random = new Random(3);
+        for (int net = 0; net < 300; net++) {
+            // Lines and half circles on an integer grid, added shuffled and in random directions
+            List<Point[]> segments = new ArrayList<>();
+            Point point = new Point(0, 3 * net);
+            for (int i = 0; i < 20; i++) {
+                Point next = new Point(point.x + 2, point.y);
+                Point center = i % 3 == 0 ? new Point(point.x + 1, point.y) : null;
+                segments.add(new Point[]{point, next, center});
+                point = next;
+            }
+            Collections.shuffle(segments, random);
+            for (Point[] segment : segments) {
+                boolean reversed = random.nextBoolean();
+                Point start = reversed ? segment[1] : segment[0];
+                Point end = reversed ? segment[0] : segment[1];
+                if (segment[2] == null) {
+                    layer.addTraceLine(start, end, 0.2, CONDUCTOR, false);
+                } else {
+                    layer.addTraceArc(start, end, segment[2], random.nextBoolean() ? "+" : "-", 0.2, CONDUCTOR, false);
+                }
+                layer.addPad(via, new Point(-10, random.nextInt(100)));
+            }
+            if (net % 50 == 0) {
+                // A clear trace touching the net splits it into two polarity runs
+                layer.addTraceLine(new Point(10, 3 * net), new Point(10, 3 * net + 1), 0.2, CONDUCTOR, true);
+            }
+        }
+
+        List<GerberWriteStats> written = new ArrayList<>();
+        layer.setWriteListener((source, stats) -> written.add(stats));
+        String separate = layer.dumpGerberToString(LocalDateTime.MIN);
+        layer.setCoalesceTraces(true);
+        String coalesced = layer.dumpGerberToString(LocalDateTime.MIN);
+
+        assertEquals(drawnSegments(separate), drawnSegments(coalesced));
+        assertEquals(lines(separate, "%LP"), lines(coalesced, "%LP"));
+        assertEquals(sortedLines(separate, "D03*"), sortedLines(coalesced, "D03*"));
+        assertTrue(coalesced.length() < separate.length());
+        assertTrue(count(coalesced, "D02\\*") < count(separate, "D02\\*") / 5);
+        assertTrue(written.get(1).getDcodeSwitches() < written.get(0).getDcodeSwitches() / 5);
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            layer.setEncodingPool(pool);
+            assertEquals(coalesced, layer.dumpGerberToString(LocalDateTime.MIN));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * @return the segments drawn by the body with their polarity, independent of their direction
+     */
+    private static List<String> drawnSegments(String gerber) {
+        Pattern operation = Pattern.compile("X(-?\\d+)Y(-?\\d+)(?:I(-?\\d+)J(-?\\d+))?D0([12])\\*");
+        List<String> segments = new ArrayList<>();
+        String polarity = null;
+        String mode = null;
+        long x = 0;
+        long y = 0;
+        for (String line : gerber.split("\n")) {
+            if (line.startsWith("%LP") || line.matches("G0[123]\\*")) {
+                if (line.startsWith("%LP")) {
+                    polarity = line;
+                } else {
+                    mode = line;
+                }
+                continue;
+            }
+            Matcher matcher = operation.matcher(line);
+            if (!matcher.matches()) {
+                continue;
+            }
+            long nextX = Long.parseLong(matcher.group(1));
+            long nextY = Long.parseLong(matcher.group(2));
+            if (matcher.group(5).equals("1")) {
+                String from = x + "," + y;
+                String to = nextX + "," + nextY;
+                if ("G01*".equals(mode)) {
+                    segments.add(polarity + " line " + (from.compareTo(to) < 0 ? from + " " + to : to + " " + from));
+                } else {
+                    // Clockwise from a to b is counterclockwise from b to a
+                    String center = (x + Long.parseLong(matcher.group(3))) + "," + (y + Long.parseLong(matcher.group(4)));
+                    boolean clockwise = "G02*".equals(mode);
+                    segments.add(polarity + " arc " + center + " " + (clockwise ? from + " " + to : to + " " + from));
+                }
+            }
+            x = nextX;
+            y = nextY;
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /**
+     * Layer with random pads, chained traces, arcs and regions, some of them negative
+     */
+    static DataLayer createRandomLayer(int objects) {
+        DataLayer layer = new DataLayer("Copper,L1,Top", false,
+                new GenerationSoftware("Bancika", "test", "1.0"));
+        AbstractPad[] masters = {
+                new Circle(0.5, COMPONENT_PAD, false),
+                new Rectangle(1, 2, SMDPAD_CU_DEF, false),
+                new Circle(0.8, VIA_PAD, true)};
+        Random random = new Random(1);
+        Point last = new Point(0, 0);
+        for (int i = 0; i < objects; i++) {
+            Point next = new Point(random.nextInt(1000) / 10.0, random.nextInt(1000) / 10.0);
+            switch (random.nextInt(5)) {
+                case 0:
+                case 1:
+                    layer.addPad(masters[random.nextInt(masters.length)], next, 90 * random.nextInt(2));
+                    break;
+                case 2:
+                    // Chained traces, the D02 of the next one is omitted
+                    layer.addTraceLine(last, next, 0.1 * (1 + random.nextInt(2)), CONDUCTOR,
+                            random.nextInt(10) == 0);
+                    break;
+                case 3:
+                    layer.addTraceArc(new Point(next.x + 1, next.y), new Point(next.x, next.y + 1), next,
+                            random.nextBoolean() ? "+" : "-", 0.1, CONDUCTOR, false);
+                    break;
+                default:
+                    Path region = new Path();
+                    region.moveTo(next);
+                    region.lineTo(new Point(next.x + 1, next.y));
+                    region.lineTo(new Point(next.x, next.y + 1));
+                    region.lineTo(next);
+                    layer.addRegion(region, CONDUCTOR, random.nextInt(10) == 0);
+            }
+            last = next;
+        }
+        return layer;
+    }
+
+    private static List<String> lines(String gerber, String filter) {
+        List<String> lines = new ArrayList<>();
+        for (String line : gerber.split("\n")) {
+            if (line.contains(filter)) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    private static List<String> sortedLines(String gerber, String filter) {
+        List<String> lines = lines(gerber, filter);
+        Collections.sort(lines);
+        return lines;
+    }
+
+    private static int count(String s, String regex) {
+        Matcher matcher = Pattern.compile(regex).matcher(s);
+        int count = 0;
+        while (matcher.find()) {
+            count++;
+        }
+        return count;
+    }
+
+    @Test
+    void testCoordinatesRoundedToNanometres() {
+        DataLayer panel = new DataLayer("Copper,L1,Top", false, new GenerationSoftware("Bancika", "test", "1.0"));
+        Circle via = new Circle(0.6, VIA_PAD, false);
+        // 65.094 is 65.09399999999999 as a double
+        panel.addPad(via, new Point(65.094, 0.0000004));
+        // Beyond 2147 mm, which overflowed an int of nanometres
+        panel.addPad(via, new Point(3000.5, -2500.25));
+        panel.addTraceArc(new Point(2999, 0), new Point(3001, 0), new Point(3000, 0), "+", 0.1, CONDUCTOR, false);
+
+        String gerber = panel.dumpGerberToString(LocalDateTime.MIN);
+        assertTrue(gerber.contains("%FSLAX46Y46*%"));
+        assertTrue(gerber.contains("\nX65094000Y0D03*\n"));
+        assertTrue(gerber.contains("\nX3000500000Y-2500250000D03*\n"));
+        assertTrue(gerber.contains("\nX3001000000Y0I1000000J0D01*\n"));
+
+        assertThrows(IllegalArgumentException.class, () -> panel.addPad(via, new Point(Double.NaN, 0)));
+        assertThrows(IllegalArgumentException.class, () -> panel.addPad(via, new Point(0, 1e7)));
+        Path path = new Path();
+        path.moveTo(new Point(0, 0));
+        path.lineTo(new Point(2e6, 0));
+        assertThrows(IllegalArgumentException.class, () -> panel.addTracesPath(path, 0.1, CONDUCTOR, false));
+        assertEquals(gerber, panel.dumpGerberToString(LocalDateTime.MIN));
+    }
+
+    @Test
+    void testEqualMastersShareAperture() {
+        DataLayer layer = new DataLayer("Copper,L1,Top", false,
+                new GenerationSoftware("Bancika", "test", "1.0"));
+        layer.addPad(new Circle(0.5, CONDUCTOR, false), new Point(0, 0));
+        layer.addPad(new Circle(0.5, CONDUCTOR, false), new Point(1, 0));
+        layer.addTraceLine(new Point(0, 0), new Point(1, 0), 0.5, CONDUCTOR, false);
+        layer.addPad(new Circle(0.5, CONDUCTOR, true), new Point(2, 0));
+        layer.addPad(new Rectangle(1, 2, SMDPAD_CU_DEF, false), new Point(3, 0), 30);
+        layer.addPad(new Rectangle(1, 2, SMDPAD_CU_DEF, false), new Point(4, 0), 30);
+
+        String gerber = layer.dumpGerberToString(LocalDateTime.MIN);
+        assertEquals(3, gerber.split("%ADD", -1).length - 1);
+        assertTrue(gerber.contains("%ADD10C,0.500000*%"));
+        assertTrue(gerber.contains("%ADD11C,0.500000*%"));
+        assertTrue(gerber.contains("%ADD12Rectangle,0.500000X1.000000X30.000000*%"));
+    }
+
+    @Test
+    void testSymmetricPadsShareAperture() {
+        DataLayer layer = new DataLayer("Copper,L1,Top", false,
+                new GenerationSoftware("Bancika", "test", "1.0"));
+        Rectangle rect = new Rectangle(1, 2, SMDPAD_CU_DEF, false);
+        layer.addPad(rect, new Point(0, 0), 90);
+        layer.addPad(new Rectangle(2, 1, SMDPAD_CU_DEF, false), new Point(1, 0), 180);
+        layer.addPad(rect, new Point(2, 0), -90);
+        layer.addPad(rect, new Point(3, 0), 120);
+        layer.addPad(new Rectangle(2, 1, SMDPAD_CU_DEF, false), new Point(4, 0), 210.0000000001);
+        layer.addPad(new Thermal(2, 1.5, 0.2, THERMAL_RELIEF_PAD, false), new Point(5, 0), 45);
+        layer.addPad(new Thermal(2, 1.5, 0.2, THERMAL_RELIEF_PAD, false), new Point(6, 0), 135);
+
+        String gerber = layer.dumpGerberToString(LocalDateTime.MIN);
+        assertEquals(3, count(gerber, "%ADD"));
+        assertTrue(gerber.contains("%ADD10R,2.000000X1.000000*%"));
+        assertTrue(gerber.contains("%ADD11Rectangle,1.000000X0.500000X30.000000*%"));
+        assertTrue(gerber.contains("%ADD12Thermal,2.000000X1.500000X0.200000X45.000000*%"));
+
+        // A coarser resolution merges nearby angles, the templates are compiled again
+        layer.addPad(new Rectangle(2, 1, SMDPAD_CU_DEF, false), new Point(10, 0), 30.04);
+        assertEquals(4, count(layer.dumpGerberToString(LocalDateTime.MIN), "%ADD"));
+        layer.setAngleResolution(0.1);
+        assertEquals(0, layer.getApertureTemplates().size());
+        assertEquals(3, count(layer.dumpGerberToString(LocalDateTime.MIN), "%ADD"));
+        assertThrows(IllegalArgumentException.class, () -> layer.setAngleResolution(0));
+    }
+
+    @Test
+    void testRegularPolygonPads() {
+        DataLayer layer = new DataLayer("Copper,L1,Top", false,
+                new GenerationSoftware("Bancika", "test", "1.0"));
+        RegularPolygon hexagon = new RegularPolygon(1, 6, SMDPAD_CU_DEF, false);
+        layer.addPad(hexagon, new Point(0, 0), 10);
+        layer.addPad(hexagon, new Point(1, 0), 70);
+        layer.addPad(hexagon, new Point(2, 0), -50);
+        layer.addPad(new RegularPolygon(2, 3, SMDPAD_CU_DEF, false), new Point(3, 0));
+
+        String gerber = layer.dumpGerberToString(LocalDateTime.MIN);
+        // Hexagons look the same every 60 degrees
+        assertEquals(2, count(gerber, "%ADD"));
+        assertTrue(gerber.contains("%ADD10P,1.000000X6X10.000000*%"));
+        assertTrue(gerber.contains("%ADD11P,2.000000X3X0.000000*%"));
+        assertThrows(IllegalArgumentException.class,
+                () -> layer.addPad(new RegularPolygon(1, 6, "", false), new Point(0, 0)));
+    }
+
+    @Test
+    void testBulkIngestion() {
+        GenerationSoftware software = new GenerationSoftware("Bancika", "test", "1.0");
+        Circle via = new Circle(0.6, VIA_PAD, false);
+
+        DataLayer expected = new DataLayer("Copper,L1,Top", false, software);
+        expected.addPad(via, new Point(1, 2), 0);
+        expected.addPad(via, new Point(3, 4), 45);
+        Path trace = new Path();
+        trace.moveTo(new Point(0, 0));
+        trace.lineTo(new Point(5, 0));
+        trace.lineTo(new Point(5, 5));
+        expected.addTracesPath(trace, 0.2, CONDUCTOR, false);
+        Path region = new Path();
+        region.moveTo(new Point(10, 10));
+        region.lineTo(new Point(12, 10));
+        region.lineTo(new Point(12, 12));
+        region.lineTo(new Point(10, 10));
+        region.moveTo(new Point(20, 20));
+        region.lineTo(new Point(21, 20));
+        region.lineTo(new Point(21, 21));
+        region.lineTo(new Point(20, 20));
+        expected.addRegion(region, CONDUCTOR, false);
+
+        DataLayer bulk = new DataLayer("Copper,L1,Top", false, software);
+        bulk.addPads(via, new double[]{1, 3}, new double[]{2, 4}, new double[]{0, 45});
+        bulk.addTracePolyline(new double[]{0, 0, 5, 0, 5, 5}, 0.2, CONDUCTOR, false);
+        bulk.addRegion(new double[][]{{10, 10, 12, 10, 12, 12, 10, 10}, {20, 20, 21, 20, 21, 21, 20, 20}},
+                CONDUCTOR, false);
+        assertEquals(expected.dumpGerberToString(LocalDateTime.MIN), bulk.dumpGerberToString(LocalDateTime.MIN));
+
+        // Invalid input adds nothing
+        String gerber = bulk.dumpGerberToString(LocalDateTime.MIN);
+        assertThrows(IllegalArgumentException.class,
+                () -> bulk.addPads(via, new double[]{1, 2}, new double[]{1, Double.NaN}));
+        assertThrows(IllegalArgumentException.class,
+                () -> bulk.addPads(via, new double[]{1, 2}, new double[]{1}));
+        assertThrows(IllegalArgumentException.class,
+                () -> bulk.addTracePolyline(new double[]{0, 0, 1}, 0.2, CONDUCTOR, false));
+        assertThrows(IllegalArgumentException.class,
+                () -> bulk.addRegion(new double[][]{{0, 0, 1, 0, 1, 1, 0, 0}, {0, 0, 1, 0, 1, 1}}, CONDUCTOR, false));
+        assertThrows(IllegalArgumentException.class,
+                () -> bulk.addRegion(new double[][]{{0, 0, 1, 0, 1e7, 1, 0, 0}}, CONDUCTOR, false));
+        assertEquals(gerber, bulk.dumpGerberToString(LocalDateTime.MIN));
+    }
+
+    @Test
+    void testStepAndRepeat() {
+        DataLayer board = createCopperLayer();
+        String single = board.dumpGerberToString(LocalDateTime.MIN);
+        board.setStepAndRepeat(10, 10, 120, 95.5);
+        String panel = board.dumpGerberToString(LocalDateTime.MIN);
+
+        // The body is written once, inside the block, and the panel needs 4 integer digits
+        List<String> panelLines = lines(panel, "");
+        int start = panelLines.indexOf("%SRX10Y10I120.000000J95.500000*%");
+        int end = panelLines.indexOf("%SR*%");
+        assertTrue(start > 0 && end == panelLines.size() - 2);
+        assertEquals("%FSLAX46Y46*%", panelLines.get(panelLines.indexOf("%MOMM*%") + 1));
+        List<String> singleLines = lines(single.replace("%FSLAX36Y36*%", "%FSLAX46Y46*%"), "");
+        List<String> unwrapped = new ArrayList<>(panelLines);
+        unwrapped.remove(end);
+        unwrapped.remove(start);
+        assertEquals(singleLines, unwrapped);
+
+        board.setStepAndRepeat(1, 1, 0, 0);
+        assertEquals(single, board.dumpGerberToString(LocalDateTime.MIN));
+
+        assertThrows(IllegalArgumentException.class, () -> board.setStepAndRepeat(0, 2, 1, 1));
+        assertThrows(IllegalArgumentException.class, () -> board.setStepAndRepeat(2, 2, -1, 1));
+        assertThrows(IllegalArgumentException.class, () -> board.setStepAndRepeat(2, 2, 1, Double.NaN));
+        assertThrows(IllegalArgumentException.class, () -> board.setStepAndRepeat(1000, 1, 2000, 1));
+
+        // The objects and the panel together must fit in 6 integer digits
+        DataLayer far = new DataLayer("Copper,L1,Top", false, new GenerationSoftware("Bancika", "test", "1.0"));
+        Circle circle = new Circle(1, SMDPAD_CU_DEF, false);
+        far.addPad(circle, new Point(900000, 0));
+        assertThrows(IllegalArgumentException.class, () -> far.setStepAndRepeat(2, 1, 200000, 0));
+        far.setStepAndRepeat(2, 1, 90000, 0);
+        assertTrue(far.dumpGerberToString(LocalDateTime.MIN).contains("%FSLAX66Y66*%"));
+        far.addPad(circle, new Point(950000, 0));
+        assertThrows(IllegalStateException.class, () -> far.dumpGerberToString(LocalDateTime.MIN));
+    }
+
+    @Test
+    void testIndependentOfDefaultLocale() {
+        DataLayer board = createCopperLayer();
+        board.addPad(new RegularPolygon(1.5, 6, SMDPAD_CU_DEF, false), new Point(3, 3), 10);
+        board.setStepAndRepeat(10, 10, 120, 95.5);
+        String expected = board.dumpGerberToString(LocalDateTime.MIN);
+
+        Locale locale = Locale.getDefault();
+        try {
+            // Writes decimal commas, which would split the fields of the commands
+            Locale.setDefault(Locale.GERMANY);
+            DataLayer german = createCopperLayer();
+            german.addPad(new RegularPolygon(1.5, 6, SMDPAD_CU_DEF, false), new Point(3, 3), 10);
+            german.setStepAndRepeat(10, 10, 120, 95.5);
+            String germanGerber = german.dumpGerberToString(LocalDateTime.MIN);
+            assertEquals(expected, germanGerber);
+            assertTrue(germanGerber.contains("%SRX10Y10I120.000000J95.500000*%"));
+            assertTrue(germanGerber.contains("P,1.500000X6X10.000000*%"));
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+
+    @Test
+    void testBlockAperture() {
+        BlockAperture footprint = new BlockAperture(COMPONENT_PAD, false);
+        Rectangle smd = new Rectangle(0.5, 1, SMDPAD_CU_DEF, false);
+        footprint.addPad(smd, new Point(-1, 0));
+        footprint.addPad(smd, new Point(1, 0));
+        Path path = new Path();
+        path.moveTo(new Point(-1, 0));
+        path.lineTo(new Point(1, 0));
+        footprint.addTracesPath(path, 0.1, CONDUCTOR, false);
+
+        DataLayer layer = new DataLayer("Copper,L1,Top", false, new GenerationSoftware("Bancika", "test", "1.0"));
+        for (int i = 0; i < 100; i++) {
+            layer.addPad(footprint, new Point(10 * i, 10));
+        }
+        layer.addPad(footprint, new Point(0, 30), 90);
+        String gerber = layer.dumpGerberToString(LocalDateTime.MIN);
+
+        // Defined once per angle, after the apertures it uses, and flashed once per placement
+        List<String> lines = lines(gerber, "");
+        assertEquals(Arrays.asList("%ABD12*%", "%AB*%", "%ABD14*%", "%AB*%"), lines(gerber, "%AB"));
+        assertTrue(lines.indexOf("%ADD10R,0.500000X1.000000*%") < lines.indexOf("%ABD12*%"));
+        assertTrue(lines.indexOf("%ADD13Rectangle,0.250000X0.500000X90.000000*%") < lines.indexOf("%ABD14*%"));
+        assertEquals(101 + 4, count(gerber, "D03\\*"));
+        // Rotated contents
+        assertTrue(gerber.contains("%ABD14*%\n%LPD*%\nD13*\nX0Y-1000000D03*\nX0Y1000000D03*\n"));
+        assertTrue(gerber.contains("\nD14*\nX0Y30000000D03*\nM02*\n"));
+
+        BlockAperture empty = new BlockAperture(COMPONENT_PAD, false);
+        assertThrows(IllegalArgumentException.class, () -> layer.addPad(empty, new Point(0, 0)));
+        assertThrows(IllegalArgumentException.class, () -> empty.addPad(empty, new Point(0, 0)));
+        empty.addPad(footprint, new Point(0, 0));
+        assertThrows(IllegalArgumentException.class, () -> footprint.addPad(empty, new Point(0, 0)));
+    }
+
+    @Test
+    void testBlockApertureFrozenOnFirstUse() {
+        BlockAperture inner = new BlockAperture(COMPONENT_PAD, false);
+        inner.addPad(new Circle(0.5, SMDPAD_CU_DEF, false), new Point(0, 0));
+        BlockAperture footprint = new BlockAperture(COMPONENT_PAD, false);
+        footprint.addPad(inner, new Point(1, 0));
+        assertFalse(footprint.isFrozen());
+
+        DataLayer layer = new DataLayer("Copper,L1,Top", false, new GenerationSoftware("Bancika", "test", "1.0"));
+        layer.addPad(footprint, new Point(0, 0));
+        String gerber = layer.dumpGerberToString(LocalDateTime.MIN);
+        assertTrue(footprint.isFrozen());
+        assertTrue(inner.isFrozen());
+
+        // The compiled blocks would no longer match
+        Path path = new Path();
+        path.moveTo(new Point(0, 0));
+        path.lineTo(new Point(1, 0));
+        assertThrows(IllegalStateException.class, () -> footprint.addPad(inner, new Point(2, 0)));
+        assertThrows(IllegalStateException.class, () -> inner.addTracesPath(path, 0.1, CONDUCTOR, false));
+        assertEquals(1, footprint.getElements().size());
+        assertEquals(gerber, layer.dumpGerberToString(LocalDateTime.MIN));
+    }
+
+    @Test
+    void testBlockApertureWithClearContentsKeepsItsPlace() {
+        // A dark block around a nested block with a clear circle
+        BlockAperture hole = new BlockAperture(COMPONENT_PAD, false);
+        hole.addPad(new Circle(0.5, SMDPAD_CU_DEF, true), new Point(0, 0));
+        BlockAperture block = new BlockAperture(COMPONENT_PAD, false);
+        block.addPad(hole, new Point(0, 0));
+
+        DataLayer layer = new DataLayer("Copper,L1,Top", false, new GenerationSoftware("Bancika", "test", "1.0"));
+        layer.addPad(new Circle(2, SMDPAD_CU_DEF, false), new Point(0, 0));
+        layer.addTraceLine(new Point(0, 0), new Point(50, 50), 0.2, CONDUCTOR, false);
+        layer.addPad(block, new Point(50, 50));
+        layer.addPad(new Circle(2, SMDPAD_CU_DEF, false), new Point(50, 50));
+        layer.addTraceLine(new Point(50, 50), new Point(60, 50), 0.2, CONDUCTOR, false);
+        String insertion = layer.dumpGerberToString(LocalDateTime.MIN);
+
+        // The block clears what comes before it and not what comes after it
+        for (ObjectOrder order : new ObjectOrder[]{ObjectOrder.HILBERT, ObjectOrder.NEAREST_NEIGHBOUR}) {
+            layer.setObjectOrder(order);
+            assertEquals(insertion, layer.dumpGerberToString(LocalDateTime.MIN));
+        }
+        layer.setCoalesceTraces(true);
+        assertEquals(insertion, layer.dumpGerberToString(LocalDateTime.MIN));
+    }
+
+    @Test
+    void testSimplifyRegions() {
+        DataLayer layer = new DataLayer("Copper,L1,Top", false, new GenerationSoftware("Bancika", "test", "1.0"));
+        // Edges of a square with 1000 points each, off the edge by 20 nm, and a doubled corner
+        Path square = new Path();
+        square.moveTo(new Point(0, 0));
+        Point[] corners = {new Point(10, 0), new Point(10, 10), new Point(0, 10), new Point(0, 0)};
+        Point from = new Point(0, 0);
+        for (Point corner : corners) {
+            for (int i = 1; i < 1000; i++) {
+                double offset = i % 2 == 0 ? 0.00002 : -0.00002;
+                double t = i / 1000.0;
+                double x = from.x + t * (corner.x - from.x) + (corner.y - from.y) / 10 * offset;
+                double y = from.y + t * (corner.y - from.y) + (corner.x - from.x) / 10 * offset;
+                square.lineTo(new Point(x, y));
+            }
+            if (corner.x == 10 && corner.y == 10) {
+                square.lineTo(new Point(10, 9.9999999));
+            }
+            square.lineTo(corner);
+            from = corner;
+        }
+        layer.addRegion(square, CONDUCTOR, false);
+        // Arcs and their end points are kept
+        Path rounded = new Path();
+        rounded.moveTo(new Point(20, 0));
+        rounded.lineTo(new Point(25, 0));
+        rounded.lineTo(new Point(30, 0));
+        rounded.arcTo(new Point(30, 10), new Point(30, 5), "+");
+        rounded.lineTo(new Point(20, 10));
+        rounded.lineTo(new Point(20, 0));
+        layer.addRegion(rounded, CONDUCTOR, false);
+
+        List<GerberWriteStats> written = new ArrayList<>();
+        layer.setWriteListener((source, stats) -> written.add(stats));
+        String original = layer.dumpGerberToString(LocalDateTime.MIN);
+        layer.setSimplifyRegions(true);
+        String simplified = layer.dumpGerberToString(LocalDateTime.MIN);
+
+        assertEquals(4002 + 6, count(original, "D0[12]\\*"));
+        assertTrue(simplified.contains("G36*\nX0Y0D02*\nG01*\nX10000000Y0D01*\nX10000000Y10000000D01*\n" +
+                "X0Y10000000D01*\nX0Y0D01*\nG37*\n"));
+        assertTrue(simplified.contains("G36*\nX20000000Y0D02*\nX30000000Y0D01*\nG03*\n" +
+                "X30000000Y10000000I0J5000000D01*\nG01*\nX20000000Y10000000D01*\nX20000000Y0D01*\nG37*\n"));
+        assertEquals(4008, written.get(0).getRegionVertices());
+        assertEquals(4008, written.get(0).getWrittenRegionVertices());
+        assertEquals(4008, written.get(1).getRegionVertices());
+        assertEquals(5 + 5, written.get(1).getWrittenRegionVertices());
+
+        // Parallel simplification writes the same
+        DataLayer large = createRandomLayer(3 * BodyEncoder.CHUNK_SIZE);
+        for (int i = 0; i < 2 * BodyEncoder.CHUNK_SIZE; i++) {
+            large.addRegion(i % 100 == 0 ? square : rounded, CONDUCTOR, i % 3 == 0);
+        }
+        large.setSimplifyRegions(true);
+        String serial = large.dumpGerberToString(LocalDateTime.MIN);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            large.setEncodingPool(pool);
+            assertEquals(serial, large.dumpGerberToString(LocalDateTime.MIN));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void testFitArcs() {
+        GenerationSoftware software = new GenerationSoftware("Bancika", "test", "1.0");
+        Path halfCircle = createHalfCircle(0);
+        assertEquals(181, halfCircle.size());
+        assertEquals(2, halfCircle.fitArcs(DataLayer.TOLERANCE).size());
+        assertEquals(2, createHalfCircle(0.0002).fitArcs(DataLayer.TOLERANCE).size());
+        assertEquals(181, createHalfCircle(0.002).fitArcs(DataLayer.TOLERANCE).size());
+
+        // Vertices on the circle, but the arc is 18.6 µm off the 9.9° segments
+        Path coarse = new Path();
+        coarse.moveTo(new Point(15, 10));
+        for (int i = 1; i <= 18; i++) {
+            double angle = Math.toRadians(9.9 * i);
+            coarse.lineTo(new Point(10 + 5 * Math.cos(angle), 10 + 5 * Math.sin(angle)));
+        }
+        assertEquals(19, coarse.fitArcs(DataLayer.TOLERANCE).size());
+
+        // Rounded rectangle with corners of 36 segments; the octagon stays as it is
+        Path rounded = new Path();
+        rounded.moveTo(new Point(0, -1));
+        for (int corner = 0; corner < 4; corner++) {
+            double cornerX = corner < 2 ? 10 : 0;
+            double cornerY = corner == 1 || corner == 2 ? 10 : 0;
+            for (int i = 0; i <= 36; i++) {
+                double angle = Math.toRadians(corner * 90 - 90 + 2.5 * i);
+                rounded.lineTo(corner == 3 && i == 36 ? new Point(0, -1)
+                        : new Point(cornerX + Math.cos(angle), cornerY + Math.sin(angle)));
+            }
+        }
+        Path octagon = new Path();
+        octagon.moveTo(new Point(21, 0));
+        for (int i = 1; i <= 8; i++) {
+            double angle = Math.toRadians(45 * i);
+            octagon.lineTo(i == 8 ? new Point(21, 0) : new Point(20 + Math.cos(angle), Math.sin(angle)));
+        }
+
+        DataLayer layer = new DataLayer("Copper,L1,Top", false, software);
+        layer.setFitArcs(true);
+        layer.addTracesPath(halfCircle, 0.1, CONDUCTOR, false);
+        layer.addRegion(rounded, CONDUCTOR, false);
+        layer.addRegion(octagon, CONDUCTOR, false);
+        String gerber = layer.dumpGerberToString(LocalDateTime.MIN);
+
+        assertTrue(gerber.contains("X15000000Y10000000D02*\nG03*\nX5000000Y10000000I-5000000J0D01*\n"));
+        assertEquals(1 + 4, count(gerber, "I-?\\d+J-?\\d+D01"));
+        assertEquals(4 + 8, count(gerber, "(?m)^X-?\\d+Y-?\\d+D01"));
+
+        // The bulk methods fit the same arcs
+        DataLayer bulk = new DataLayer("Copper,L1,Top", false, software);
+        bulk.setFitArcs(true);
+        double[] xy = new double[2 * 181];
+        for (int i = 0; i <= 180; i++) {
+            xy[2 * i] = 10 + 5 * Math.cos(Math.toRadians(i));
+            xy[2 * i + 1] = 10 + 5 * Math.sin(Math.toRadians(i));
+        }
+        bulk.addTracePolyline(xy, 0.1, CONDUCTOR, false);
+        assertEquals(1, count(bulk.dumpGerberToString(LocalDateTime.MIN), "I-?\\d+J-?\\d+D01"));
+        assertThrows(IllegalArgumentException.class, () -> halfCircle.fitArcs(0));
+    }
+
+    @Test
+    void testSpatialIndex() {
+        GenerationSoftware software = new GenerationSoftware("Bancika", "test", "1.0");
+        DataLayer layer = new DataLayer("Copper,L1,Top", false, software);
+        assertEquals(null, layer.getBounds());
+        assertEquals(-1, layer.findNearestObject(new Point(0, 0)));
+        assertEquals(0, layer.findObjects(new BoundingBox(-1, -1, 1, 1)).length);
+
+        // The bulge of the arc and the width of the trace are included
+        layer.addTraceArc(new Point(1, 0), new Point(-1, 0), new Point(0, 0), "+", 0.2, CONDUCTOR, false);
+        layer.addPad(new Rectangle(1, 2, SMDPAD_CU_DEF, false), new Point(10, 10), 90);
+        layer.addPad(new Rectangle(2, 2, SMDPAD_CU_DEF, false), new Point(10, 20), 45);
+        BlockAperture block = new BlockAperture(COMPONENT_PAD, false);
+        block.addPad(new Circle(0.5, COMPONENT_PAD, false), new Point(1, 0));
+        layer.addPad(block, new Point(20, 0), 90);
+        assertEquals(new BoundingBox(-1.1, -0.1, 1.1, 1.1), layer.getBounds(0));
+        assertEquals(new BoundingBox(9, 9.5, 11, 10.5), layer.getBounds(1));
+        assertEquals(new BoundingBox(8.585786, 18.585786, 11.414214, 21.414214), layer.getBounds(2));
+        assertEquals(new BoundingBox(19.75, 0.75, 20.25, 1.25), layer.getBounds(3));
+        assertEquals(new BoundingBox(-1.1, -0.1, 20.25, 21.414214), layer.getBounds());
+        assertArrayEquals(new int[]{0}, layer.findObjects(new BoundingBox(0, 1.05, 0.1, 2)));
+        assertEquals(3, layer.findNearestObject(new Point(30, 0)));
+
+        // Queries match a linear scan, also after more objects were added
+        DataLayer large = createRandomLayer(3000);
+        large.findObjects(new BoundingBox(0, 0, 1, 1));
+        large.addTraceLine(new Point(50, 50), new Point(60, 60), 0.1, CONDUCTOR, false);
+        Random random = new Random(2);
+        for (int query = 0; query < 200; query++) {
+            assertQueryMatchesScan(large, random);
+        }
+    }
+
+    @Test
+    void testSpatialIndexBetweenAdds() {
+        DataLayer layer = createRandomLayer(3000);
+        Circle circle = new Circle(0.5, COMPONENT_PAD, false);
+        Random random = new Random(3);
+        // Enough adds that the pending objects are packed several times
+        for (int i = 0; i < 1000; i++) {
+            layer.addPad(circle, new Point(random.nextInt(1000) / 10.0, random.nextInt(1000) / 10.0));
+            assertQueryMatchesScan(layer, random);
+        }
+
+        // A pending object as near as a packed one loses, and counts for the extent
+        int object = layer.findNearestObject(new Point(50, 50));
+        BoundingBox bounds = layer.getBounds(object);
+        layer.addTraceLine(new Point(bounds.minX, bounds.minY), new Point(bounds.maxX, bounds.maxY), 0, CONDUCTOR,
+                false);
+        assertEquals(object, layer.findNearestObject(new Point(50, 50)));
+        layer.addPad(circle, new Point(500, 500));
+        assertEquals(500.25, layer.getBounds().maxX, 1e-9);
+        assertEquals(layer.getObjectCount() - 1, layer.findNearestObject(new Point(500, 500)));
+    }
+
+    /**
+     * Checks a random window and the nearest object to its corner against a linear scan
+     */
+    private static void assertQueryMatchesScan(DataLayer layer, Random random) {
+        int xi = random.nextInt(1000);
+        int yi = random.nextInt(1000);
+        double x = xi / 10.0;
+        double y = yi / 10.0;
+        BoundingBox window = new BoundingBox(x, y, (xi + random.nextInt(100)) / 10.0, (yi + random.nextInt(100)) / 10.0);
+        List<Integer> expected = new ArrayList<>();
+        int nearest = -1;
+        double nearestDistance = Double.MAX_VALUE;
+        for (int object = 0; object < layer.getObjectCount(); object++) {
+            BoundingBox bounds = layer.getBounds(object);
+            if (bounds.intersects(window)) {
+                expected.add(object);
+            }
+            double dx = Math.max(0, Math.max(bounds.minX - x, x - bounds.maxX));
+            double dy = Math.max(0, Math.max(bounds.minY - y, y - bounds.maxY));
+            if (dx * dx + dy * dy < nearestDistance - 1e-9) {
+                nearest = object;
+                nearestDistance = dx * dx + dy * dy;
+            }
+        }
+        int[] found = layer.findObjects(window);
+        assertEquals(expected.size(), found.length);
+        for (int i = 0; i < found.length; i++) {
+            assertEquals(expected.get(i).intValue(), found[i]);
+        }
+        assertEquals(nearest, layer.findNearestObject(new Point(x, y)));
+    }
+
+    @Test
+    void testWindowedExport(@TempDir java.nio.file.Path directory) throws IOException {
+        DataLayer layer = new DataLayer("Copper,L1,Top", false, new GenerationSoftware("Bancika", "test", "1.0"));
+        Circle circle = new Circle(0.5, COMPONENT_PAD, false);
+        layer.addPad(circle, new Point(1, 1));
+        layer.addPad(circle, new Point(5, 1));
+        layer.addPad(circle, new Point(9, 1));
+        layer.addTraceLine(new Point(4, 5), new Point(6, 5), 0.2, CONDUCTOR, false);
+
+        String window = layer.dumpGerberWindowToString(new BoundingBox(0, 0, 3, 3), TileBoundary.INTERSECTING,
+                LocalDateTime.MIN);
+        assertTrue(window.contains("X1000000Y1000000D03*"));
+        assertEquals(1, count(window, "D0[123]\\*"));
+        assertEquals(layer.dumpGerberToString(LocalDateTime.MIN), layer.dumpGerberWindowToString(
+                new BoundingBox(0, 0, 10, 10), TileBoundary.INTERSECTING, LocalDateTime.MIN));
+        // The centers of the pad at (5, 1) and of the trace are on the edge between the windows
+        assertEquals(3, count(layer.dumpGerberWindowToString(new BoundingBox(4, 0, 5, 6), TileBoundary.INTERSECTING,
+                LocalDateTime.MIN), "D0[123]\\*"));
+        assertEquals(0, count(layer.dumpGerberWindowToString(new BoundingBox(4, 0, 5, 6), TileBoundary.ANCHOR,
+                LocalDateTime.MIN), "D0[123]\\*"));
+        assertEquals(3, count(layer.dumpGerberWindowToString(new BoundingBox(5, 0, 6, 6), TileBoundary.ANCHOR,
+                LocalDateTime.MIN), "D0[123]\\*"));
+
+        // Tiles of 4 mm from (0.75, 0.75), the trace crosses four of them
+        List<String> anchored = layer.dumpGerberTiles(directory.resolve("anchor").toString(), 4, 4,
+                TileBoundary.ANCHOR, LocalDateTime.MIN);
+        assertEquals(Arrays.asList("tile_0_0.gbr", "tile_1_0.gbr", "tile_2_0.gbr", "tile_1_1.gbr"), fileNames(anchored));
+        List<String> intersecting = layer.dumpGerberTiles(directory.resolve("intersecting").toString(), 4, 4,
+                TileBoundary.INTERSECTING, LocalDateTime.MIN);
+        assertEquals(Arrays.asList("tile_0_0.gbr", "tile_1_0.gbr", "tile_2_0.gbr", "tile_0_1.gbr", "tile_1_1.gbr"),
+                fileNames(intersecting));
+
+        // Tiles written in parallel are the same
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            layer.setEncodingPool(pool);
+            List<String> parallel = layer.dumpGerberTiles(directory.resolve("parallel").toString(), 4, 4,
+                    TileBoundary.INTERSECTING, LocalDateTime.MIN);
+            for (int i = 0; i < intersecting.size(); i++) {
+                assertArrayEquals(Files.readAllBytes(Paths.get(intersecting.get(i))),
+                        Files.readAllBytes(Paths.get(parallel.get(i))));
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        layer.setStepAndRepeat(2, 1, 20, 0);
+        assertThrows(IllegalStateException.class, () -> layer.dumpGerberWindowToString(
+                new BoundingBox(0, 0, 3, 3), TileBoundary.INTERSECTING, LocalDateTime.MIN));
+    }
+
+    private static List<String> fileNames(List<String> paths) {
+        List<String> names = new ArrayList<>();
+        for (String path : paths) {
+            names.add(Paths.get(path).getFileName().toString());
+        }
+        return names;
+    }
+
+    @Test
+    void testDeduplicatePolygons() {
+        GenerationSoftware software = new GenerationSoftware("Bancika", "test", "1.0");
+        double[][] shape = {{0, 0}, {2, 0}, {2, 1}, {1, 1}, {1, 3}, {0, 3}};
+        // The same L moved, rotated by 30 degrees and listed clockwise from another vertex, and mirrored
+        Point[] moved = new Point[7];
+        Point[] rotated = new Point[7];
+        Point[] mirrored = new Point[7];
+        for (int i = 0; i <= 6; i++) {
+            double[] vertex = shape[i % 6];
+            moved[i] = new Point(vertex[0] + 5, vertex[1] + 3);
+            Point turned = Point.rotate(new Point(shape[(8 - i) % 6][0], shape[(8 - i) % 6][1]), 30);
+            rotated[i] = new Point(turned.x - 1, turned.y + 2);
+            mirrored[i] = new Point(-vertex[0], vertex[1]);
+        }
+        UserPolygon[] masters = {
+                new UserPolygon(moved, SMDPAD_CU_DEF, false),
+                new UserPolygon(Arrays.copyOf(moved, 7), SMDPAD_CU_DEF, false),
+                new UserPolygon(rotated, SMDPAD_CU_DEF, false),
+                new UserPolygon(mirrored, SMDPAD_CU_DEF, false),
+                new UserPolygon(Arrays.copyOf(moved, 7), COMPONENT_PAD, false)};
+
+        DataLayer plain = new DataLayer("Copper,L1,Top", false, software);
+        DataLayer deduplicated = new DataLayer("Copper,L1,Top", false, software);
+        deduplicated.setDeduplicatePolygons(true);
+        for (DataLayer layer : Arrays.asList(plain, deduplicated)) {
+            for (int i = 0; i < masters.length; i++) {
+                layer.addPad(masters[i], new Point(10 * i, 0), 15 * i);
+            }
+            layer.addPads(masters[2], new double[]{0, 10}, new double[]{20, 20}, new double[]{0, 45});
+        }
+
+        String gerber = deduplicated.dumpGerberToString(LocalDateTime.MIN);
+        assertEquals(5, count(plain.dumpGerberToString(LocalDateTime.MIN), "%AMUserPolygon_"));
+        assertEquals(3, count(gerber, "%AMUserPolygon_"));
+        // Pads cover the same area
+        for (int i = 0; i < plain.getObjectCount(); i++) {
+            BoundingBox expected = plain.getBounds(i);
+            BoundingBox actual = deduplicated.getBounds(i);
+            assertEquals(expected.minX, actual.minX, 1e-5);
+            assertEquals(expected.minY, actual.minY, 1e-5);
+            assertEquals(expected.maxX, actual.maxX, 1e-5);
+            assertEquals(expected.maxY, actual.maxY, 1e-5);
+        }
+    }
+
+    @Test
+    void testSnapshot() throws Exception {
+        DataLayer layer = createRandomLayer(1000);
+        BoundingBox window = new BoundingBox(20, 20, 40, 40);
+        int[] found = layer.findObjects(window);
+        String expected = layer.dumpGerberToString(LocalDateTime.MIN);
+        DataLayer snapshot = layer.snapshot();
+        assertTrue(snapshot.isSnapshot());
+
+        // Written on another thread while the layer grows past the capacity of its columns
+        ForkJoinPool pool = new ForkJoinPool(1);
+        try {
+            Future<String> dump = pool.submit(() -> snapshot.dumpGerberToString(LocalDateTime.MIN));
+            for (int i = 0; i < 5000; i++) {
+                layer.addPad(new Circle(0.5, COMPONENT_PAD, false), new Point(30, 30));
+                layer.addTraceLine(new Point(25, 25), new Point(35, 35), 0.1, CONDUCTOR, false);
+            }
+            assertEquals(expected, dump.get());
+        } finally {
+            pool.shutdown();
+        }
+
+        assertEquals(1000, snapshot.getObjectCount());
+        assertEquals(11000, layer.getObjectCount());
+        assertEquals(expected, snapshot.dumpGerberToString(LocalDateTime.MIN));
+        assertArrayEquals(found, snapshot.findObjects(window));
+        assertEquals(found.length + 10000, layer.findObjects(window).length);
+
+        assertThrows(IllegalStateException.class,
+                () -> snapshot.addPad(new Circle(0.5, COMPONENT_PAD, false), new Point(0, 0)));
+        assertThrows(IllegalStateException.class,
+                () -> snapshot.addRegion(new double[][]{{0, 0, 1, 0, 1, 1, 0, 0}}, CONDUCTOR, false));
+        assertEquals(1000, snapshot.getObjectCount());
+
+        // Settings of the snapshot are its own
+        snapshot.setObjectOrder(ObjectOrder.HILBERT);
+        assertTrue(!expected.equals(snapshot.dumpGerberToString(LocalDateTime.MIN)));
+        assertEquals(11000, layer.snapshot().getObjectCount());
+    }
+
+    /**
+     * @return half circle around (10, 10) with 180 segments, every other vertex moved off the
+     * circle by the jitter
+     */
+    private static Path createHalfCircle(double jitter) {
+        Path path = new Path();
+        path.moveTo(new Point(15, 10));
+        for (int i = 1; i <= 180; i++) {
+            double radius = i < 180 && i % 2 == 1 ? 5 + jitter : 5;
+            path.lineTo(new Point(10 + radius * Math.cos(Math.toRadians(i)), 10 + radius * Math.sin(Math.toRadians(i))));
+        }
+        return path;
+    }
+
+    static DataLayer createCopperLayer() {
         GenerationSoftware genSoftware = new GenerationSoftware(
                 "Bancika",
                 "gerber_writer_example.java",
@@ -165,10 +1205,6 @@ class DataLayerTest {
         top.addPad(viaPadHole, traceStart);
         top.addPad(viaPadHole, new Point(traceStart.x + 3, traceStart.y + 6));
 
-        String gerber = top.dumpGerberToString(LocalDateTime.MIN);
-        String content = new String(Files.readAllBytes(Paths.get("src/test/resources/test1.gbr")))
-                .replaceAll("\\n|\\r\\n", System.getProperty("line.separator"));
-        assertEquals(content, gerber);
-//        System.out.println(gerber);
+        return top;
     }
 }
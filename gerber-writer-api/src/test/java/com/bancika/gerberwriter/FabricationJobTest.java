@@ -0,0 +1,118 @@
+package com.bancika.gerberwriter;
+
+import com.bancika.gerberwriter.padmasters.Circle;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static com.bancika.gerberwriter.GerberFunctions.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class FabricationJobTest {
+
+    @Test
+    void testWriteZip(@TempDir Path directory) throws IOException {
+        GenerationSoftware software = new GenerationSoftware("Bancika", "test", "1.0");
+        LayerSet layers = new LayerSet();
+        layers.add("copper_top.gbr", DataLayerTest.createCopperLayer());
+        DataLayer mask = new DataLayer("Soldermask,Top", true, software);
+        mask.addPad(new Circle(1, SMDPAD_CU_DEF, false), new Point(1, 1));
+        layers.add("mask_top.gbr", mask);
+        layers.add("profile.gbr", new DataLayer("Profile,NP", false, software));
+
+        FabricationJob job = new FabricationJob("board", layers, software);
+        LocalDateTime now = LocalDateTime.of(2024, 5, 17, 12, 30);
+        Path zipFile = directory.resolve("board.zip");
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        List<LayerTiming> timings;
+        try (OutputStream out = Files.newOutputStream(zipFile)) {
+            timings = job.writeZip(out, executor, now);
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(3, timings.size());
+        assertEquals("mask_top.gbr", timings.get(1).getFileName());
+
+        try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+            List<String> names = new ArrayList<>();
+            for (ZipEntry entry : Collections.list(zip.entries())) {
+                names.add(entry.getName());
+            }
+            assertEquals(Arrays.asList("copper_top.gbr", "mask_top.gbr", "profile.gbr", "board.gbrjob"),
+                    names);
+
+            for (int i = 0; i < 3; i++) {
+                String name = names.get(i);
+                ZipEntry entry = zip.getEntry(name);
+                assertEquals(timings.get(i).getSize(), entry.getSize());
+                assertEquals(layers.getLayer(name).dumpGerberToString(now), read(zip, entry));
+            }
+            assertEquals(job.dumpJobToString(now), read(zip, zip.getEntry("board.gbrjob")));
+        }
+
+        String jobFile = job.dumpJobToString(now);
+        assertTrue(jobFile.contains("\"Path\": \"mask_top.gbr\""));
+        assertTrue(jobFile.contains("\"FileFunction\": \"Soldermask,Top\""));
+        assertTrue(jobFile.contains("\"FilePolarity\": \"Negative\""));
+        assertTrue(jobFile.contains("\"CreationDate\": \"2024-05-17T12:30:00\""));
+    }
+
+    @Test
+    void testUnknownSoftwareFields() {
+        GenerationSoftware software = new GenerationSoftware("Bancika", "test", "1.0") {
+            @Override
+            public String getApplication() {
+                return null;
+            }
+
+            @Override
+            public String getVersion() {
+                return null;
+            }
+        };
+        LayerSet layers = new LayerSet();
+        layers.add("profile.gbr", new DataLayer("Profile,NP", false, software));
+        String jobFile = new FabricationJob("board", layers, software).dumpJobToString(LocalDateTime.MIN);
+        assertTrue(jobFile.contains("\"GenerationSoftware\": {\n      \"Vendor\": \"Bancika\"\n    },"));
+        assertFalse(jobFile.contains("Application"));
+        assertFalse(jobFile.contains("null"));
+    }
+
+    @Test
+    void testDuplicateFileName() {
+        LayerSet layers = new LayerSet();
+        GenerationSoftware software = new GenerationSoftware("Bancika", "test", "1.0");
+        layers.add("copper_top.gbr", new DataLayer("Copper,L1,Top", false, software));
+        assertThrows(IllegalArgumentException.class,
+                () -> layers.add("copper_top.gbr", new DataLayer("Copper,L2,Bot", false, software)));
+    }
+
+    private static String read(ZipFile zip, ZipEntry entry) throws IOException {
+        try (InputStream in = zip.getInputStream(entry)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int length;
+            while ((length = in.read(buffer)) > 0) {
+                out.write(buffer, 0, length);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
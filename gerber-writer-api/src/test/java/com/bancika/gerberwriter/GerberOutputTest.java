@@ -0,0 +1,53 @@
+package com.bancika.gerberwriter;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class GerberOutputTest {
+
+    @Test
+    void testCoordinateWordsMatchFormat() throws IOException {
+        Random random = new Random(42);
+        long[] special = {0, 1, -1, 9, -9, 10, -10, Integer.MAX_VALUE, Integer.MIN_VALUE,
+                Long.MAX_VALUE, Long.MIN_VALUE};
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GerberOutput out = new GerberOutput(bytes);
+        StringBuilder expected = new StringBuilder();
+
+        // Enough words to cross several buffer boundaries
+        for (int n = 0; n < 20_000; n++) {
+            long x = n < special.length ? special[n] : random.nextInt();
+            long y = n < special.length ? special[special.length - 1 - n] : random.nextLong() / 1000;
+            int operation = 1 + n % 3;
+            out.appendOperation(x, y, operation);
+            expected.append(String.format("X%dY%dD0%d*\n", x, y, operation));
+
+            out.appendArc(x, y, -y, x / 7);
+            expected.append(String.format("X%dY%dI%dJ%dD01*\n", x, y, -y, x / 7));
+
+            out.appendDcode(10 + n);
+            expected.append(String.format("D%d*\n", 10 + n));
+        }
+        out.flush();
+
+        String actual = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        assertEquals(expected.toString(), actual);
+        assertEquals(bytes.size(), out.size());
+    }
+
+    @Test
+    void testNonAsciiIsWrittenAsUtf8() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GerberOutput out = new GerberOutput(bytes);
+        out.append("G04 #@! TA.AperFunction,Padé*").append('\n');
+        out.flush();
+        assertEquals("G04 #@! TA.AperFunction,Padé*\n", new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+    }
+}
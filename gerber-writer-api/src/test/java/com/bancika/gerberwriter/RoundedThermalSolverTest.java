@@ -0,0 +1,70 @@
+package com.bancika.gerberwriter;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RoundedThermalSolverTest {
+
+    @Test
+    void testSweepParameterSpace() {
+        // Every combination either solves to the gap or is rejected, none of them hangs
+        int[] counts = new int[2];
+        assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+            for (double outer = 0.2; outer <= 5; outer += 0.3) {
+                for (double innerRatio = 0.05; innerRatio < 1; innerRatio += 0.05) {
+                    for (double gapRatio = 0.01; gapRatio < 1; gapRatio += 0.02) {
+                        double inner = outer * innerRatio;
+                        double gap = outer * gapRatio;
+                        boolean large = gap * Math.sqrt(2) >= inner - (1 + Math.sqrt(2)) * (outer - inner);
+                        boolean valid = (gap + outer - inner) * 2 * Math.sqrt(2) < outer + inner;
+                        String parameters = outer + ", " + inner + ", " + gap;
+                        RoundedThermalSolver.Solution solution;
+                        try {
+                            solution = RoundedThermalSolver.compute(outer, inner, gap);
+                        } catch (IllegalArgumentException e) {
+                            // Only gaps that the constructor of the master rejects too
+                            assertTrue(!valid, parameters);
+                            counts[1]++;
+                            continue;
+                        }
+                        counts[0]++;
+                        assertEquals(0, RoundedThermalSolver.residual(outer, inner, gap, large, solution.gapPrimitive),
+                                1e-9, parameters);
+                        assertTrue(solution.gapPrimitive >= gap && solution.gapPrimitive <= inner, parameters);
+                        assertTrue(solution.roundingDiameter > 0 && solution.roundingDiameter < outer, parameters);
+                        assertTrue(Double.isFinite(solution.centerH.x) && Double.isFinite(solution.centerH.y)
+                                && Double.isFinite(solution.centerV.x) && Double.isFinite(solution.centerV.y), parameters);
+                    }
+                }
+            }
+        });
+        assertTrue(counts[0] > 1000);
+        assertTrue(counts[1] > 0);
+    }
+
+    @Test
+    void testSolutionsCachedPerParameters() {
+        RoundedThermalSolver solver = new RoundedThermalSolver(2);
+        RoundedThermalSolver.Solution solution = solver.solve(1, 0.8, 0.06);
+        assertSame(solution, solver.solve(1, 0.8, 0.06));
+        solver.solve(2, 1.5, 0.2);
+        solver.solve(2, 1.5, 0.3);
+        assertEquals(2, solver.size());
+    }
+
+    @Test
+    void testGapLargerThanInnerDiameterRejected() {
+        // Used to loop forever on the NaN of acos
+        assertTimeoutPreemptively(Duration.ofSeconds(1), () -> {
+            assertThrows(IllegalArgumentException.class, () -> RoundedThermalSolver.compute(1, 0.5, 0.6));
+            assertThrows(IllegalArgumentException.class, () -> new RoundedThermalSolver(1).solve(1, 0.5, 0.5));
+        });
+    }
+}
@@ -0,0 +1,80 @@
+package com.bancika.gerberwriter;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ZipWriterTest {
+
+    private static final LocalDateTime NOW = LocalDateTime.of(2024, 5, 17, 12, 30);
+
+    @Test
+    void testEntryLargerThanMemory(@TempDir Path directory) throws IOException {
+        // Random bytes do not compress, so this spills to a temporary file
+        byte[] contents = new byte[3 << 20];
+        new Random(42).nextBytes(contents);
+        Path zipFile = directory.resolve("large.zip");
+        try (OutputStream out = Files.newOutputStream(zipFile)) {
+            ZipWriter zip = new ZipWriter(out);
+            ZipWriter.EntryData data = new ZipWriter.EntryData();
+            data.write(contents);
+            data.close();
+            assertTrue(data.getCompressedSize() > contents.length);
+            zip.write("large.bin", NOW, data);
+            data.discard();
+            zip.finish();
+        }
+
+        try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+            ZipEntry entry = zip.getEntry("large.bin");
+            assertEquals(contents.length, entry.getSize());
+            assertArrayEquals(contents, read(zip, entry));
+        }
+    }
+
+    @Test
+    void testZip64EntryCount(@TempDir Path directory) throws IOException {
+        int count = 70_000;
+        Path zipFile = directory.resolve("many.zip");
+        try (OutputStream out = Files.newOutputStream(zipFile)) {
+            ZipWriter zip = new ZipWriter(out);
+            for (int i = 0; i < count; i++) {
+                ZipWriter.EntryData data = new ZipWriter.EntryData();
+                data.write(i);
+                data.close();
+                zip.write(i + ".bin", NOW, data);
+                data.discard();
+            }
+            zip.finish();
+        }
+
+        try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+            assertEquals(count, zip.size());
+            assertArrayEquals(new byte[]{(byte) 69_999}, read(zip, zip.getEntry("69999.bin")));
+        }
+    }
+
+    private static byte[] read(ZipFile zip, ZipEntry entry) throws IOException {
+        try (InputStream in = zip.getInputStream(entry)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int length;
+            while ((length = in.read(buffer)) > 0) {
+                out.write(buffer, 0, length);
+            }
+            return out.toByteArray();
+        }
+    }
+}
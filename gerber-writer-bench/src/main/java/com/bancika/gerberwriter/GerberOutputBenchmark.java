@@ -0,0 +1,79 @@
+package com.bancika.gerberwriter;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rate at which {@link GerberOutput} encodes coordinate data words, without building a
+ * layer. The score is in words per second. The benchmark is in the package of the encoder,
+ * which is not public.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GerberOutputBenchmark {
+
+    static final int WORDS = 1 << 16;
+
+    // Coordinates of a board up to 100 mm in nanometres, with a few negative ones
+    private long[] xs;
+    private long[] ys;
+    private GerberOutput output;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        Random random = new Random(42);
+        xs = new long[WORDS + 1];
+        ys = new long[WORDS + 1];
+        for (int i = 0; i <= WORDS; i++) {
+            xs[i] = random.nextInt(110_000_000) - 10_000_000;
+            ys[i] = random.nextInt(110_000_000) - 10_000_000;
+        }
+        output = new GerberOutput(new DiscardingOutputStream(blackhole));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WORDS)
+    public void appendOperation() throws IOException {
+        for (int i = 0; i < WORDS; i++) {
+            output.appendOperation(xs[i], ys[i], 1 + (i & 1));
+        }
+        output.flush();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WORDS)
+    public void appendArc() throws IOException {
+        for (int i = 0; i < WORDS; i++) {
+            output.appendArc(xs[i], ys[i], xs[i + 1] - xs[i], ys[i + 1] - ys[i]);
+        }
+        output.flush();
+    }
+
+    static final class DiscardingOutputStream extends OutputStream {
+        private final Blackhole blackhole;
+
+        DiscardingOutputStream(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void write(int b) {
+            blackhole.consume(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            blackhole.consume(b);
+            blackhole.consume(len);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.bancika.gerberwriter.bench;
+
+import com.bancika.gerberwriter.DataLayer;
+import com.bancika.gerberwriter.GenerationSoftware;
+import com.bancika.gerberwriter.Point;
+import com.bancika.gerberwriter.padmasters.*;
+import com.bancika.gerberwriter.path.Path;
+
+import java.util.Random;
+
+import static com.bancika.gerberwriter.GerberFunctions.*;
+
+/**
+ * Synthetic boards for the benchmarks. All of them are generated from a fixed seed,
+ * so every run measures the same content.
+ */
+final class Boards {
+
+    static final GenerationSoftware SOFTWARE = new GenerationSoftware("Bancika", "gerber-writer-bench", "1.0.0");
+
+    private static final double BOARD_SIZE = 300; // mm
+    private static final double[] ANGLES = {0, 45, 90, 30};
+
+    private Boards() {
+    }
+
+    /**
+     * One pad master of every type
+     */
+    static AbstractPad[] createMasters() {
+        return new AbstractPad[]{
+                new Circle(0.6, VIA_PAD, false),
+                new Rectangle(1.27, 2.54, SMDPAD_CU_DEF, false),
+                new RoundedRectangle(1.257, 2.286, 0.254, SMDPAD_CU_DEF, false),
+                new ChamferedRectangle(1.5, 1, 0.3, SMDPAD_CU_DEF, false),
+                new Thermal(2, 1.5, 0.2, THERMAL_RELIEF_PAD, true),
+                new RoundedThermal(2, 1.5, 0.2, THERMAL_RELIEF_PAD, true),
+                new RegularPolygon(1.5, 6, COMPONENT_PAD, false),
+                new UserPolygon(new Point[]{
+                        new Point(-1, -0.5), new Point(1, -0.5), new Point(1.2, 0),
+                        new Point(1, 0.5), new Point(-1, 0.5), new Point(-1, -0.5)}, COMPONENT_PAD, false)};
+    }
+
+    static Point[] randomPoints(int count, long seed) {
+        Random random = new Random(seed);
+        Point[] points = new Point[count];
+        for (int i = 0; i < count; i++) {
+            points[i] = randomPoint(random);
+        }
+        return points;
+    }
+
+    /**
+     * Layer with the given number of objects: 60% pads of every master type under a few
+     * angles, 25% trace lines, 5% trace arcs and 10% small regions.
+     */
+    static DataLayer createMixedBoard(int objects, long seed) {
+        DataLayer layer = new DataLayer("Copper,L1,Top", false, SOFTWARE);
+        AbstractPad[] masters = createMasters();
+        Random random = new Random(seed);
+        Point last = randomPoint(random);
+        for (int i = 0; i < objects; i++) {
+            Point point = randomPoint(random);
+            int kind = random.nextInt(100);
+            if (kind < 60) {
+                layer.addPad(masters[random.nextInt(masters.length)], point, ANGLES[random.nextInt(ANGLES.length)]);
+            } else if (kind < 85) {
+                layer.addTraceLine(last, point, 0.254, CONDUCTOR, false);
+            } else if (kind < 90) {
+                layer.addTraceArc(new Point(point.x + 1, point.y), new Point(point.x, point.y + 1), point,
+                        random.nextBoolean() ? "+" : "-", 0.2, CONDUCTOR, false);
+            } else {
+                layer.addRegion(createSquare(point, 0.5), CONDUCTOR, false);
+            }
+            last = point;
+        }
+        return layer;
+    }
+
+    /**
+     * Serpentine of half circles with the given radius
+     */
+    static Path createArcPath(Point start, int arcs, double radius) {
+        Path path = new Path();
+        path.moveTo(start);
+        Point current = start;
+        for (int i = 0; i < arcs; i++) {
+            Point end = new Point(current.x + 2 * radius, current.y);
+            Point center = new Point(current.x + radius, current.y);
+            path.arcTo(end, center, i % 2 == 0 ? "-" : "+");
+            current = end;
+        }
+        return path;
+    }
+
+    /**
+     * Region with a grid of square contours with rounded corners
+     */
+    static Path createManyContourRegion(Point origin, int contours) {
+        Path path = new Path();
+        int columns = (int) Math.ceil(Math.sqrt(contours));
+        double r = 0.1;
+        for (int i = 0; i < contours; i++) {
+            double x = origin.x + (i % columns) * 2;
+            double y = origin.y + (i / columns) * 2;
+            path.moveTo(new Point(x + r, y));
+            path.lineTo(new Point(x + 1 - r, y));
+            path.arcTo(new Point(x + 1, y + r), new Point(x + 1 - r, y + r), "+");
+            path.lineTo(new Point(x + 1, y + 1 - r));
+            path.arcTo(new Point(x + 1 - r, y + 1), new Point(x + 1 - r, y + 1 - r), "+");
+            path.lineTo(new Point(x + r, y + 1));
+            path.arcTo(new Point(x, y + 1 - r), new Point(x + r, y + 1 - r), "+");
+            path.lineTo(new Point(x, y + r));
+            path.arcTo(new Point(x + r, y), new Point(x + r, y + r), "+");
+        }
+        return path;
+    }
+
+    static Path createSquare(Point origin, double size) {
+        Path path = new Path();
+        path.moveTo(origin);
+        path.lineTo(new Point(origin.x + size, origin.y));
+        path.lineTo(new Point(origin.x + size, origin.y + size));
+        path.lineTo(new Point(origin.x, origin.y + size));
+        path.lineTo(origin);
+        return path;
+    }
+
+    private static Point randomPoint(Random random) {
+        // On a 1 um grid, like real CAD data
+        return new Point(random.nextInt((int) (BOARD_SIZE * 1000)) / 1000.0,
+                random.nextInt((int) (BOARD_SIZE * 1000)) / 1000.0);
+    }
+}
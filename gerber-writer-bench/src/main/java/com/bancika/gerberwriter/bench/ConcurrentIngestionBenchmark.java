@@ -0,0 +1,82 @@
+package com.bancika.gerberwriter.bench;
+
+import com.bancika.gerberwriter.ConcurrentDataLayerBuilder;
+import com.bancika.gerberwriter.DataLayer;
+import com.bancika.gerberwriter.Point;
+import com.bancika.gerberwriter.padmasters.AbstractPad;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.bancika.gerberwriter.GerberFunctions.CONDUCTOR;
+
+/**
+ * A fixed board of nets, each of 8 pads and 8 traces, added by a number of threads to one
+ * {@link ConcurrentDataLayerBuilder} and built into a layer. Every thread adds whole nets,
+ * with the net as the order key when {@code keyed} is set. The score is the time for the
+ * whole board, so it falls as the threads scale and can be compared with
+ * {@link IngestionBenchmark} for one thread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ConcurrentIngestionBenchmark {
+
+    private static final int NETS = 1 << 14;
+    private static final int NET_SIZE = 8;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    @Param({"false", "true"})
+    public boolean keyed;
+
+    private AbstractPad[] masters;
+    private Point[] points;
+    private ExecutorService executor;
+
+    @Setup
+    public void setUp() {
+        masters = Boards.createMasters();
+        points = Boards.randomPoints(NETS * NET_SIZE + 1, 42);
+        executor = Executors.newFixedThreadPool(threads);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public DataLayer addAndBuild() throws Exception {
+        ConcurrentDataLayerBuilder builder = new ConcurrentDataLayerBuilder("Copper,L1,Top", false, Boards.SOFTWARE);
+        List<Future<?>> futures = new ArrayList<>(threads);
+        for (int thread = 0; thread < threads; thread++) {
+            int first = thread;
+            futures.add(executor.submit(() -> {
+                for (int net = first; net < NETS; net += threads) {
+                    if (keyed) {
+                        builder.setOrderKey(net);
+                    }
+                    for (int i = net * NET_SIZE; i < (net + 1) * NET_SIZE; i++) {
+                        builder.addPad(masters[net % masters.length], points[i], 0);
+                        builder.addTraceLine(points[i], points[i + 1], 0.254, CONDUCTOR, false);
+                    }
+                }
+                builder.closeProducer();
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        return builder.build();
+    }
+}
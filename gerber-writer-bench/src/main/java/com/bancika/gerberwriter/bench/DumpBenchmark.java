@@ -0,0 +1,77 @@
+package com.bancika.gerberwriter.bench;
+
+import com.bancika.gerberwriter.DataLayer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.LocalDateTime;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to write synthetic boards with a mix of every pad master type, traces, arcs and
+ * regions, see {@link Boards#createMixedBoard}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class DumpBenchmark {
+
+    @Param({"10000", "100000", "1000000", "10000000"})
+    public int objects;
+
+    private DataLayer layer;
+
+    @Setup
+    public void setUp() {
+        layer = Boards.createMixedBoard(objects, 42);
+    }
+
+    @Benchmark
+    public String dumpGerberToString() {
+        return layer.dumpGerberToString(LocalDateTime.MIN);
+    }
+
+    /**
+     * Streaming output without building the file in memory
+     */
+    @Benchmark
+    public void dumpGerberToStream(Blackhole blackhole) throws IOException {
+        layer.setEncodingPool(null);
+        layer.dumpGerber(new DiscardingOutputStream(blackhole), LocalDateTime.MIN);
+    }
+
+    @Benchmark
+    public void dumpGerberParallel(Blackhole blackhole) throws IOException {
+        layer.setEncodingPool(ForkJoinPool.commonPool());
+        try {
+            layer.dumpGerber(new DiscardingOutputStream(blackhole), LocalDateTime.MIN);
+        } finally {
+            layer.setEncodingPool(null);
+        }
+    }
+
+    static final class DiscardingOutputStream extends OutputStream {
+        private final Blackhole blackhole;
+
+        DiscardingOutputStream(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void write(int b) {
+            blackhole.consume(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            blackhole.consume(b);
+            blackhole.consume(len);
+        }
+    }
+}
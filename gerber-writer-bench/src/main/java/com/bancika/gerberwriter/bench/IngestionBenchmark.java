@@ -0,0 +1,131 @@
+package com.bancika.gerberwriter.bench;
+
+import com.bancika.gerberwriter.DataLayer;
+import com.bancika.gerberwriter.Point;
+import com.bancika.gerberwriter.padmasters.AbstractPad;
+import com.bancika.gerberwriter.path.Path;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.bancika.gerberwriter.GerberFunctions.CONDUCTOR;
+
+/**
+ * Rate at which objects are added to a layer. Every invocation fills a new layer with
+ * {@link #OBJECTS} objects, the score is per object.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IngestionBenchmark {
+
+    static final int OBJECTS = 100_000;
+
+    private AbstractPad[] masters;
+    private Point[] points;
+    private Path[] regions;
+    // The same pads and traces as primitive arrays, pads grouped by master
+    private double[][] padXs;
+    private double[][] padYs;
+    private double[][] segments;
+
+    @Setup
+    public void setUp() {
+        masters = Boards.createMasters();
+        points = Boards.randomPoints(OBJECTS + 1, 42);
+        regions = new Path[OBJECTS];
+        for (int i = 0; i < OBJECTS; i++) {
+            regions[i] = Boards.createSquare(points[i], 0.5);
+        }
+
+        padXs = new double[masters.length][];
+        padYs = new double[masters.length][];
+        for (int m = 0; m < masters.length; m++) {
+            int count = 0;
+            for (int i = 0; i < OBJECTS; i++) {
+                if ((i >> 4) % masters.length == m) {
+                    count++;
+                }
+            }
+            padXs[m] = new double[count];
+            padYs[m] = new double[count];
+            count = 0;
+            for (int i = 0; i < OBJECTS; i++) {
+                if ((i >> 4) % masters.length == m) {
+                    padXs[m][count] = points[i].x;
+                    padYs[m][count++] = points[i].y;
+                }
+            }
+        }
+        segments = new double[OBJECTS][];
+        for (int i = 0; i < OBJECTS; i++) {
+            segments[i] = new double[]{points[i].x, points[i].y, points[i + 1].x, points[i + 1].y};
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OBJECTS)
+    public DataLayer addPad() {
+        DataLayer layer = new DataLayer("Copper,L1,Top", false, Boards.SOFTWARE);
+        for (int i = 0; i < OBJECTS; i++) {
+            // Runs of pads with the same master, like footprints
+            layer.addPad(masters[(i >> 4) % masters.length], points[i], 0);
+        }
+        return layer;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OBJECTS)
+    public DataLayer addPads() {
+        DataLayer layer = new DataLayer("Copper,L1,Top", false, Boards.SOFTWARE);
+        for (int m = 0; m < masters.length; m++) {
+            layer.addPads(masters[m], padXs[m], padYs[m]);
+        }
+        return layer;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OBJECTS)
+    public DataLayer addTraceLine() {
+        DataLayer layer = new DataLayer("Copper,L1,Top", false, Boards.SOFTWARE);
+        for (int i = 0; i < OBJECTS; i++) {
+            layer.addTraceLine(points[i], points[i + 1], 0.254, CONDUCTOR, false);
+        }
+        return layer;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OBJECTS)
+    public DataLayer addTracePolyline() {
+        DataLayer layer = new DataLayer("Copper,L1,Top", false, Boards.SOFTWARE);
+        for (int i = 0; i < OBJECTS; i++) {
+            layer.addTracePolyline(segments[i], 0.254, CONDUCTOR, false);
+        }
+        return layer;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OBJECTS)
+    public DataLayer addTraceArc() {
+        DataLayer layer = new DataLayer("Copper,L1,Top", false, Boards.SOFTWARE);
+        for (int i = 0; i < OBJECTS; i++) {
+            Point center = points[i];
+            layer.addTraceArc(new Point(center.x + 1, center.y), new Point(center.x, center.y + 1), center,
+                    "+", 0.254, CONDUCTOR, false);
+        }
+        return layer;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OBJECTS)
+    public DataLayer addRegion() {
+        DataLayer layer = new DataLayer("Copper,L1,Top", false, Boards.SOFTWARE);
+        for (int i = 0; i < OBJECTS; i++) {
+            layer.addRegion(regions[i], CONDUCTOR, false);
+        }
+        return layer;
+    }
+}
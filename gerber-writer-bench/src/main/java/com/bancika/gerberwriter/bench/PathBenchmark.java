@@ -0,0 +1,76 @@
+package com.bancika.gerberwriter.bench;
+
+import com.bancika.gerberwriter.DataLayer;
+import com.bancika.gerberwriter.Point;
+import com.bancika.gerberwriter.path.Path;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+import static com.bancika.gerberwriter.GerberFunctions.CONDUCTOR;
+
+/**
+ * Arc-heavy trace paths and regions with many contours, added and written.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PathBenchmark {
+
+    private static final int ARC_PATHS = 10_000;
+    private static final int ARCS_PER_PATH = 64;
+    private static final int REGIONS = 1_000;
+    private static final int CONTOURS_PER_REGION = 100;
+
+    private Path[] arcPaths;
+    private Path[] regions;
+    private DataLayer arcLayer;
+    private DataLayer regionLayer;
+
+    @Setup
+    public void setUp() {
+        Point[] points = Boards.randomPoints(Math.max(ARC_PATHS, REGIONS), 42);
+        arcPaths = new Path[ARC_PATHS];
+        for (int i = 0; i < ARC_PATHS; i++) {
+            arcPaths[i] = Boards.createArcPath(points[i], ARCS_PER_PATH, 0.25);
+        }
+        regions = new Path[REGIONS];
+        for (int i = 0; i < REGIONS; i++) {
+            regions[i] = Boards.createManyContourRegion(points[i], CONTOURS_PER_REGION);
+        }
+        arcLayer = addArcPaths();
+        regionLayer = addManyContourRegions();
+    }
+
+    @Benchmark
+    public DataLayer addArcPaths() {
+        DataLayer layer = new DataLayer("Copper,L1,Top", false, Boards.SOFTWARE);
+        for (Path path : arcPaths) {
+            layer.addTracesPath(path, 0.2, CONDUCTOR, false);
+        }
+        return layer;
+    }
+
+    @Benchmark
+    public String dumpArcPaths() {
+        return arcLayer.dumpGerberToString(LocalDateTime.MIN);
+    }
+
+    @Benchmark
+    public DataLayer addManyContourRegions() {
+        DataLayer layer = new DataLayer("Copper,L1,Top", false, Boards.SOFTWARE);
+        for (Path region : regions) {
+            layer.addRegion(region, CONDUCTOR, false);
+        }
+        return layer;
+    }
+
+    @Benchmark
+    public String dumpManyContourRegions() {
+        return regionLayer.dumpGerberToString(LocalDateTime.MIN);
+    }
+}
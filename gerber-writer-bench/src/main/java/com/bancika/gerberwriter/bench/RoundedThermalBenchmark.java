@@ -0,0 +1,54 @@
+package com.bancika.gerberwriter.bench;
+
+import com.bancika.gerberwriter.DataLayer;
+import com.bancika.gerberwriter.Point;
+import com.bancika.gerberwriter.padmasters.RoundedThermal;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.LocalDateTime;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static com.bancika.gerberwriter.GerberFunctions.THERMAL_RELIEF_PAD;
+
+/**
+ * Rounded thermals with distinct diameters and gaps, each of them solved once, added to a new
+ * layer and written.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RoundedThermalBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int thermals;
+
+    private RoundedThermal[] masters;
+    private Point[] points;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        masters = new RoundedThermal[thermals];
+        for (int i = 0; i < thermals; i++) {
+            double outer = 0.5 + random.nextDouble() * 2;
+            double inner = outer * (0.7 + random.nextDouble() * 0.25);
+            // Up to the largest gap the master accepts
+            double gap = ((outer + inner) / (2 * Math.sqrt(2)) - (outer - inner)) * (0.1 + random.nextDouble() * 0.85);
+            masters[i] = new RoundedThermal(outer, inner, gap, THERMAL_RELIEF_PAD, false);
+        }
+        points = Boards.randomPoints(thermals, 42);
+    }
+
+    @Benchmark
+    public String addAndDumpRoundedThermals() {
+        DataLayer layer = new DataLayer("Copper,L1,Top", false, Boards.SOFTWARE);
+        for (int i = 0; i < thermals; i++) {
+            layer.addPad(masters[i], points[i]);
+        }
+        return layer.dumpGerberToString(LocalDateTime.MIN);
+    }
+}